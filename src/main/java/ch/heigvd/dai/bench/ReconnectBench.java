@@ -0,0 +1,140 @@
+package ch.heigvd.dai.bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Mass-reconnect benchmark: opens many connections at once, drops them all,
+ * and reconnects them all again, like clients after a network blip.
+ * A connection counts as accepted once the server has answered its PING,
+ * so the measure includes accept, handler startup and the first round trip.
+ */
+public class ReconnectBench {
+	private static final byte[] PING = "PING\n".getBytes(StandardCharsets.UTF_8);
+	private final String host;
+	private final int port;
+	private final int connections;
+	private final int concurrency;
+	private final int timeoutMillis;
+
+	/**
+	 * @param host the server hostname or IP address
+	 * @param port the server port number
+	 * @param connections the number of connections opened in each wave
+	 * @param concurrency the maximum number of connection attempts in flight
+	 * @param timeoutMillis the connect and first-response timeout
+	 */
+	public ReconnectBench(String host, int port, int connections, int concurrency, int timeoutMillis) {
+		this.host = host;
+		this.port = port;
+		this.connections = connections;
+		this.concurrency = concurrency;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Runs the given number of waves and prints one result line per wave.
+	 *
+	 * @param waves the number of connect/drop cycles
+	 * @param out where results are printed
+	 * @return true if every connection of every wave succeeded
+	 */
+	public boolean run(int waves, PrintStream out) throws InterruptedException {
+		boolean ok = true;
+		for (int wave = 1; wave <= waves; wave++) {
+			List<Socket> sockets = new ArrayList<>(connections);
+			ok &= wave(wave, sockets, out);
+			// drop everything at once, the next wave reconnects at once
+			for (Socket socket : sockets) {
+				try {
+					socket.close();
+				} catch (IOException ignored) {
+				}
+			}
+		}
+		return ok;
+	}
+
+	private boolean wave(int wave, List<Socket> sockets, PrintStream out) throws InterruptedException {
+		ConcurrentLinkedQueue<Socket> open = new ConcurrentLinkedQueue<>();
+		long[] latencies = new long[connections];
+		AtomicInteger succeeded = new AtomicInteger();
+		AtomicInteger failed = new AtomicInteger();
+		Semaphore inFlight = new Semaphore(concurrency);
+		CountDownLatch done = new CountDownLatch(connections);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < connections; i++) {
+			inFlight.acquire();
+			Thread.startVirtualThread(() -> {
+				long begin = System.nanoTime();
+				try {
+					Socket socket = connect();
+					open.add(socket);
+					latencies[succeeded.getAndIncrement()] = System.nanoTime() - begin;
+				} catch (IOException e) {
+					failed.incrementAndGet();
+				} finally {
+					inFlight.release();
+					done.countDown();
+				}
+			});
+		}
+		done.await();
+		long elapsed = System.nanoTime() - start;
+		sockets.addAll(open);
+
+		int count = succeeded.get();
+		long[] sorted = Arrays.copyOf(latencies, count);
+		Arrays.sort(sorted);
+		out.printf("wave %d: %d connected, %d failed in %d ms -> %.0f conn/s, to first PONG p50 %.2f ms p99 %.2f ms max %.2f ms%n",
+			wave, count, failed.get(), TimeUnit.NANOSECONDS.toMillis(elapsed),
+			count * 1e9 / elapsed, millis(sorted, 0.50), millis(sorted, 0.99), millis(sorted, 1.0));
+		return failed.get() == 0;
+	}
+
+	/**
+	 * Opens one connection and waits for the answer to PING.
+	 */
+	private Socket connect() throws IOException {
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+			socket.setSoTimeout(timeoutMillis);
+			OutputStream output = socket.getOutputStream();
+			output.write(PING);
+			output.flush();
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			String line = in.readLine();
+			if (!"PONG".equals(line)) {
+				throw new IOException("unexpected answer to PING: " + line);
+			}
+			return socket;
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	private static double millis(long[] sorted, double percentile) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int index = (int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1);
+		return sorted[Math.max(0, index)] / 1e6;
+	}
+}
@@ -0,0 +1,298 @@
+package ch.heigvd.dai.bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import ch.heigvd.dai.client.ClientConnection;
+import ch.heigvd.dai.server.ManualClock;
+import ch.heigvd.dai.server.Server;
+import ch.heigvd.dai.transport.PipeTransport;
+import ch.heigvd.dai.transport.Transport;
+
+/**
+ * Runs scripted clients against a server in the same JVM, connected through in-memory pipes,
+ * with the server driven by a {@link ManualClock}.
+ *
+ * The scenario has two phases:
+ * - traffic: every client joins a channel and posts its messages; each receiver checks that
+ *   the messages of every sender arrive complete and in order, and fan-out latencies are measured;
+ * - timeouts: the clock is moved past the idle timeout, then past the PING timeout. Silent clients
+ *   (which never answer PING) must be disconnected, active ones must stay connected.
+ *   No real time passes: a minute of inactivity takes milliseconds.
+ *
+ * Timer-driven behavior is reproducible; the interleaving of threads is not.
+ */
+public class Simulation {
+	private static final long START_MILLIS = 1_700_000_000_000L;
+	private static final long IDLE_TIMEOUT_MILLIS = 60_000;
+	private static final long PING_TIMEOUT_MILLIS = 15_000;
+	private final int clients;
+	private final int channels;
+	private final int messages;
+	private final int silentClients;
+	private final long timeoutMillis;
+	// clients connected by the traffic phase, still active during the timeout phase
+	private List<ClientConnection> connections = List.of();
+
+	/**
+	 * @param clients the number of scripted clients
+	 * @param channels the number of channels the clients are spread over
+	 * @param messages the number of messages posted by each client
+	 * @param silentClients the number of extra clients that never answer PING
+	 * @param timeoutMillis how long to wait, in real time, for each phase to complete
+	 */
+	public Simulation(int clients, int channels, int messages, int silentClients, long timeoutMillis) {
+		this.clients = clients;
+		this.channels = channels;
+		this.messages = messages;
+		this.silentClients = silentClients;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Runs the scenario and prints the results.
+	 *
+	 * @param out where results are printed
+	 * @return true if every check passed
+	 */
+	public boolean run(PrintStream out) throws IOException, InterruptedException {
+		Path data = Files.createTempDirectory("chch-sim");
+		try {
+			for (int c = 0; c < channels; c++) {
+				Files.createFile(data.resolve(channel(c) + ".txt"));
+			}
+			ManualClock clock = new ManualClock(START_MILLIS);
+			Server server = new Server(data, clock);
+			server.open();
+			return traffic(out) & timeouts(clock, out);
+		} finally {
+			delete(data);
+		}
+	}
+
+	private boolean traffic(PrintStream out) throws InterruptedException {
+		List<ClientConnection> connections = new ArrayList<>(clients);
+		Receiver[] receivers = new Receiver[clients];
+		long expected = 0;
+		for (int i = 0; i < clients; i++) {
+			int members = clients / channels + (i % channels < clients % channels ? 1 : 0);
+			receivers[i] = new Receiver(clients, (long) (members - 1) * messages);
+			expected += receivers[i].expected;
+		}
+
+		long start = System.nanoTime();
+		List<CompletableFuture<String>> joins = new ArrayList<>(clients);
+		for (int i = 0; i < clients; i++) {
+			String name = "client-" + i;
+			ClientConnection connection = new ClientConnection(() -> pipe(name), messages + 16);
+			connection.setBroadcastListener(receivers[i]::accept);
+			if (!connection.connect()) {
+				out.println("client " + i + " failed to connect");
+				return false;
+			}
+			connections.add(connection);
+			joins.add(connection.requestTagged("JOIN " + channel(i % channels) + " sim" + i));
+		}
+		if (!await(joins, out, "join")) {
+			return false;
+		}
+		long joined = System.nanoTime();
+
+		for (int j = 0; j < messages; j++) {
+			for (int i = 0; i < clients; i++) {
+				// "<sender> <index> <send time>": receivers check the order and measure the latency
+				while (!connections.get(i).send("MESSAGE " + i + " " + j + " " + System.nanoTime())) {
+					Thread.onSpinWait();
+				}
+			}
+		}
+		boolean complete = true;
+		for (Receiver receiver : receivers) {
+			complete &= receiver.done.await(Math.max(1, timeoutMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - joined)),
+				TimeUnit.MILLISECONDS);
+		}
+		long elapsed = System.nanoTime() - joined;
+
+		long delivered = 0;
+		long outOfOrder = 0;
+		List<long[]> latencies = new ArrayList<>();
+		for (Receiver receiver : receivers) {
+			delivered += receiver.received.get();
+			outOfOrder += receiver.outOfOrder.get();
+			latencies.add(receiver.latencies());
+		}
+		long[] all = latencies.stream().flatMapToLong(Arrays::stream).sorted().toArray();
+		out.printf("traffic: %d clients on %d channels joined in %d ms, %d messages sent, %d/%d delivered in %d ms"
+				+ " (%.0f deliveries/s), fan-out latency p50 %.2f ms p99 %.2f ms max %.2f ms, %d out of order%n",
+			clients, channels, TimeUnit.NANOSECONDS.toMillis(joined - start), (long) clients * messages,
+			delivered, expected, TimeUnit.NANOSECONDS.toMillis(elapsed), delivered * 1e9 / elapsed,
+			millis(all, 0.50), millis(all, 0.99), millis(all, 1.0), outOfOrder);
+
+		this.connections = connections;
+		return complete && outOfOrder == 0 && delivered == expected;
+	}
+
+	private boolean timeouts(ManualClock clock, PrintStream out) throws InterruptedException {
+		// silent clients read everything but never answer, they must be dropped after the PING timeout
+		CountDownLatch ready = new CountDownLatch(silentClients);
+		CountDownLatch pinged = new CountDownLatch(silentClients);
+		CountDownLatch dropped = new CountDownLatch(silentClients);
+		for (int i = 0; i < silentClients; i++) {
+			Transport transport = pipe("silent-" + i);
+			Thread.startVirtualThread(() -> readSilently(transport, ready, pinged, dropped));
+		}
+		// a first round trip on every connection: all of them are known to the timer wheel before the clock moves
+		if (!ready.await(timeoutMillis, TimeUnit.MILLISECONDS)
+				|| !await(connections.stream().map(connection -> connection.requestTagged("CHANLIST")).toList(), out, "sync")) {
+			out.println("timeouts: connections not ready");
+			return false;
+		}
+
+		clock.advance(IDLE_TIMEOUT_MILLIS);
+		boolean ok = Server.getTimers().awaitIdle(timeoutMillis);
+		ok &= pinged.await(timeoutMillis, TimeUnit.MILLISECONDS);
+		// answered PING, and a round trip proves each active client is still served
+		ok &= await(connections.stream().map(connection -> connection.requestTagged("CHANLIST")).toList(), out, "sync");
+
+		clock.advance(PING_TIMEOUT_MILLIS);
+		ok &= Server.getTimers().awaitIdle(timeoutMillis);
+		ok &= dropped.await(timeoutMillis, TimeUnit.MILLISECONDS);
+		long stillConnected = connections.stream().filter(ClientConnection::isConnected).count();
+		ok &= await(connections.stream().map(connection -> connection.requestTagged("CHANLIST")).toList(), out, "sync");
+
+		out.printf("timeouts: clock moved %d s, %d/%d silent clients dropped after PING, %d/%d active clients still connected%n",
+			TimeUnit.MILLISECONDS.toSeconds(IDLE_TIMEOUT_MILLIS + PING_TIMEOUT_MILLIS),
+			silentClients - dropped.getCount(), silentClients, stillConnected, connections.size());
+		for (ClientConnection connection : connections) {
+			connection.close();
+		}
+		return ok && stillConnected == connections.size();
+	}
+
+	private static void readSilently(Transport transport, CountDownLatch ready, CountDownLatch pinged, CountDownLatch dropped) {
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(transport.getInputStream(), StandardCharsets.UTF_8))) {
+			transport.getOutputStream().write("PING\n".getBytes(StandardCharsets.UTF_8));
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.equals("PONG")) {
+					ready.countDown();
+				} else if (line.equals("PING")) {
+					pinged.countDown();
+				}
+			}
+		} catch (IOException ignored) {
+		}
+		dropped.countDown();
+	}
+
+	/**
+	 * Creates a pipe, hands its server end to the server and returns the client end.
+	 */
+	private static Transport pipe(String name) {
+		PipeTransport[] ends = PipeTransport.pair(name);
+		Server.connect(ends[1]);
+		return ends[0];
+	}
+
+	private boolean await(List<CompletableFuture<String>> futures, PrintStream out, String what) {
+		try {
+			CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).get(timeoutMillis, TimeUnit.MILLISECONDS);
+			return true;
+		} catch (Exception e) {
+			out.println(what + " failed: " + e);
+			return false;
+		}
+	}
+
+	private static String channel(int index) {
+		return "sim" + index;
+	}
+
+	private static void delete(Path directory) throws IOException {
+		try (Stream<Path> paths = Files.walk(directory)) {
+			for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+				Files.deleteIfExists(path);
+			}
+		}
+	}
+
+	private static double millis(long[] sorted, double percentile) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int index = (int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1);
+		return sorted[Math.max(0, index)] / 1e6;
+	}
+
+	/**
+	 * Collects the messages received by one client. Called on the client's receiving thread only.
+	 */
+	private static class Receiver {
+		private final long expected;
+		private final int[] nextFromSender;
+		private final AtomicLong received = new AtomicLong();
+		private final AtomicInteger outOfOrder = new AtomicInteger();
+		private final CountDownLatch done = new CountDownLatch(1);
+		private long[] latencies = new long[64];
+
+		Receiver(int senders, long expected) {
+			this.expected = expected;
+			this.nextFromSender = new int[senders];
+			if (expected == 0) {
+				done.countDown();
+			}
+		}
+
+		void accept(String line) {
+			// RECEIVE <username> <sender> <index> <send time>
+			if (!line.startsWith("RECEIVE ")) {
+				return;
+			}
+			long now = System.nanoTime();
+			String[] parts = line.split(" ");
+			if (parts.length < 5) {
+				return;
+			}
+			int sender = Integer.parseInt(parts[parts.length - 3]);
+			int index = Integer.parseInt(parts[parts.length - 2]);
+			if (index != nextFromSender[sender]) {
+				outOfOrder.incrementAndGet();
+			}
+			nextFromSender[sender] = index + 1;
+			long count = received.incrementAndGet();
+			if (count > latencies.length) {
+				latencies = Arrays.copyOf(latencies, latencies.length * 2);
+			}
+			latencies[(int) count - 1] = now - Long.parseLong(parts[parts.length - 1]);
+			if (count == expected) {
+				done.countDown();
+			}
+		}
+
+		long[] latencies() {
+			return Arrays.copyOf(latencies, (int) received.get());
+		}
+	}
+
+	/**
+	 * Discards everything, used to silence the server logs during a run.
+	 */
+	public static PrintStream nullStream() {
+		return new PrintStream(OutputStream.nullOutputStream());
+	}
+}
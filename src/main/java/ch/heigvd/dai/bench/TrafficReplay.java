@@ -0,0 +1,295 @@
+package ch.heigvd.dai.bench;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import ch.heigvd.dai.server.TrafficCapture;
+
+/**
+ * Replays a trace recorded with {@code server --capture} against a server.
+ * Every captured connection is opened again and its lines are sent at their recorded time,
+ * scaled by the speed factor (or as fast as possible with speed 0).
+ *
+ * Commands that get a response are re-tagged ({@code @r<n>}) so the response can be matched
+ * and its latency measured; MESSAGE and PONG get no response and only count for throughput.
+ * Sessions and resume tokens of the trace are not valid on another server, so a replayed RESUME
+ * is answered with an error like it would be after the resume window.
+ */
+public class TrafficReplay {
+	private static final Set<String> REQUESTS = Set.of(
+		"JOIN", "NICK", "PRIVMSG", "CHANLIST", "USRLIST", "SEARCH", "RESUME", "QUIT", "PING", "TRACE", "PRESENCE");
+	private static final Object CLOSE = new Object();
+	private final String host;
+	private final int port;
+	private final List<TrafficCapture.Record> records;
+	private final double speed;
+	private final long timeoutMillis;
+	private final AtomicLong nextTag = new AtomicLong();
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicInteger failedConnections = new AtomicInteger();
+	private final Map<String, Long> pendingRequests = new ConcurrentHashMap<>();
+	private final Latencies latencies = new Latencies();
+	private volatile long lastWriteNanos;
+	private long maxLagNanos;
+
+	/**
+	 * @param host the server hostname or IP address
+	 * @param port the server port number
+	 * @param records the trace to replay
+	 * @param speed the replay speed: 1 for the recorded pace, N for N times faster, 0 for no pauses
+	 * @param timeoutMillis how long to wait for the last responses once every line is sent
+	 */
+	public TrafficReplay(String host, int port, List<TrafficCapture.Record> records, double speed, long timeoutMillis) {
+		this.host = host;
+		this.port = port;
+		this.records = records;
+		this.speed = speed;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Replays the trace and prints the results.
+	 *
+	 * @param out where results are printed
+	 * @return the results, as written by {@code --report} and read by {@code --baseline}
+	 */
+	public Properties run(PrintStream out) throws InterruptedException {
+		Map<Long, Connection> connections = new HashMap<>();
+		long traceNanos = records.isEmpty() ? 0 : records.get(records.size() - 1).getNanos();
+		out.printf("trace: %d events, %d connections, %.1f s recorded, replaying at %s%n",
+			records.size(), records.stream().filter(r -> r.getType() == TrafficCapture.OPEN).count(),
+			traceNanos / 1e9, speed > 0 ? speed + "x" : "maximum speed");
+
+		long start = System.nanoTime();
+		for (TrafficCapture.Record record : records) {
+			if (speed > 0) {
+				long due = start + (long) (record.getNanos() / speed);
+				long wait = due - System.nanoTime();
+				if (wait > 0) {
+					LockSupport.parkNanos(wait);
+				} else {
+					maxLagNanos = Math.max(maxLagNanos, -wait);
+				}
+			}
+			Connection connection = connections.computeIfAbsent(record.getConnection(), id -> new Connection());
+			switch (record.getType()) {
+				case TrafficCapture.LINE -> {
+					String line = retag(record.getLine());
+					if (line != null) {
+						connection.outbox.add(line);
+					}
+				}
+				case TrafficCapture.CLOSE -> connection.outbox.add(CLOSE);
+				default -> { }
+			}
+		}
+		// connections still open at the end of the capture
+		for (Connection connection : connections.values()) {
+			connection.outbox.add(CLOSE);
+		}
+		long dispatched = System.nanoTime();
+		boolean complete = true;
+		for (Connection connection : connections.values()) {
+			long remaining = timeoutMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - dispatched);
+			complete &= connection.done.await(Math.max(1, remaining), TimeUnit.MILLISECONDS);
+		}
+		for (Connection connection : connections.values()) {
+			connection.closeSocket();
+		}
+
+		long elapsed = Math.max(1, lastWriteNanos - start);
+		long[] sorted = latencies.sorted();
+		Properties results = new Properties();
+		results.setProperty("lines", Long.toString(sent.get()));
+		results.setProperty("linesPerSecond", format(sent.get() * 1e9 / elapsed));
+		results.setProperty("p50Millis", format(millis(sorted, 0.50)));
+		results.setProperty("p99Millis", format(millis(sorted, 0.99)));
+		results.setProperty("maxMillis", format(millis(sorted, 1.0)));
+		results.setProperty("unanswered", Integer.toString(pendingRequests.size()));
+		results.setProperty("failedConnections", Integer.toString(failedConnections.get()));
+
+		out.printf("replay: %d lines sent in %d ms (%s lines/s), %d lines received, max schedule lag %.1f ms%s%n",
+			sent.get(), TimeUnit.NANOSECONDS.toMillis(elapsed), results.getProperty("linesPerSecond"),
+			received.get(), maxLagNanos / 1e6, complete ? "" : ", timed out waiting for connections to close");
+		out.printf("responses: %d requests answered, %d unanswered, latency p50 %s ms p99 %s ms max %s ms, %d connections failed%n",
+			sorted.length, pendingRequests.size(), results.getProperty("p50Millis"), results.getProperty("p99Millis"),
+			results.getProperty("maxMillis"), failedConnections.get());
+		return results;
+	}
+
+	/**
+	 * Prints the difference between two replays of the same trace.
+	 *
+	 * @param baseline the results of the reference run
+	 * @param current the results of this run
+	 * @param out where the comparison is printed
+	 */
+	public static void compare(Properties baseline, Properties current, PrintStream out) {
+		for (String key : List.of("linesPerSecond", "p50Millis", "p99Millis", "maxMillis", "unanswered")) {
+			double before = Double.parseDouble(baseline.getProperty(key, "0"));
+			double after = Double.parseDouble(current.getProperty(key, "0"));
+			String change = before == 0 ? "n/a" : String.format(Locale.ROOT, "%+.1f%%", (after - before) * 100 / before);
+			out.printf("%-16s baseline %12s  current %12s  %s%n", key, format(before), format(after), change);
+		}
+	}
+
+	/**
+	 * Replaces the tag of a command expecting a response by a replay tag.
+	 * The send time is taken later, when the line is actually written.
+	 *
+	 * @return the line to send, or null for COMPRESS: the replay reads plain lines only
+	 */
+	private String retag(String line) {
+		String command = line;
+		if (command.startsWith("@")) {
+			int space = command.indexOf(' ');
+			command = space > 0 ? command.substring(space + 1) : "";
+		}
+		String[] parts = command.split(" ", 2);
+		String name = parts[0].toUpperCase(Locale.ROOT);
+		if (name.equals("COMPRESS")) {
+			return null;
+		}
+		// HISTORY without argument is answered with bare RECEIVE lines, not a tagged response
+		if (REQUESTS.contains(name) || name.equals("HISTORY") && parts.length > 1) {
+			return "@r" + nextTag.incrementAndGet() + " " + command;
+		}
+		return command;
+	}
+
+	private static String format(double value) {
+		return String.format(Locale.ROOT, "%.2f", value);
+	}
+
+	private static double millis(long[] sorted, double percentile) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int index = (int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1);
+		return sorted[Math.max(0, index)] / 1e6;
+	}
+
+	/**
+	 * One replayed connection: lines are queued by the dispatcher and written by
+	 * a dedicated thread, so a slow connection never delays the others.
+	 */
+	private class Connection {
+		private final BlockingQueue<Object> outbox = new LinkedBlockingQueue<>();
+		private final CountDownLatch done = new CountDownLatch(1);
+		private final Socket socket = new Socket();
+		private final AtomicInteger outstanding = new AtomicInteger();
+
+		Connection() {
+			Thread.startVirtualThread(this::writeLoop);
+		}
+
+		private void writeLoop() {
+			try {
+				socket.connect(new InetSocketAddress(host, port), (int) timeoutMillis);
+				Thread.startVirtualThread(this::readLoop);
+				BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+				while (true) {
+					Object next = outbox.take();
+					if (next == CLOSE) {
+						writer.flush();
+						// the recorded client got its answers before closing, so wait for them too
+						long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+						while (outstanding.get() > 0 && System.nanoTime() < deadline) {
+							Thread.sleep(1);
+						}
+						socket.shutdownOutput();
+						return;
+					}
+					String line = (String) next;
+					if (line.startsWith("@r")) {
+						outstanding.incrementAndGet();
+						pendingRequests.put(line.substring(1, line.indexOf(' ')), System.nanoTime());
+					}
+					writer.write(line);
+					writer.write('\n');
+					if (outbox.isEmpty()) {
+						writer.flush();
+					}
+					sent.incrementAndGet();
+					lastWriteNanos = System.nanoTime();
+				}
+			} catch (IOException e) {
+				failedConnections.incrementAndGet();
+				closeSocket();
+				done.countDown();
+			} catch (InterruptedException e) {
+				closeSocket();
+				done.countDown();
+			}
+		}
+
+		private void readLoop() {
+			try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+				String line;
+				while ((line = in.readLine()) != null) {
+					received.incrementAndGet();
+					if (line.startsWith("@r")) {
+						int space = line.indexOf(' ');
+						Long sentAt = pendingRequests.remove(line.substring(1, space > 0 ? space : line.length()));
+						if (sentAt != null) {
+							latencies.add(System.nanoTime() - sentAt);
+							outstanding.decrementAndGet();
+						}
+					}
+				}
+			} catch (IOException ignored) {
+			}
+			done.countDown();
+		}
+
+		private void closeSocket() {
+			try {
+				socket.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	/**
+	 * Response latencies, recorded from many reader threads.
+	 */
+	private static class Latencies {
+		private long[] values = new long[1024];
+		private int size;
+
+		synchronized void add(long nanos) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = nanos;
+		}
+
+		synchronized long[] sorted() {
+			long[] sorted = Arrays.copyOf(values, size);
+			Arrays.sort(sorted);
+			return sorted;
+		}
+	}
+}
@@ -1,8 +1,16 @@
 package ch.heigvd.dai.client;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
@@ -11,13 +19,19 @@ import java.util.concurrent.CopyOnWriteArrayList;
  */
 public class Client {
 	private final ClientUI ui;
-	private final List<String> messages;
+	private final Scrollback messages;
 	private final List<String> channels;
 	private final ClientConnection connection;
-	private boolean running;
-	private String currentChannel;
-	private String currentUsername;
+	private final HistoryCache historyCache;
+	private volatile boolean running;
+	// written by the reconnecting thread, read by the UI thread
+	private volatile String currentChannel;
+	private volatile String currentUsername;
+	private volatile String resumeToken;
+	private final AtomicBoolean reconnecting = new AtomicBoolean();
 	private static final long RESPONSE_TIMEOUT_MS = 5000;
+	private static final long RECONNECT_MIN_DELAY_MS = 500;
+	private static final long RECONNECT_MAX_DELAY_MS = 30000;
 
 	/**
 	 * Creates a new client instance.
@@ -27,19 +41,36 @@ public class Client {
 	 * @throws RuntimeException if UI initialization fails
 	 */
 	public Client(String host, int port) {
+		this(host, port, ClientUI.DEFAULT_FPS, Scrollback.DEFAULT_CAPACITY, HistoryCache.defaultRoot(), false);
+	}
+
+	/**
+	 * Creates a new client instance.
+	 * 
+	 * @param host the server hostname or IP address
+	 * @param port the server port number
+	 * @param fps the maximum number of screen refreshes per second for incoming messages
+	 * @param scrollbackCapacity the maximum number of messages kept on screen
+	 * @param cacheDirectory the directory where channel histories are cached
+	 * @param compress true to ask the server to compress large batches, e.g. history catch-up
+	 * @throws RuntimeException if UI initialization fails
+	 */
+	public Client(String host, int port, int fps, int scrollbackCapacity, Path cacheDirectory, boolean compress) {
 		try {
-			ui = new ClientUI();
+			ui = new ClientUI(fps);
 		} catch (IOException e) {
 			throw new RuntimeException("failed to initialize UI: " + e.getMessage(), e);
 		}
-		messages = new CopyOnWriteArrayList<>();
+		messages = new Scrollback(scrollbackCapacity);
 		channels = new CopyOnWriteArrayList<>();
 		connection = new ClientConnection(host, port);
+		connection.setCompression(compress);
+		historyCache = new HistoryCache(cacheDirectory, host, port);
 	}
 
 	/**
 	 * Processes user input and routes it to the appropriate handler.
-	 * Supports slash commands (/join, /nick, /usrlist, /chanlist, /exit) and regular messages.
+	 * Supports slash commands (/join, /nick, /msg, /search, /usrlist, /chanlist, /trace, /exit) and regular messages.
 	 * 
 	 * @param input the user input string to process
 	 */
@@ -74,6 +105,23 @@ public class Client {
 					handleNick(splitmsg[1]);
 					break;
 				}
+				case "msg": {
+					String[] parts = splitmsg.length < 2 ? new String[0] : splitmsg[1].split(" ", 2);
+					if (parts.length != 2) {
+						messages.add("/msg: incorrect format. Please use /msg <username> <message>");
+						return;
+					}
+					handlePrivMsg(parts[0], parts[1]);
+					break;
+				}
+				case "search": {
+					if (splitmsg.length < 2 || splitmsg[1].isBlank()) {
+						messages.add("/search: incorrect format. Please use /search <words> [LIMIT n]");
+						return;
+					}
+					handleSearch(splitmsg[1]);
+					break;
+				}
 				case "usrlist": {
 					handleUsrList();
 					break;
@@ -82,6 +130,15 @@ public class Client {
 					handleChanList();
 					break;
 				}
+				case "trace": {
+					String mode = splitmsg.length < 2 ? "" : splitmsg[1].trim().toLowerCase();
+					if (!mode.isEmpty() && !mode.equals("on") && !mode.equals("off")) {
+						messages.add("/trace: incorrect format. Please use /trace [on|off]");
+						return;
+					}
+					handleTrace(mode.isEmpty() ? connection.getLatencyTracker() == null : mode.equals("on"));
+					break;
+				}
 				default: {
 					messages.add("slash command \"" + command + "\" not found.");
 					break;
@@ -109,25 +166,36 @@ public class Client {
 	 * @param username the username to use in the channel
 	 */
 	private void handleJoin(String channel, String username) {
-		if (!connection.send("JOIN " + channel + " " + username)) {
+		CompletableFuture<String> pending = connection.requestTagged("JOIN " + channel + " " + username);
+		if (pending.isCompletedExceptionally()) {
 			messages.add("Error: failed to send JOIN command. Connection may be lost.");
 			return;
 		}
 
 		try {
-			String response = connection.waitForCommandResponse(RESPONSE_TIMEOUT_MS, this::handleServerMessage);
+			String response = connection.await(pending, RESPONSE_TIMEOUT_MS);
 			
 			if (response == null) {
 				messages.add("Error: timeout waiting for server response");
 				return;
 			}
 			
-			if (response.equals("OK")) {
+			if (response.equals("OK") || response.startsWith("OK ")) {
+				// the token lets us resume the session if the connection drops
+				String[] ok = response.split(" ");
+				resumeToken = ok.length >= 2 ? ok[1] : null;
+
 				// clear previous messages when switching channels
 				messages.clear();
 				currentChannel = channel;
 				currentUsername = username;
 				messages.add("joined channel: " + channel + " as " + username);
+
+				// fill the screen from the local cache, only the missing messages are downloaded
+				List<String> cached = historyCache.load(channel);
+				for (String entry : cached) {
+					showEntry(entry);
+				}
 				
 				// refresh channel list to include the newly joined channel
 				requestChannelListSilent();
@@ -135,9 +203,8 @@ public class Client {
 				// update UI to show cleared messages and updated channel list
 				ui.render(channels, messages);
 				
-				// request message history for the new channel
-				// history messages will arrive as RECEIVE broadcasts and update the UI automatically
-				requestHistory();
+				// request the messages sent since the last cached one
+				requestHistory(channel, cached.size());
 			} else if (response.startsWith("ERROR")) {
 				String[] parts = response.split(" ");
 				if (parts.length >= 2) {
@@ -148,7 +215,7 @@ public class Client {
 								messages.add("Error: channel does not exist");
 								break;
 							case 2:
-								messages.add("Error: username already taken in this channel");
+								messages.add("Error: username already taken");
 								break;
 							default:
 								messages.add("Error: " + response);
@@ -180,13 +247,14 @@ public class Client {
 			return;
 		}
 		
-		if (!connection.send("NICK " + newUsername)) {
+		CompletableFuture<String> pending = connection.requestTagged("NICK " + newUsername);
+		if (pending.isCompletedExceptionally()) {
 			messages.add("Error: failed to send NICK command. Connection may be lost.");
 			return;
 		}
 
 		try {
-			String response = connection.waitForCommandResponse(RESPONSE_TIMEOUT_MS, this::handleServerMessage);
+			String response = connection.await(pending, RESPONSE_TIMEOUT_MS);
 			
 			if (response == null) {
 				messages.add("Error: timeout waiting for server response");
@@ -203,7 +271,7 @@ public class Client {
 						int errorCode = Integer.parseInt(parts[1]);
 						switch (errorCode) {
 							case 1:
-								messages.add("Error: username already taken in this channel");
+								messages.add("Error: username already taken");
 								break;
 							default:
 								messages.add("Error: " + response);
@@ -223,23 +291,144 @@ public class Client {
 		}
 	}
 
+	/**
+	 * Handles the PRIVMSG command to send a direct message to one user,
+	 * whatever channel that user is in.
+	 * Requires the client to be joined to a channel first.
+	 * 
+	 * @param recipient the username of the recipient
+	 * @param text the message to send
+	 */
+	private void handlePrivMsg(String recipient, String text) {
+		if (currentChannel == null) {
+			messages.add("Error: you must join a channel first using /join <channel> <username>");
+			return;
+		}
+
+		CompletableFuture<String> pending = connection.requestTagged("PRIVMSG " + recipient + " " + text);
+		if (pending.isCompletedExceptionally()) {
+			messages.add("Error: failed to send PRIVMSG command. Connection may be lost.");
+			return;
+		}
+
+		try {
+			String response = connection.await(pending, RESPONSE_TIMEOUT_MS);
+
+			if (response == null) {
+				messages.add("Error: timeout waiting for server response");
+			} else if (response.equals("OK")) {
+				messages.add("(you -> " + recipient + ") " + text);
+			} else if (response.equals("ERROR 1")) {
+				messages.add("Error: no user named " + recipient);
+			} else {
+				messages.add("Error: " + response);
+			}
+		} catch (InterruptedException e) {
+			messages.add("Error: interrupted while waiting for response");
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Handles the SEARCH command to find the messages of the current channel
+	 * containing all the given words, without downloading the whole history.
+	 * Requires the client to be joined to a channel first.
+	 * 
+	 * @param query the words to search, optionally followed by LIMIT n
+	 */
+	private void handleSearch(String query) {
+		if (currentChannel == null) {
+			messages.add("Error: you must join a channel first using /join <channel> <username>");
+			return;
+		}
+
+		CompletableFuture<String> pending = connection.requestTagged("SEARCH " + query);
+		if (pending.isCompletedExceptionally()) {
+			messages.add("Error: failed to send SEARCH command. Connection may be lost.");
+			return;
+		}
+
+		try {
+			String response = connection.await(pending, RESPONSE_TIMEOUT_MS);
+
+			if (response == null) {
+				messages.add("Error: timeout waiting for server response");
+			} else if (response.startsWith("SEARCH")) {
+				// Format: SEARCH <count>, followed by count RECEIVE lines
+				String[] lines = response.split("\n");
+				messages.add("search \"" + query + "\": " + (lines.length - 1) + " result(s)");
+				for (int i = 1; i < lines.length; i++) {
+					String[] parts = lines[i].split(" ", 3);
+					if (parts.length >= 3) {
+						messages.add("  " + parts[1] + ": " + parts[2]);
+					}
+				}
+			} else {
+				messages.add("Error: " + response);
+			}
+		} catch (InterruptedException e) {
+			messages.add("Error: interrupted while waiting for response");
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Turns trace mode on or off. In trace mode the last line of the message area shows
+	 * rolling latency percentiles of the messages received.
+	 *
+	 * @param enabled true to turn trace mode on
+	 */
+	private void handleTrace(boolean enabled) {
+		CompletableFuture<Boolean> pending = connection.setTracing(enabled);
+		try {
+			Boolean accepted = pending.get(RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			if (!accepted) {
+				messages.add("Error: the server does not support trace mode");
+				return;
+			}
+		} catch (InterruptedException e) {
+			messages.add("Error: interrupted while waiting for response");
+			Thread.currentThread().interrupt();
+			return;
+		} catch (ExecutionException e) {
+			messages.add("Error: failed to send TRACE command. Connection may be lost.");
+			return;
+		} catch (TimeoutException e) {
+			messages.add("Error: timeout waiting for server response");
+			return;
+		}
+		LatencyTracker tracker = connection.getLatencyTracker();
+		ui.setStatusLine(tracker != null ? tracker::summary : null);
+		messages.add(enabled
+			? "trace mode on: latencies of the messages received are shown on the last line"
+			: "trace mode off");
+	}
+
 	/**
 	 * Handles the USRLIST command to retrieve the list of users in the current channel.
 	 * Requires the client to be joined to a channel first.
+	 * The list pushed by the server is used when it is up to date, the server is only asked otherwise.
 	 */
 	private void handleUsrList() {
 		if (currentChannel == null) {
 			messages.add("Error: you must join a channel first using /join <channel> <username>");
 			return;
 		}
+
+		PresenceView presence = connection.getPresence();
+		if (presence != null && presence.isSynced()) {
+			showUsers(presence.getMembers());
+			return;
+		}
 		
-		if (!connection.send("USRLIST")) {
+		CompletableFuture<String> pending = connection.requestTagged("USRLIST");
+		if (pending.isCompletedExceptionally()) {
 			messages.add("Error: failed to send USRLIST command. Connection may be lost.");
 			return;
 		}
 
 		try {
-			String response = connection.waitForCommandResponse(RESPONSE_TIMEOUT_MS, this::handleServerMessage);
+			String response = connection.await(pending, RESPONSE_TIMEOUT_MS);
 			
 			if (response == null) {
 				messages.add("Error: timeout waiting for server response");
@@ -248,16 +437,7 @@ public class Client {
 			
 			if (response.startsWith("USRLIST")) {
 				String[] parts = response.split(" ");
-				if (parts.length > 1) {
-					StringBuilder userList = new StringBuilder("Users in channel: ");
-					for (int i = 1; i < parts.length; i++) {
-						if (i > 1) userList.append(", ");
-						userList.append(parts[i]);
-					}
-					messages.add(userList.toString());
-				} else {
-					messages.add("no users in channel");
-				}
+				showUsers(Arrays.asList(parts).subList(1, parts.length));
 			} else {
 				messages.add("unexpected response: " + response);
 			}
@@ -268,24 +448,99 @@ public class Client {
 	}
 
 	/**
-	 * Requests the message history for the current channel from the server.
-	 * The server will respond with multiple RECEIVE messages, one for each messages in history.
-	 * These messages will be automatically processed by the background message handler.
-	 * Requires the client to be joined to a channel first.
+	 * Displays the members of the current channel.
+	 *
+	 * @param users the usernames
 	 */
-	private void requestHistory() {
-		if (currentChannel == null) {
-			// Should not happen, but check anyway
-			return;
+	private void showUsers(List<String> users) {
+		if (users.isEmpty()) {
+			messages.add("no users in channel");
+		} else {
+			messages.add("Users in channel: " + String.join(", ", users));
 		}
+	}
 
-		if (!connection.send("HISTORY")) {
+	/**
+	 * Requests the messages of a channel sent after the given sequence number.
+	 * The response is handled asynchronously: the missing messages are appended to
+	 * the local cache and displayed when they arrive.
+	 *
+	 * @param channel the channel the history belongs to
+	 * @param since the sequence number of the last message already known
+	 */
+	private void requestHistory(String channel, int since) {
+		CompletableFuture<String> pending = connection.requestTagged("HISTORY " + since);
+		if (pending.isCompletedExceptionally()) {
 			messages.add("Error: failed to send HISTORY command. Connection may be lost.");
 			return;
 		}
 
-		// history messages will arrive as RECEIVE broadcasts and be handled automatically
-		// by the background thread handleServerMessage
+		pending.thenAccept(response -> {
+			handleHistory(channel, since, response);
+			ui.updateMessageArea(messages);
+		});
+	}
+
+	/**
+	 * Handles a HISTORY response: a {@code HISTORY <head> <count>} header followed
+	 * by {@code count} RECEIVE lines.
+	 * If the server knows fewer messages than the cache, its history was reset: the server
+	 * then sends its whole history and the cache is rebuilt from it.
+	 *
+	 * @param channel the channel the history belongs to
+	 * @param since the sequence number sent in the request
+	 * @param response the response of the server
+	 */
+	private void handleHistory(String channel, int since, String response) {
+		String[] lines = response.split("\n");
+		String[] header = lines[0].split(" ");
+		if (header.length < 3 || !header[0].equals("HISTORY")) {
+			messages.add("unexpected response: " + lines[0]);
+			return;
+		}
+
+		int head;
+		try {
+			head = Integer.parseInt(header[1]);
+		} catch (NumberFormatException e) {
+			messages.add("unexpected response: " + lines[0]);
+			return;
+		}
+
+		boolean current = channel.equals(currentChannel);
+		if (head < since) {
+			historyCache.reset(channel);
+			if (current) {
+				messages.clear();
+				messages.add("history of " + channel + " changed on the server, reloading it");
+			}
+		}
+
+		List<String> entries = new ArrayList<>(lines.length - 1);
+		for (int i = 1; i < lines.length; i++) {
+			if (lines[i].startsWith("RECEIVE ")) {
+				entries.add(lines[i].substring("RECEIVE ".length()));
+			}
+		}
+		historyCache.append(channel, entries);
+
+		if (current) {
+			for (String entry : entries) {
+				showEntry(entry);
+			}
+		}
+	}
+
+	/**
+	 * Displays a history entry in the {@code <username> <message>} format.
+	 *
+	 * @param entry the history entry
+	 */
+	private void showEntry(String entry) {
+		String[] parts = entry.split(" ", 2);
+		if (parts.length == 2) {
+			messages.add(parts[0] + ": " + parts[1]);
+		}
 	}
 
 	/**
@@ -294,13 +549,14 @@ public class Client {
 	 * Used during initialization to populate the channel list.
 	 */
 	private void requestChannelListSilent() {
-		if (!connection.send("CHANLIST")) {
+		CompletableFuture<String> pending = connection.requestTagged("CHANLIST");
+		if (pending.isCompletedExceptionally()) {
 			// Silent failure - don't add to messages
 			return;
 		}
 
 		try {
-			String response = connection.waitForCommandResponse(RESPONSE_TIMEOUT_MS, this::handleServerMessage);
+			String response = connection.await(pending, RESPONSE_TIMEOUT_MS);
 			
 			if (response != null && response.startsWith("CHANLIST")) {
 				String[] parts = response.split(" ");
@@ -321,13 +577,14 @@ public class Client {
 	 * Updates the local channel list with the server's response and displays it in the message box.
 	 */
 	private void handleChanList() {
-		if (!connection.send("CHANLIST")) {
+		CompletableFuture<String> pending = connection.requestTagged("CHANLIST");
+		if (pending.isCompletedExceptionally()) {
 			messages.add("Error: failed to send CHANLIST command. Connection may be lost.");
 			return;
 		}
 
 		try {
-			String response = connection.waitForCommandResponse(RESPONSE_TIMEOUT_MS, this::handleServerMessage);
+			String response = connection.await(pending, RESPONSE_TIMEOUT_MS);
 			
 			if (response == null) {
 				messages.add("Error: timeout waiting for server response");
@@ -359,12 +616,28 @@ public class Client {
 
 	/**
 	 * Initializes and starts the client.
-	 * Connects to the server, sets up the UI, and starts the message receiving thread.
+	 * Connects to the server, sets up the UI, and registers the broadcast listener.
 	 * Enters the main input loop to process user commands and messages.
 	 */
 	public void init() {
 		running = true;
-		
+
+		// broadcasts are routed here by the connection, command responses never are
+		connection.setBroadcastListener(msg -> {
+			handleServerMessage(msg);
+			ui.updateMessageArea(messages);
+		});
+		connection.setDisconnectListener(() -> {
+			if (!running) {
+				return;
+			}
+			messages.add("connection lost, reconnecting...");
+			ui.updateMessageArea(messages);
+			if (reconnecting.compareAndSet(false, true)) {
+				Thread.startVirtualThread(this::reconnect);
+			}
+		});
+
 		if (!connection.connect()) {
 			messages.add("Error: failed to connect to server. Please check the host and port.");
 			cleanup();
@@ -374,69 +647,31 @@ public class Client {
 		// Request channel list silently during initialization
 		requestChannelListSilent();
 
+		// the member list is then pushed by the server, /usrlist needs no round trip
+		connection.setPresence(true);
+
 		// Render UI with the fetched channel list
 		ui.render(channels, messages);
 
-		Thread.startVirtualThread(() -> {
+		try {
 			while (running) {
-				try {
-					String msg = connection.waitForResponse(100);
-					if (msg != null) {
-						// only process broadcasts, not command responses
-						// command responses are handled by waitForCommandResponse
-						if (isBroadcast(msg)) {
-							handleServerMessage(msg);
-							ui.updateMessageArea(messages);
-						} else {
-							// this is a command response, put it back in the queue
-							// so waitForCommandResponse can handle it
-							connection.putBack(msg);
-						}
-					}
-				} catch (InterruptedException e) {
+				String input = ui.readLine();
+				if (input == null) {
 					break;
 				}
-			}
-		});
-
-		Scanner scanner = new Scanner(System.in);
-		String currentInput = "";
-		int cursorPos = 0;
-
-		try {
-			while (running) {
-				ui.setCurrentInput(currentInput, cursorPos);
-				System.out.print("\033[" + ui.getTerminal().getHeight() + ";3H");
-
-				String input = scanner.nextLine();
 
 				handleInput(input);
 
 				ui.render(channels, messages);
-				currentInput = "";
-				cursorPos = 0;
 			}
 		} finally {
-			scanner.close();
 			cleanup();
 		}
 	}
 
-	/**
-	 * Checks if a message is a broadcast message (as opposed to a command response).
-	 * Broadcasts are RECEIVE and JOINED messages sent by the server.
-	 * Command responses are OK, ERROR, USRLIST, and CHANLIST.
-	 * 
-	 * @param msg the message to check
-	 * @return true if the message is a broadcast, false otherwise
-	 */
-	private boolean isBroadcast(String msg) {
-		return msg.startsWith("RECEIVE") || msg.startsWith("JOINED");
-	}
-
 	/**
 	 * Handles incoming server broadcast messages.
-	 * Processes RECEIVE (chat messages) and JOINED (user join notifications) messages.
+	 * Processes RECEIVE (chat messages), PRIVMSG (direct messages), JOINED and QUIT (presence notifications) messages.
 	 * 
 	 * @param msg the broadcast message from the server
 	 */
@@ -449,14 +684,115 @@ public class Client {
 			} else {
 				messages.add("malformed RECEIVE message: " + msg);
 			}
-		} else if (msg.startsWith("JOINED")) {
-			// Format: JOINED <username>
-			String[] parts = msg.split(" ", 2);
-			if (parts.length >= 2) {
-				messages.add(parts[1] + " joined the channel");
+		} else if (msg.startsWith("PRIVMSG")) {
+			// Format: PRIVMSG <username> <message>
+			String[] parts = msg.split(" ", 3);
+			if (parts.length >= 3) {
+				messages.add("(" + parts[1] + " -> you) " + parts[2]);
 			} else {
-				messages.add("malformed JOINED message: " + msg);
+				messages.add("malformed PRIVMSG message: " + msg);
 			}
+		} else if (msg.startsWith("JOINED")) {
+			// Format: JOINED <username> [<username> ...]
+			showPresence(msg, "joined the channel");
+		} else if (msg.startsWith("QUIT")) {
+			// Format: QUIT <username> [<username> ...]
+			showPresence(msg, "left the channel");
+		}
+	}
+
+	/**
+	 * Displays a presence event. The server batches the events of busy channels,
+	 * so a line may carry many usernames, possibly including our own.
+	 * Large batches are summarized in a single line.
+	 *
+	 * @param msg the JOINED or QUIT message from the server
+	 * @param action the text describing the event
+	 */
+	private void showPresence(String msg, String action) {
+		String[] parts = msg.split(" ");
+		if (parts.length < 2) {
+			messages.add("malformed message: " + msg);
+			return;
+		}
+		List<String> usernames = new ArrayList<>(parts.length - 1);
+		for (int i = 1; i < parts.length; i++) {
+			if (!parts[i].equals(currentUsername)) {
+				usernames.add(parts[i]);
+			}
+		}
+		if (usernames.size() > 3) {
+			messages.add(usernames.size() + " users " + action);
+		} else {
+			for (String username : usernames) {
+				messages.add(username + " " + action);
+			}
+		}
+	}
+
+	/**
+	 * Reconnects to the server after the connection was lost.
+	 * Attempts are spaced with an exponential backoff and a random jitter, so that
+	 * thousands of clients dropped at the same time do not reconnect at the same time.
+	 */
+	private void reconnect() {
+		long delay = RECONNECT_MIN_DELAY_MS;
+		try {
+			while (running) {
+				Thread.sleep(ThreadLocalRandom.current().nextLong(delay / 2, delay + 1));
+				if (connection.connect()) {
+					reconnecting.set(false);
+					messages.add("reconnected to server");
+					resumeSession();
+					ui.updateMessageArea(messages);
+					return;
+				}
+				delay = Math.min(delay * 2, RECONNECT_MAX_DELAY_MS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		reconnecting.set(false);
+	}
+
+	/**
+	 * Restores the channel and username after a reconnection.
+	 * The session is resumed with its token when the server still has it, in which case
+	 * the server only sends the messages after the last one received or sent, in the body of its
+	 * {@code OK <token> <channel> <username> <head> <count>} response, so they are told apart
+	 * from the live messages that follow. Otherwise the channel
+	 * is joined again, which resynchronizes the history from the local cache.
+	 */
+	private void resumeSession() {
+		String token = resumeToken;
+		if (token != null) {
+			try {
+				String response = connection.await(connection.requestTagged("RESUME " + token + " " + connection.getLastSequence()), RESPONSE_TIMEOUT_MS);
+				String[] lines = response != null ? response.split("\n") : new String[] {""};
+				String[] parts = lines[0].split(" ");
+				if (parts.length >= 4 && parts[0].equals("OK")) {
+					resumeToken = parts[1];
+					currentChannel = parts[2];
+					currentUsername = parts[3];
+					messages.add("session resumed in " + currentChannel + " as " + currentUsername
+						+ " (" + (lines.length - 1) + " missed message(s))");
+					for (int i = 1; i < lines.length; i++) {
+						if (lines[i].startsWith("RECEIVE ")) {
+							showEntry(lines[i].substring("RECEIVE ".length()));
+						}
+					}
+					return;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+
+		resumeToken = null;
+		requestChannelListSilent();
+		if (currentChannel != null) {
+			handleJoin(currentChannel, currentUsername);
 		}
 	}
 
@@ -465,6 +801,15 @@ public class Client {
 	 * Called when the client is shutting down.
 	 */
 	private void cleanup() {
+		if (connection.isConnected()) {
+			// leave explicitly, otherwise the server keeps the session and username for resumption
+			try {
+				connection.await(connection.requestTagged("QUIT"), 1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
 		connection.close();
+		ui.close();
 	}
 }
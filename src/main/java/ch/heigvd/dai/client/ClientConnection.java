@@ -1,52 +1,164 @@
 package ch.heigvd.dai.client;
 
 import java.io.*;
-import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import ch.heigvd.dai.transport.SocketTransport;
+import ch.heigvd.dai.transport.Transport;
 
 /**
- * Manages the TCP connection to the CHCH chat server.
- * Handles sending messages, receiving responses, and managing the message queue.
+ * Manages the connection to the CHCH chat server, over TCP or any other {@link Transport}.
+ * Outgoing lines are queued and written by a dedicated thread, so sending never blocks
+ * the caller and bursts are flushed to the transport together.
+ * Every incoming line is routed exactly once:
+ * every request is tagged and its response completes the request carrying the same tag,
+ * untagged responses answer no request and are dropped, everything
+ * else (RECEIVE, JOINED, QUIT, ...) is handed to the broadcast listener.
+ *
+ * In trace mode ({@link #setTracing(boolean)}), messages are stamped with their send time and
+ * the stamps the server adds to received messages are collected by a {@link LatencyTracker}.
+ * With {@link #setCompression(boolean)}, large batches sent by the server arrive compressed
+ * and are decompressed by a {@link FrameReader}.
+ * With {@link #setPresence(boolean)}, the members of the channel are kept in a {@link PresenceView}
+ * from the snapshot and deltas pushed by the server, and a new snapshot is requested when a delta is missed.
+ * The sequence number of the last message of the channel received or sent is tracked from the head
+ * given with the {@code OK} of JOIN and RESUME, so that a session can be resumed right after it.
  */
 public class ClientConnection {
-	private final String host;
-	private final int port;
-	private Socket socket;
-	private BufferedReader reader;
-	private BufferedWriter writer;
-	private final BlockingQueue<String> inbox;
+	private static final int DEFAULT_OUTBOX_CAPACITY = 65536;
+	private static final int MAX_WRITE_BATCH = 1024;
+	private final Transport.Connector connector;
+	private volatile Transport transport;
+	private final Object writeLock = new Object();
+	private final BlockingQueue<String> outbox;
+	private final Map<String, CompletableFuture<String>> tagged;
+	private final AtomicLong nextTag;
+	// last message of the channel received or sent, see getLastSequence()
+	private final AtomicInteger lastSequence;
+	private volatile Consumer<String> broadcastListener;
+	private volatile Runnable disconnectListener;
+	// not null in trace mode
+	private volatile LatencyTracker latencyTracker;
+	// not null when subscribed to the presence of the channel
+	private volatile PresenceView presence;
+	private volatile boolean compression;
 	private volatile boolean running;
+	private volatile boolean closed;
 	private Thread receiveThread;
+	private Thread sendThread;
 
 	/**
 	 * Creates a new client connection instance.
-	 * 
+	 *
 	 * @param host the server hostname or IP address
 	 * @param port the server port number
 	 */
 	public ClientConnection(String host, int port) {
-		this.host = host;
-		this.port = port;
-		this.inbox = new LinkedBlockingQueue<>();
+		this(host, port, DEFAULT_OUTBOX_CAPACITY);
+	}
+
+	/**
+	 * Creates a new client connection instance over a custom transport.
+	 *
+	 * @param connector opens a new transport on every connection attempt
+	 */
+	public ClientConnection(Transport.Connector connector) {
+		this(connector, DEFAULT_OUTBOX_CAPACITY);
+	}
+
+	/**
+	 * Creates a new client connection instance with a bounded outgoing queue.
+	 *
+	 * @param host the server hostname or IP address
+	 * @param port the server port number
+	 * @param outboxCapacity the maximum number of lines waiting to be written
+	 */
+	public ClientConnection(String host, int port, int outboxCapacity) {
+		this(SocketTransport.connector(host, port), outboxCapacity);
+	}
+
+	/**
+	 * Creates a new client connection instance over a custom transport,
+	 * e.g. an in-memory pipe to a server running in the same JVM.
+	 *
+	 * @param connector opens a new transport on every connection attempt
+	 * @param outboxCapacity the maximum number of lines waiting to be written
+	 */
+	public ClientConnection(Transport.Connector connector, int outboxCapacity) {
+		this.connector = connector;
+		this.outbox = new LinkedBlockingQueue<>(outboxCapacity);
+		this.tagged = new ConcurrentHashMap<>();
+		this.nextTag = new AtomicLong();
+		this.lastSequence = new AtomicInteger();
+		this.broadcastListener = msg -> {};
+		this.disconnectListener = () -> {};
 		this.running = false;
 	}
 
 	/**
-	 * Connects to the server.
-	 * 
+	 * Sets the callback invoked for every broadcast received from the server.
+	 * The callback runs on the receiving thread, so it should not block for long.
+	 *
+	 * @param listener the broadcast handler
+	 */
+	public void setBroadcastListener(Consumer<String> listener) {
+		this.broadcastListener = listener != null ? listener : msg -> {};
+	}
+
+	/**
+	 * Sets the callback invoked when the connection is lost, i.e. when it ends
+	 * without {@link #close()} being called. The callback runs on the receiving thread.
+	 *
+	 * @param listener the disconnection handler
+	 */
+	public void setDisconnectListener(Runnable listener) {
+		this.disconnectListener = listener != null ? listener : () -> {};
+	}
+
+	/**
+	 * Connects to the server. Can be called again after the connection was lost,
+	 * lines queued while disconnected are discarded.
+	 *
 	 * @return true if connection was successful, false otherwise
 	 */
 	public boolean connect() {
 		try {
-			socket = new Socket(host, port);
-			reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-			writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+			Transport newTransport = connector.connect();
+			FrameReader reader = new FrameReader(newTransport.getInputStream());
+			BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(newTransport.getOutputStream(), StandardCharsets.UTF_8));
 
+			transport = newTransport;
+			outbox.clear();
+			closed = false;
 			running = true;
-			receiveThread = Thread.startVirtualThread(this::readLoop);
+			Thread writerThread = Thread.startVirtualThread(() -> writeLoop(newTransport, writer));
+			sendThread = writerThread;
+			receiveThread = Thread.startVirtualThread(() -> readLoop(reader, writerThread));
+			if (compression) {
+				// compressed frames may follow the response right away
+				reader.acceptCompressedFrames();
+				requestTagged("COMPRESS");
+			}
+			if (latencyTracker != null) {
+				// trace mode belongs to the connection, a new one must ask again
+				requestTagged("TRACE ON");
+			}
+			if (presence != null) {
+				// so is the subscription, the snapshot replaces the list of the previous connection
+				requestTagged("PRESENCE ON");
+			}
 			return true;
 		} catch (IOException e) {
 			return false;
@@ -54,134 +166,444 @@ public class ClientConnection {
 	}
 
 	/**
-	 * Background thread loop that continuously reads messages from the server.
-	 * Adds all received messages to the inbox queue for processing.
-	 * Stops when the connection is closed or an error occurs.
+	 * Background thread loop that continuously reads messages from the server
+	 * and dispatches each of them once.
+	 * Stops when the connection is closed or an error occurs, failing every
+	 * request still waiting for a response and notifying the disconnect listener
+	 * if the connection was lost rather than closed.
+	 *
+	 * @param reader the reader of the connection
+	 * @param writerThread the thread writing to the same connection
 	 */
-	private void readLoop() {
+	private void readLoop(FrameReader reader, Thread writerThread) {
 		try {
 			while (running) {
 				String line = reader.readLine();
 				if (line == null) break;
-				inbox.add(line);
+				int bodyLines = bodyLength(line);
+				if (bodyLines > 0) {
+					// the body of a multi-line response is delivered with its header
+					StringBuilder response = new StringBuilder(line);
+					for (int i = 0; i < bodyLines; i++) {
+						String bodyLine = reader.readLine();
+						if (bodyLine == null) break;
+						response.append('\n').append(bodyLine);
+					}
+					line = response.toString();
+				}
+				dispatch(line);
 			}
-		} catch (IOException ignored) {
+		} catch (IOException | NumberFormatException ignored) {
 		} finally {
+			reader.close();
 			running = false;
+			writerThread.interrupt();
+			failPending(new IOException("connection closed"));
+			if (!closed) {
+				disconnectListener.run();
+			}
 		}
 	}
 
 	/**
-	 * Sends a message to the server.
-	 * 
-	 * @param msg the message to send
-	 * @return true if the message was sent successfully, false otherwise
+	 * Background thread loop that writes queued lines to the server.
+	 * Everything queued at the time of a write is sent with a single flush.
+	 * A write failure closes the transport, which ends the receiving thread.
+	 *
+	 * @param transport the transport of the connection
+	 * @param writer the writer of the connection
 	 */
-	public boolean send(String msg) {
-		if (writer == null) {
-			return false;
+	private void writeLoop(Transport transport, BufferedWriter writer) {
+		List<String> batch = new ArrayList<>();
+		try {
+			while (running) {
+				batch.add(outbox.take());
+				outbox.drainTo(batch, MAX_WRITE_BATCH - 1);
+				for (String line : batch) {
+					writer.write(line);
+					writer.newLine();
+				}
+				writer.flush();
+				batch.clear();
+			}
+		} catch (InterruptedException | IOException e) {
+			closeTransport(transport);
+		}
+	}
+
+	/**
+	 * Routes a line received from the server.
+	 * Trace stamps are recorded and removed first.
+	 * Tagged responses ({@code @<tag> <response>}) complete the request carrying the same tag,
+	 * untagged responses (the ERROR of a MESSAGE, ...) are dropped since no request waits for them,
+	 * PING is answered with PONG, and everything else is a broadcast.
+	 *
+	 * @param line the line received from the server
+	 */
+	private void dispatch(String line) {
+		if (line.startsWith("~")) {
+			// trace stamps of a message: "~<sent>,<received>,<fan-out>,<sequence> RECEIVE ..."
+			int space = line.indexOf(' ');
+			if (space > 1) {
+				LatencyTracker tracker = latencyTracker;
+				if (tracker != null) {
+					tracker.record(line.substring(1, space), LatencyTracker.nowMicros());
+				}
+				line = line.substring(space + 1);
+			}
 		}
+
+		if (line.equals("PING")) {
+			// keepalive from the server, answered without bothering the listener
+			send("PONG");
+			return;
+		}
+
+		if (line.startsWith("@")) {
+			int space = line.indexOf(' ');
+			if (space > 1) {
+				String response = line.substring(space + 1);
+				if (response.startsWith("OK ")) {
+					// the numbering of the messages that follow starts at the head of a JOIN or RESUME
+					trackHead(response);
+				}
+				PresenceView view = presence;
+				if (view != null && response.startsWith("PRESENCE ")) {
+					// the snapshot must be applied before the deltas that follow it
+					view.apply(response);
+				}
+				CompletableFuture<String> request = tagged.remove(line.substring(1, space));
+				if (request != null) {
+					request.complete(response);
+				}
+				return;
+			}
+		}
+
+		if (isResponse(line)) {
+			return;
+		}
+
+		if (line.startsWith("RECEIVE ")) {
+			lastSequence.incrementAndGet();
+		}
+
+		PresenceView view = presence;
+		if (view != null && line.startsWith("PRESENCE ") && !view.apply(line)) {
+			// a change was missed, the list is out of date until a new snapshot arrives
+			requestTagged("PRESENCE ON");
+		}
+
 		try {
-			writer.write(msg);
-			writer.newLine();
-			writer.flush();
-			return true;
-		} catch (IOException e) {
-			return false;
+			broadcastListener.accept(line);
+		} catch (RuntimeException e) {
+			// a faulty listener must not kill the receiving thread
 		}
 	}
 
 	/**
-	 * Non-blocking method to receive a message from the server.
-	 * Returns immediately with a message if available, or null if the queue is empty.
-	 * 
-	 * @return the next message from the server, or null if no message is available
+	 * Returns the number of lines following a response header that belong to the response.
+	 * Only {@code HISTORY <head> <count>}, {@code SEARCH <count>} and the
+	 * {@code OK <token> <channel> <username> <head> <count>} of RESUME have a body,
+	 * made of {@code count} RECEIVE lines.
+	 *
+	 * @param line the line received from the server
+	 * @return the number of body lines, 0 for single-line responses and broadcasts
 	 */
-	public String receive() {
-		return inbox.poll();
+	private static int bodyLength(String line) {
+		if (line.startsWith("@")) {
+			line = line.substring(line.indexOf(' ') + 1);
+		}
+		int countIndex;
+		if (line.startsWith("HISTORY ")) {
+			countIndex = 2;
+		} else if (line.startsWith("SEARCH ")) {
+			countIndex = 1;
+		} else if (line.startsWith("OK ")) {
+			countIndex = 5;
+		} else {
+			return 0;
+		}
+		String[] parts = line.split(" ");
+		if (countIndex == 5 && parts.length != 6) {
+			// the OK of JOIN, NICK or QUIT
+			return 0;
+		}
+		try {
+			return parts.length > countIndex ? Integer.parseInt(parts[countIndex]) : 0;
+		} catch (NumberFormatException e) {
+			return 0;
+		}
 	}
 
 	/**
-	 * Puts a message back into the inbox queue.
-	 * Used when a message was accidentally consumed but should be handled by another method.
-	 * 
-	 * @param msg the message to put back
+	 * Restarts the numbering of the messages of the channel from the head given with
+	 * {@code OK <token> <head>} (JOIN) or {@code OK <token> <channel> <username> <head> <count>} (RESUME),
+	 * whose body holds the messages up to the head.
+	 *
+	 * @param response the response, without its tag
 	 */
-	public void putBack(String msg) {
-		inbox.offer(msg);
+	private void trackHead(String response) {
+		int end = response.indexOf('\n');
+		String[] parts = (end < 0 ? response : response.substring(0, end)).split(" ");
+		int headIndex;
+		if (parts.length == 3) {
+			headIndex = 2;
+		} else if (parts.length == 6) {
+			headIndex = 4;
+		} else {
+			return;
+		}
+		try {
+			lastSequence.set(Integer.parseInt(parts[headIndex]));
+		} catch (NumberFormatException ignored) {
+		}
 	}
 
 	/**
-	 * Waits for any message from the server (command response or broadcast).
-	 * 
-	 * @param timeoutMillis Maximum time to wait in milliseconds
-	 * @return The received message, or null if timeout
-	 * @throws InterruptedException if interrupted while waiting
+	 * Returns the sequence number of the last message of the channel received or sent on this connection.
+	 * Messages sent are counted when queued, since the server does not send them back to their author.
+	 *
+	 * @return the number to give to RESUME, 0 before the first JOIN
 	 */
-	public String waitForResponse(long timeoutMillis) throws InterruptedException {
-		return inbox.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+	public int getLastSequence() {
+		return lastSequence.get();
 	}
 
 	/**
-	 * Waits for a command response from the server. This method filters out
-	 * broadcast messages (RECEIVE, JOINED) and only returns command responses.
-	 * Blocks until a command response is received or the timeout expires.
-	 * 
-	 * @param timeoutMillis Maximum time to wait in milliseconds
-	 * @param broadcastHandler Callback to handle broadcast messages received while waiting
-	 * @return The command response, or null if timeout
-	 * @throws InterruptedException if interrupted while waiting
+	 * Checks if a line is a command response (as opposed to a broadcast).
+	 * Command responses are OK, ERROR, USRLIST, CHANLIST, HISTORY and SEARCH.
+	 *
+	 * @param line the line to check
+	 * @return true if the line answers a command, false otherwise
+	 */
+	private static boolean isResponse(String line) {
+		return line.equals("OK") || line.startsWith("OK ") || line.startsWith("ERROR")
+			|| line.startsWith("USRLIST") || line.startsWith("CHANLIST") || line.startsWith("HISTORY")
+			|| line.startsWith("SEARCH");
+	}
+
+	/**
+	 * Queues a message for the server without waiting for it to be written.
+	 * Use this for commands that have no response, such as MESSAGE.
+	 *
+	 * @param msg the message to send
+	 * @return true if the message was queued, false if the connection is down or the queue is full
 	 */
-	public String waitForCommandResponse(long timeoutMillis, java.util.function.Consumer<String> broadcastHandler) throws InterruptedException {
-		long startTime = System.currentTimeMillis();
-		long remainingTime = timeoutMillis;
-		
-		while (remainingTime > 0) {
-			String msg = inbox.poll(remainingTime, TimeUnit.MILLISECONDS);
-			if (msg == null) {
-				// probably timeout
-				return null;
+	public boolean send(String msg) {
+		boolean message = msg.startsWith("MESSAGE ");
+		if (latencyTracker != null && message) {
+			msg = "~" + LatencyTracker.nowMicros() + " " + msg;
+		}
+		synchronized (writeLock) {
+			if (!enqueue(msg)) {
+				return false;
 			}
-			
-			if (msg.equals("OK") || msg.startsWith("ERROR") || 
-			    msg.startsWith("USRLIST") || msg.startsWith("CHANLIST")) {
-				return msg;
+		}
+		if (message) {
+			lastSequence.incrementAndGet();
+		}
+		return true;
+	}
+
+	/**
+	 * Turns trace mode on or off. In trace mode, messages sent are stamped with their send time,
+	 * and the server stamps the messages of the channel with its receive and fan-out times.
+	 *
+	 * @param enabled true to turn trace mode on
+	 * @return the future response of the server, completed with true if it accepted the change
+	 */
+	public CompletableFuture<Boolean> setTracing(boolean enabled) {
+		return requestTagged(enabled ? "TRACE ON" : "TRACE OFF").thenApply(response -> {
+			if (!response.equals("OK")) {
+				return false;
 			}
-			
-			if (broadcastHandler != null) {
-				broadcastHandler.accept(msg);
+			latencyTracker = enabled ? new LatencyTracker(LatencyTracker.DEFAULT_WINDOW) : null;
+			return true;
+		});
+	}
+
+	/**
+	 * Subscribes to the members of the channel, or unsubscribes. Once subscribed, the server sends
+	 * the full list once, then only the changes, including after a JOIN to another channel.
+	 *
+	 * @param enabled true to subscribe
+	 * @return the future response of the server, completed with true if it accepted the change
+	 */
+	public CompletableFuture<Boolean> setPresence(boolean enabled) {
+		if (enabled) {
+			// in place before the request, so that the snapshot is applied by the receiving thread
+			presence = new PresenceView();
+		}
+		return requestTagged(enabled ? "PRESENCE ON" : "PRESENCE OFF").thenApply(response -> {
+			if (!enabled) {
+				presence = null;
+				return response.equals("OK");
+			}
+			if (!response.startsWith("PRESENCE ")) {
+				presence = null;
+				return false;
+			}
+			return true;
+		});
+	}
+
+	/**
+	 * Returns the members of the channel kept up to date by the server.
+	 *
+	 * @return the view, or null when not subscribed
+	 */
+	public PresenceView getPresence() {
+		return presence;
+	}
+
+	/**
+	 * Asks the server to compress what it sends, from the next connection on.
+	 * Only batches above the server's threshold are compressed: single interactive messages
+	 * are still sent as plain lines, while a history replay or a busy channel is compressed.
+	 *
+	 * @param enabled true to request compression when connecting
+	 */
+	public void setCompression(boolean enabled) {
+		this.compression = enabled;
+	}
+
+	/**
+	 * Returns the latencies collected in trace mode.
+	 *
+	 * @return the tracker, or null when trace mode is off
+	 */
+	public LatencyTracker getLatencyTracker() {
+		return latencyTracker;
+	}
+
+	/**
+	 * Queues several messages as one {@code BATCH} envelope: the server publishes them together
+	 * and each member of the channel receives them in a single write.
+	 * The envelope is queued as a single item, so no other line can be interleaved with it.
+	 * It is tagged with a tag nobody waits for: an accepted batch has no response, and the
+	 * {@code ERROR 0} of a rejected one is dropped with it.
+	 *
+	 * @param messages the contents of the messages, at most 1000
+	 * @return true if the batch was queued, false if the connection is down or the queue is full
+	 */
+	public boolean sendBatch(List<String> messages) {
+		if (messages.size() == 1) {
+			return send("MESSAGE " + messages.get(0));
+		}
+		String tag = Long.toString(nextTag.incrementAndGet(), 36);
+		StringBuilder batch = new StringBuilder("@").append(tag).append(" BATCH ").append(messages.size());
+		for (String message : messages) {
+			batch.append("\nMESSAGE ").append(message);
+		}
+		synchronized (writeLock) {
+			if (!enqueue(batch.toString())) {
+				return false;
 			}
-			
-			long elapsed = System.currentTimeMillis() - startTime;
-			remainingTime = timeoutMillis - elapsed;
 		}
-		
-		return null; // timeout
+		lastSequence.addAndGet(messages.size());
+		return true;
 	}
 
 	/**
-	 * Waits for a command response from the server without handling broadcasts.
-	 * Use this if you want to handle broadcasts separately.
-	 * 
+	 * Sends a command prefixed with a unique request tag ({@code @<tag> <command>}).
+	 * The server echoes the tag on the response, so the future is completed
+	 * regardless of the order in which responses come back, and a request that timed out
+	 * can be forgotten without shifting the responses of the others.
+	 * If the command cannot be queued, the future is already completed exceptionally.
+	 *
+	 * @param command the command to send
+	 * @return the future response of the server, without its tag
+	 */
+	public CompletableFuture<String> requestTagged(String command) {
+		String tag = Long.toString(nextTag.incrementAndGet(), 36);
+		CompletableFuture<String> response = new CompletableFuture<>();
+		tagged.put(tag, response);
+		boolean queued;
+		synchronized (writeLock) {
+			queued = enqueue("@" + tag + " " + command);
+		}
+		if (!queued) {
+			tagged.remove(tag);
+			response.completeExceptionally(new IOException("failed to send " + command));
+		}
+		return response;
+	}
+
+	/**
+	 * Waits for the response of a pending request.
+	 *
+	 * @param response the future returned by {@link #requestTagged(String)}
 	 * @param timeoutMillis Maximum time to wait in milliseconds
-	 * @return The command response, or null if timeout
+	 * @return The command response, or null if timeout or if the connection was lost
 	 * @throws InterruptedException if interrupted while waiting
 	 */
-	public String waitForCommandResponse(long timeoutMillis) throws InterruptedException {
-		return waitForCommandResponse(timeoutMillis, null);
+	public String await(CompletableFuture<String> response, long timeoutMillis) throws InterruptedException {
+		try {
+			return response.get(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException | ExecutionException e) {
+			// forget tagged requests that will never be answered in time
+			tagged.values().remove(response);
+			return null;
+		}
+	}
+
+	/**
+	 * Queues one line for the writing thread. Must be called while holding the write lock,
+	 * so that a multi-line envelope is never interleaved with another line.
+	 *
+	 * @param msg the line to queue
+	 * @return true if the line was queued, false otherwise
+	 */
+	private boolean enqueue(String msg) {
+		if (!running) {
+			return false;
+		}
+		return outbox.offer(msg);
+	}
+
+	/**
+	 * Returns the number of lines waiting to be written to the server.
+	 *
+	 * @return the size of the outgoing queue
+	 */
+	public int pendingWrites() {
+		return outbox.size();
+	}
+
+	/**
+	 * Fails every request that is still waiting for a response.
+	 *
+	 * @param cause the reason the requests will not be answered
+	 */
+	private void failPending(IOException cause) {
+		for (String tag : tagged.keySet()) {
+			CompletableFuture<String> taggedRequest = tagged.remove(tag);
+			if (taggedRequest != null) {
+				taggedRequest.completeExceptionally(cause);
+			}
+		}
 	}
 
 	/**
 	 * Closes the connection to the server.
 	 */
 	public void close() {
+		closed = true;
 		running = false;
 		if (receiveThread != null) {
 			receiveThread.interrupt();
 		}
-		if (socket != null) {
+		if (sendThread != null) {
+			sendThread.interrupt();
+		}
+		closeTransport(transport);
+	}
+
+	private static void closeTransport(Transport transport) {
+		if (transport != null) {
 			try {
-				socket.close();
+				transport.close();
 			} catch (IOException ignored) {
 			}
 		}
@@ -189,10 +611,11 @@ public class ClientConnection {
 
 	/**
 	 * Checks if the connection is currently active.
-	 * 
+	 *
 	 * @return true if connected, false otherwise
 	 */
 	public boolean isConnected() {
-		return running && socket != null && !socket.isClosed();
+		Transport transport = this.transport;
+		return running && transport != null && !transport.isClosed();
 	}
 }
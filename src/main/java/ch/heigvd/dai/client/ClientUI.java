@@ -1,37 +1,115 @@
 package ch.heigvd.dai.client;
 
+import org.jline.keymap.KeyMap;
+import org.jline.reader.Binding;
+import org.jline.reader.EndOfFileException;
+import org.jline.reader.LineReader;
+import org.jline.reader.LineReaderBuilder;
+import org.jline.reader.Reference;
+import org.jline.reader.UserInterruptException;
 import org.jline.terminal.Terminal;
 import org.jline.terminal.TerminalBuilder;
+import org.jline.utils.InfoCmp;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 
 /**
  * Handles the terminal-based user interface for the CHCH client.
  * Manages rendering of channels, messages, and user input.
+ * The screen above the input line is kept in a {@link ScreenBuffer}: only the cells
+ * that changed since the last frame are written, and updates coming from the server
+ * are coalesced so that at most {@code fps} frames are drawn per second.
+ * The message area is a viewport over a {@link Scrollback}: only the visible lines are
+ * drawn, and PageUp/PageDown scroll it while the user is typing.
  */
 public class ClientUI {
 	private final Terminal terminal;
 	private static final int LEFT_PANEL_WIDTH = 16;
+	private static final String PAGE_UP_WIDGET = "chch-page-up";
+	private static final String PAGE_DOWN_WIDGET = "chch-page-down";
+	public static final int DEFAULT_FPS = 30;
 	private int rows;
 	private int columns;
-	private StringBuilder currentInput = new StringBuilder();
-	private int cursorOffset = 0;
+	private final LineReader lineReader;
+	private final ScreenBuffer screen = new ScreenBuffer();
+	private final ScheduledExecutorService frameScheduler;
+	private final long frameIntervalNanos;
+	private final AtomicBoolean framePending = new AtomicBoolean();
+	private long lastFrameNanos;
+	private volatile List<String> channels = List.of();
+	private volatile Scrollback messages = new Scrollback(1);
+	private volatile Supplier<String> statusLine;
 
 	/**
-	 * Initializes the terminal UI.
-	 * 
+	 * Initializes the terminal UI with the default frame rate.
+	 *
 	 * @throws IOException if terminal initialization fails
 	 */
 	public ClientUI() throws IOException {
+		this(DEFAULT_FPS);
+	}
+
+	/**
+	 * Initializes the terminal UI.
+	 *
+	 * @param fps the maximum number of frames drawn per second for server updates
+	 * @throws IOException if terminal initialization fails
+	 */
+	public ClientUI(int fps) throws IOException {
 		terminal = TerminalBuilder.builder().system(true).jna(true).build();
 		this.rows = terminal.getHeight();
 		this.columns = terminal.getWidth();
+		this.frameIntervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, fps);
+		this.frameScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "chch-render");
+			thread.setDaemon(true);
+			return thread;
+		});
+		// only the input line scrolls when the user presses enter, the rest of the
+		// screen stays where the screen buffer believes it is
+		terminal.writer().print("\033[" + rows + ";" + rows + "r");
+		terminal.flush();
+
+		lineReader = LineReaderBuilder.builder()
+			.terminal(terminal)
+			.option(LineReader.Option.ERASE_LINE_ON_FINISH, true)
+			.build();
+		lineReader.getWidgets().put(PAGE_UP_WIDGET, () -> {
+			messages.pageUp(rows - 1);
+			requestFrame();
+			return true;
+		});
+		lineReader.getWidgets().put(PAGE_DOWN_WIDGET, () -> {
+			messages.pageDown(rows - 1);
+			requestFrame();
+			return true;
+		});
+		KeyMap<Binding> keys = lineReader.getKeyMaps().get(LineReader.MAIN);
+		bindKey(keys, PAGE_UP_WIDGET, InfoCmp.Capability.key_ppage, "\033[5~");
+		bindKey(keys, PAGE_DOWN_WIDGET, InfoCmp.Capability.key_npage, "\033[6~");
+	}
+
+	/**
+	 * Binds a widget to a key, using the sequence advertised by the terminal
+	 * and the common VT sequence as a fallback.
+	 */
+	private void bindKey(KeyMap<Binding> keys, String widget, InfoCmp.Capability capability, String fallback) {
+		String sequence = KeyMap.key(terminal, capability);
+		if (sequence != null && !sequence.isEmpty()) {
+			keys.bind(new Reference(widget), sequence);
+		}
+		keys.bind(new Reference(widget), fallback);
 	}
 
 	/**
 	 * Gets the underlying terminal instance.
-	 * 
+	 *
 	 * @return the terminal object
 	 */
 	public Terminal getTerminal() {
@@ -39,105 +117,148 @@ public class ClientUI {
 	}
 
 	/**
-	 * Renders the full UI screen with channels list and messages.
-	 * Clears the screen and redraws everything from scratch.
-	 * 
+	 * Renders the UI screen with channels list and messages, then clears the input line.
+	 * Called after user input, so it is drawn immediately instead of being coalesced.
+	 *
 	 * @param channels the list of available channels to display in the left panel
-	 * @param messages the list of messages to display in the main area
+	 * @param messages the messages to display in the main area
 	 */
-	public void render(List<String> channels, List<String> messages) {
-		terminal.puts(org.jline.utils.InfoCmp.Capability.clear_screen);
-
-		// draw channel list
-		for (int i = 0; i < rows - 1; i++) {
-			terminal.writer().print("\033[" + (i + 1) + ";1H"); // move cursor
-			if (i < channels.size()) {
-				terminal.writer().print(padRight(channels.get(i), LEFT_PANEL_WIDTH));
-			} else {
-				terminal.writer().print(" ".repeat(LEFT_PANEL_WIDTH));
-			}
+	public void render(List<String> channels, Scrollback messages) {
+		this.channels = channels;
+		this.messages = messages;
+		drawFrame(true);
+	}
 
-			// draw vertical border
-			terminal.writer().print("|");
+	/**
+	 * Updates the channel list panel. The change is drawn with the next frame.
+	 *
+	 * @param channels the list of channels to display
+	 */
+	public void updateChannelPanel(List<String> channels) {
+		this.channels = channels;
+		requestFrame();
+	}
 
-			// draw message area
-			int msgIndex = i;
-			if (msgIndex < messages.size()) {
-				String msg = truncate(messages.get(msgIndex), columns - LEFT_PANEL_WIDTH - 1);
-				terminal.writer().print(msg);
-			}
-		}
+	/**
+	 * Updates the message area. The change is drawn with the next frame,
+	 * so a burst of messages only costs one repaint.
+	 *
+	 * @param messages the messages to display
+	 */
+	public void updateMessageArea(Scrollback messages) {
+		this.messages = messages;
+		requestFrame();
+	}
 
-		// draw input prompt
-		terminal.writer().print("\033[" + rows + ";2H>");
-		terminal.writer().print(currentInput.toString());
-		terminal.writer().print("\033[" + rows + ";" + (3 + cursorOffset) + "H");
-		terminal.flush();
+	/**
+	 * Shows a line computed at each frame below the messages, e.g. the latencies of trace mode.
+	 *
+	 * @param statusLine computes the line, or null to remove it
+	 */
+	public void setStatusLine(Supplier<String> statusLine) {
+		this.statusLine = statusLine;
+		requestFrame();
 	}
 
 	/**
-	 * Updates only the channel list panel without redrawing the entire screen.
-	 * 
-	 * @param channels the list of channels to display
+	 * Schedules a frame unless one is already pending.
+	 * The frame is drawn no sooner than one frame interval after the previous one.
 	 */
-	public void updateChannelPanel(List<String> channels) {
-		for (int i = 0; i < rows - 1; i++) {
-			terminal.writer().print("\033[" + (i + 1) + ";1H"); // move cursor
-			if (i < channels.size()) {
-				terminal.writer().print(padRight(channels.get(i), LEFT_PANEL_WIDTH));
-			} else {
-				terminal.writer().print(" ".repeat(LEFT_PANEL_WIDTH));
-			}
+	private void requestFrame() {
+		if (!framePending.compareAndSet(false, true)) {
+			return;
 		}
-		terminal.flush();
+		long delay;
+		synchronized (this) {
+			delay = Math.max(0, lastFrameNanos + frameIntervalNanos - System.nanoTime());
+		}
+		frameScheduler.schedule(() -> drawFrame(false), delay, TimeUnit.NANOSECONDS);
 	}
 
 	/**
-	 * Updates only the message area without redrawing the entire screen.
-	 * More efficient than full render when only messages have changed.
-	 * 
-	 * @param messages the list of messages to display
+	 * Draws the changes since the previous frame.
+	 *
+	 * @param withInput true to also clear the input line and leave the cursor on it,
+	 *                  false to leave the input line and the cursor where the user is typing
 	 */
-	public void updateMessageArea(List<String> messages) {
-		int msgAreaHeight = rows - 1;
-		int startMsg = Math.max(0, messages.size() - msgAreaHeight);
-
-		for (int y = 0; y < msgAreaHeight; y++) {
-			terminal.writer().print("\033[" + (y + 1) + ";" + (LEFT_PANEL_WIDTH + 2) + "H");
-			int msgIndex = startMsg + y;
-			String line = (msgIndex < messages.size()) ? truncate(messages.get(msgIndex), columns - LEFT_PANEL_WIDTH - 1) : "";
-			terminal.writer().print(padRight(line, columns - LEFT_PANEL_WIDTH - 1));
+	private synchronized void drawFrame(boolean withInput) {
+		framePending.set(false);
+		lastFrameNanos = System.nanoTime();
+
+		int height = terminal.getHeight();
+		int width = terminal.getWidth();
+		if (height != rows || width != columns) {
+			rows = height;
+			columns = width;
+			screen.invalidate();
+			terminal.writer().print("\033[" + rows + ";" + rows + "r");
+			withInput = true;
+		}
+
+		String changes = screen.diff(composeFrame(), columns);
+		if (changes.isEmpty() && !withInput) {
+			return;
 		}
 
-		// restore cursor to input line
-		terminal.writer().print("\033[" + rows + ";3H");
-		terminal.writer().print(currentInput.toString());
-		terminal.writer().print("\033[" + rows + ";" + (3 + cursorOffset) + "H");
+		if (withInput) {
+			terminal.writer().print(changes);
+			terminal.writer().print("\033[" + rows + ";1H\033[2K");
+		} else {
+			// save and restore the cursor so that the line being typed is not disturbed
+			terminal.writer().print("\0337" + changes + "\0338");
+		}
 		terminal.flush();
 	}
 
 	/**
-	 * Sets the current input text (without cursor position).
-	 * 
-	 * @param input the input text to set
+	 * Builds the rows above the input line: the channel panel, a border, the
+	 * messages visible in the scrollback viewport and the status line, if any.
+	 *
+	 * @return the rows of the frame
 	 */
-	public void setCurrentInput(String input) {
-		currentInput = new StringBuilder(input);
+	private String[] composeFrame() {
+		List<String> channels = this.channels;
+		Supplier<String> statusLine = this.statusLine;
+		int msgAreaHeight = rows - 1 - (statusLine != null ? 1 : 0);
+		int msgAreaWidth = columns - LEFT_PANEL_WIDTH - 1;
+		String[] visible = messages.window(msgAreaHeight);
+
+		String[] frame = new String[rows - 1];
+		StringBuilder row = new StringBuilder(columns);
+		for (int i = 0; i < msgAreaHeight; i++) {
+			row.setLength(0);
+			row.append(padRight(i < channels.size() ? channels.get(i) : "", LEFT_PANEL_WIDTH));
+			row.append('|');
+			if (i < visible.length) {
+				row.append(truncate(visible[i], msgAreaWidth));
+			}
+			frame[i] = row.toString();
+		}
+		if (statusLine != null && msgAreaHeight >= 0) {
+			frame[msgAreaHeight] = padRight("", LEFT_PANEL_WIDTH) + '|' + truncate(statusLine.get(), msgAreaWidth);
+		}
+		return frame;
 	}
 
 	/**
-	 * Gets the current input text.
-	 * 
-	 * @return the current input string
+	 * Reads one line typed by the user on the input line.
+	 * PageUp and PageDown scroll the message area while reading.
+	 *
+	 * @return the line typed, or null if the input was closed (Ctrl-D) or interrupted (Ctrl-C)
 	 */
-	public String getCurrentInput() {
-		return currentInput.toString();
+	public String readLine() {
+		terminal.writer().print("\033[" + rows + ";1H");
+		try {
+			return lineReader.readLine(" >");
+		} catch (EndOfFileException | UserInterruptException e) {
+			return null;
+		}
 	}
 
 	/**
 	 * Pads a string to the right to a specified width.
 	 * If the string is longer than the width, it is truncated.
-	 * 
+	 *
 	 * @param s the string to pad
 	 * @param width the target width
 	 * @return the padded or truncated string
@@ -149,7 +270,7 @@ public class ClientUI {
 
 	/**
 	 * Truncates a string to a maximum width if it exceeds the limit.
-	 * 
+	 *
 	 * @param s the string to truncate
 	 * @param width the maximum width
 	 * @return the truncated string, or the original string if it fits
@@ -160,22 +281,11 @@ public class ClientUI {
 	}
 
 	/**
-	 * Sets the current input text and cursor position.
-	 * 
-	 * @param input the input text to set
-	 * @param cursorPos the cursor position offset
-	 */
-	public void setCurrentInput(String input, int cursorPos) {
-		currentInput = new StringBuilder(input);
-		cursorOffset = cursorPos;
-	}
-
-	/**
-	 * Gets the current cursor offset position.
-	 * 
-	 * @return the cursor offset
+	 * Stops drawing frames and restores the terminal scrolling region.
 	 */
-	public int getCursorOffset() {
-		return cursorOffset;
+	public void close() {
+		frameScheduler.shutdownNow();
+		terminal.writer().print("\033[r\033[" + rows + ";1H\n");
+		terminal.flush();
 	}
 }
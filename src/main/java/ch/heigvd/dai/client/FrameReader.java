@@ -0,0 +1,149 @@
+package ch.heigvd.dai.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the UTF-8 lines sent by the server, decompressing them when compression was negotiated.
+ * Once {@link #acceptCompressedFrames()} was called, a {@code Z <length>} line announces a frame of
+ * {@code length} bytes of raw deflate data; the inflated bytes are complete lines, returned one
+ * by one like any other. The inflater is kept across frames, as the server keeps its deflater.
+ */
+class FrameReader {
+	private final InputStream in;
+	private final byte[] buffer = new byte[8192];
+	private int position;
+	private int limit;
+	private byte[] line = new byte[256];
+	private int length;
+	private final Queue<String> inflated = new ArrayDeque<>();
+	private volatile boolean compressed;
+	private Inflater inflater;
+	private byte[] output = new byte[16384];
+
+	/**
+	 * @param in the stream of the connection
+	 */
+	FrameReader(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Treats {@code Z <length>} lines as compressed frames from now on.
+	 * Must be called before COMPRESS is sent, the frames may follow its response immediately.
+	 */
+	void acceptCompressedFrames() {
+		compressed = true;
+	}
+
+	/**
+	 * Reads the next line, without its line terminator.
+	 *
+	 * @return the line, or null at the end of the stream
+	 * @throws IOException if reading fails or a compressed frame is corrupt
+	 */
+	String readLine() throws IOException {
+		while (inflated.isEmpty()) {
+			String next = readRawLine();
+			if (next == null || !compressed || !next.startsWith("Z ")) {
+				return next;
+			}
+			inflate(Integer.parseInt(next.substring(2).trim()));
+		}
+		return inflated.poll();
+	}
+
+	/**
+	 * Reads a compressed frame and queues the lines it contains.
+	 *
+	 * @param frameLength the number of compressed bytes
+	 */
+	private void inflate(int frameLength) throws IOException {
+		if (inflater == null) {
+			inflater = new Inflater(true);
+		}
+		byte[] frame = new byte[frameLength];
+		int read = Math.min(frameLength, limit - position);
+		System.arraycopy(buffer, position, frame, 0, read);
+		position += read;
+		while (read < frameLength) {
+			int n = in.read(frame, read, frameLength - read);
+			if (n < 0) {
+				throw new EOFException("connection closed in a compressed frame");
+			}
+			read += n;
+		}
+
+		ByteArrayOutputStream text = new ByteArrayOutputStream(frameLength * 4);
+		inflater.setInput(frame);
+		try {
+			int n;
+			do {
+				n = inflater.inflate(output);
+				text.write(output, 0, n);
+			} while (n == output.length || n > 0 && !inflater.needsInput());
+		} catch (DataFormatException e) {
+			throw new IOException("corrupt compressed frame", e);
+		}
+		String lines = text.toString(StandardCharsets.UTF_8);
+		int start = 0;
+		int end;
+		while ((end = lines.indexOf('\n', start)) >= 0) {
+			inflated.add(lines.substring(start, end));
+			start = end + 1;
+		}
+	}
+
+	private String readRawLine() throws IOException {
+		length = 0;
+		while (true) {
+			if (position == limit) {
+				limit = in.read(buffer);
+				position = 0;
+				if (limit <= 0) {
+					limit = 0;
+					return length == 0 ? null : decode();
+				}
+			}
+			int start = position;
+			while (position < limit && buffer[position] != '\n') {
+				position++;
+			}
+			append(start, position - start);
+			if (position < limit) {
+				position++;
+				return decode();
+			}
+		}
+	}
+
+	private void append(int start, int chunk) {
+		if (length + chunk > line.length) {
+			line = Arrays.copyOf(line, Math.max(line.length * 2, length + chunk));
+		}
+		System.arraycopy(buffer, start, line, length, chunk);
+		length += chunk;
+	}
+
+	private String decode() {
+		int end = length > 0 && line[length - 1] == '\r' ? length - 1 : length;
+		return new String(line, 0, end, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Releases the native memory of the inflater.
+	 */
+	void close() {
+		if (inflater != null) {
+			inflater.end();
+		}
+	}
+}
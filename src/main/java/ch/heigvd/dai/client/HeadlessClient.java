@@ -0,0 +1,307 @@
+package ch.heigvd.dai.client;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import ch.heigvd.dai.transport.SocketTransport;
+import ch.heigvd.dai.transport.Transport;
+
+/**
+ * Client for the CHCH chat protocol without any terminal UI, meant for bots and bridges.
+ * Messages are queued without blocking, commands can be pipelined over the same connection,
+ * and incoming broadcasts are published to subscribers with demand-based backpressure.
+ */
+public class HeadlessClient implements AutoCloseable {
+	private static final long RETRY_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+	public static final int MAX_BATCH = 1000;
+	private final ClientConnection connection;
+	private final SubmissionPublisher<String> incoming;
+
+	/**
+	 * Creates a new headless client instance.
+	 *
+	 * @param host the server hostname or IP address
+	 * @param port the server port number
+	 */
+	public HeadlessClient(String host, int port) {
+		this(host, port, Flow.defaultBufferSize());
+	}
+
+	/**
+	 * Creates a new headless client instance.
+	 *
+	 * @param host the server hostname or IP address
+	 * @param port the server port number
+	 * @param subscriberBufferSize the number of broadcasts buffered per subscriber
+	 *                             before the receiving thread waits for demand
+	 */
+	public HeadlessClient(String host, int port, int subscriberBufferSize) {
+		this(SocketTransport.connector(host, port), subscriberBufferSize);
+	}
+
+	/**
+	 * Creates a new headless client instance over a custom transport.
+	 *
+	 * @param connector opens a new transport on every connection attempt
+	 * @param subscriberBufferSize the number of broadcasts buffered per subscriber
+	 *                             before the receiving thread waits for demand
+	 */
+	public HeadlessClient(Transport.Connector connector, int subscriberBufferSize) {
+		connection = new ClientConnection(connector);
+		// delivery runs on virtual threads, one task per subscriber at a time
+		incoming = new SubmissionPublisher<>(
+			command -> Thread.startVirtualThread(command), subscriberBufferSize);
+		// submit() blocks once a subscriber's buffer is full: the socket stops being read,
+		// so a slow consumer slows the server down through TCP instead of filling the heap
+		connection.setBroadcastListener(incoming::submit);
+	}
+
+	/**
+	 * Asks the server to compress large batches of broadcasts, from the next connection on.
+	 *
+	 * @param enabled true to request compression when connecting
+	 */
+	public void setCompression(boolean enabled) {
+		connection.setCompression(enabled);
+	}
+
+	/**
+	 * Connects to the server.
+	 *
+	 * @return true if connection was successful, false otherwise
+	 */
+	public boolean connect() {
+		return connection.connect();
+	}
+
+	/**
+	 * Joins a channel with a username.
+	 *
+	 * @param channel the channel name to join
+	 * @param username the username to use in the channel
+	 * @return the future response of the server (OK or ERROR)
+	 */
+	public CompletableFuture<String> join(String channel, String username) {
+		return command("JOIN " + channel + " " + username);
+	}
+
+	/**
+	 * Sends any command expecting a response. Commands are tagged, so any number of them
+	 * can be in flight at the same time.
+	 *
+	 * @param command the command to send
+	 * @return the future response of the server
+	 */
+	public CompletableFuture<String> command(String command) {
+		return connection.requestTagged(command);
+	}
+
+	/**
+	 * Posts a message on the current channel without blocking.
+	 *
+	 * @param message the message content
+	 * @return true if the message was queued, false if the connection is down or the outgoing queue is full
+	 */
+	public boolean post(String message) {
+		return connection.send("MESSAGE " + message);
+	}
+
+	/**
+	 * Posts several messages on the current channel as one batch, without blocking.
+	 * The server stores them together and fans them out with one write per member,
+	 * which is much cheaper than posting them one by one when mirroring a busy room.
+	 *
+	 * @param messages the message contents, at most {@link #MAX_BATCH}
+	 * @return true if the batch was queued, false if the connection is down or the outgoing queue is full
+	 */
+	public boolean postAll(List<String> messages) {
+		return connection.sendBatch(messages);
+	}
+
+	/**
+	 * Completes once every line queued before the call has been processed by the server.
+	 *
+	 * @return a future completed when the server answered a round trip
+	 */
+	public CompletableFuture<String> sync() {
+		return command("CHANLIST");
+	}
+
+	/**
+	 * Returns the publisher of the broadcasts received from the server (RECEIVE, JOINED, QUIT, ...).
+	 * Subscribers control the flow with {@link Flow.Subscription#request(long)}.
+	 *
+	 * @return the publisher of incoming broadcasts
+	 */
+	public Flow.Publisher<String> messages() {
+		return incoming;
+	}
+
+	/**
+	 * Sends every line of the input as a message, at a steady rate.
+	 * When the outgoing queue is full, sending waits for it to drain instead of dropping lines.
+	 *
+	 * @param input the lines to send
+	 * @param ratePerSecond the number of messages per second, or 0 to send as fast as possible
+	 * @return the number of messages sent
+	 * @throws IOException if reading the input fails
+	 */
+	public long sendLines(BufferedReader input, double ratePerSecond) throws IOException {
+		return sendLines(input, ratePerSecond, 1);
+	}
+
+	/**
+	 * Sends every line of the input as a message, at a steady rate, grouping up to
+	 * {@code batchSize} lines per batch. A partial batch is sent as soon as no more input
+	 * is immediately available, so batching never holds a line back waiting for the next one.
+	 *
+	 * @param input the lines to send
+	 * @param ratePerSecond the number of messages per second, or 0 to send as fast as possible
+	 * @param batchSize the maximum number of messages per batch, 1 to send them one by one
+	 * @return the number of messages sent
+	 * @throws IOException if reading the input fails
+	 */
+	public long sendLines(BufferedReader input, double ratePerSecond, int batchSize) throws IOException {
+		long intervalNanos = ratePerSecond > 0 ? (long) (1_000_000_000L / ratePerSecond) : 0;
+		long next = System.nanoTime();
+		long sent = 0;
+		int maxBatch = Math.max(1, Math.min(batchSize, MAX_BATCH));
+		List<String> batch = new ArrayList<>(maxBatch);
+
+		String line;
+		while ((line = input.readLine()) != null) {
+			if (line.isEmpty()) {
+				continue;
+			}
+			if (intervalNanos > 0) {
+				// scheduled from the start time, so a late message does not shift the following ones
+				long wait = next - System.nanoTime();
+				if (wait > 0) {
+					LockSupport.parkNanos(wait);
+				}
+				next += intervalNanos;
+			}
+			batch.add(line);
+			if (batch.size() < maxBatch && input.ready()) {
+				continue;
+			}
+			if (!postWhenPossible(batch)) {
+				return sent;
+			}
+			sent += batch.size();
+			batch.clear();
+		}
+		if (!batch.isEmpty() && postWhenPossible(batch)) {
+			sent += batch.size();
+		}
+		return sent;
+	}
+
+	/**
+	 * Posts a batch, waiting for the outgoing queue to drain while it is full.
+	 *
+	 * @param batch the message contents
+	 * @return true once the batch is queued, false if the connection is lost
+	 */
+	private boolean postWhenPossible(List<String> batch) {
+		while (!postAll(batch)) {
+			if (!connection.isConnected()) {
+				return false;
+			}
+			LockSupport.parkNanos(RETRY_PARK_NANOS);
+		}
+		return true;
+	}
+
+	/**
+	 * Runs the headless mode: joins a channel, prints the received broadcasts
+	 * on the output and sends every input line at the given rate.
+	 *
+	 * @param channel the channel name to join
+	 * @param username the username to use in the channel
+	 * @param input the lines to send
+	 * @param ratePerSecond the number of messages per second, or 0 for no limit
+	 * @param batchSize the maximum number of messages sent in one batch
+	 * @param out where received broadcasts are printed
+	 * @return 0 on success, 1 on failure
+	 */
+	public int run(String channel, String username, BufferedReader input, double ratePerSecond, int batchSize,
+			PrintStream out) {
+		if (!connect()) {
+			System.err.println("failed to connect to server. Please check the host and port.");
+			return 1;
+		}
+
+		try {
+			String response = join(channel, username).get(5, TimeUnit.SECONDS);
+			if (!response.startsWith("OK")) {
+				System.err.println("failed to join channel " + channel + ": " + response);
+				return 1;
+			}
+
+			messages().subscribe(new PrintingSubscriber(out));
+
+			long start = System.nanoTime();
+			long sent = sendLines(input, ratePerSecond, batchSize);
+			sync().get(30, TimeUnit.SECONDS);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.err.printf("sent %d messages in %.3f s (%.1f msg/s)%n", sent, seconds, sent / seconds);
+			return 0;
+		} catch (Exception e) {
+			System.err.println("headless client failed: " + e.getMessage());
+			return 1;
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Closes the connection and completes the subscribers.
+	 */
+	@Override
+	public void close() {
+		connection.close();
+		incoming.close();
+	}
+
+	/**
+	 * Subscriber printing every broadcast, requesting them one at a time.
+	 */
+	private static class PrintingSubscriber implements Flow.Subscriber<String> {
+		private final PrintStream out;
+		private Flow.Subscription subscription;
+
+		PrintingSubscriber(PrintStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			subscription.request(1);
+		}
+
+		@Override
+		public void onNext(String item) {
+			out.println(item);
+			subscription.request(1);
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			System.err.println("receive failed: " + throwable.getMessage());
+		}
+
+		@Override
+		public void onComplete() {
+			out.flush();
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package ch.heigvd.dai.client;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Local copy of the channel histories received from a server.
+ * Each channel is stored in {@code <root>/<host>_<port>/<channel>.txt}, one
+ * {@code <username> <message>} entry per line, in the order of the server history.
+ * Since server sequence numbers start at 1 and have no gaps, the number of cached
+ * entries is also the sequence number of the last message known locally.
+ */
+public class HistoryCache {
+	private final Path directory;
+
+	/**
+	 * Creates a history cache for one server.
+	 *
+	 * @param root the directory holding the caches of all servers
+	 * @param host the server hostname or IP address
+	 * @param port the server port number
+	 */
+	public HistoryCache(Path root, String host, int port) {
+		this.directory = root.resolve(sanitize(host + "_" + port));
+	}
+
+	/**
+	 * Returns the default cache directory, {@code ~/.chch/cache}.
+	 *
+	 * @return the default root of the caches
+	 */
+	public static Path defaultRoot() {
+		return Path.of(System.getProperty("user.home"), ".chch", "cache");
+	}
+
+	/**
+	 * Loads the cached entries of a channel.
+	 * A missing or unreadable cache is treated as empty.
+	 *
+	 * @param channel the channel name
+	 * @return the cached entries, oldest first
+	 */
+	public List<String> load(String channel) {
+		Path file = fileOf(channel);
+		if (!Files.isRegularFile(file)) {
+			return new ArrayList<>();
+		}
+		try {
+			return Files.readAllLines(file, StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			return new ArrayList<>();
+		}
+	}
+
+	/**
+	 * Appends entries received from the server to the cache of a channel.
+	 * Failing to write the cache is not fatal, the next join simply downloads more history.
+	 *
+	 * @param channel the channel name
+	 * @param entries the entries to append, oldest first
+	 */
+	public void append(String channel, List<String> entries) {
+		if (entries.isEmpty()) {
+			return;
+		}
+		try {
+			Files.createDirectories(directory);
+			try (BufferedWriter writer = Files.newBufferedWriter(fileOf(channel), StandardCharsets.UTF_8,
+					StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+				for (String entry : entries) {
+					writer.write(entry);
+					writer.newLine();
+				}
+			}
+		} catch (IOException ignored) {
+		}
+	}
+
+	/**
+	 * Deletes the cache of a channel, used when it no longer matches the server history.
+	 *
+	 * @param channel the channel name
+	 */
+	public void reset(String channel) {
+		try {
+			Files.deleteIfExists(fileOf(channel));
+		} catch (IOException ignored) {
+		}
+	}
+
+	private Path fileOf(String channel) {
+		return directory.resolve(sanitize(channel) + ".txt");
+	}
+
+	/**
+	 * Keeps names usable as file names on every platform.
+	 */
+	private static String sanitize(String name) {
+		return name.replaceAll("[^A-Za-z0-9._-]", "_");
+	}
+}
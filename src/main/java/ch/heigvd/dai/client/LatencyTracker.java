@@ -0,0 +1,104 @@
+package ch.heigvd.dai.client;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Rolling latency percentiles of the messages received in trace mode.
+ * Each traced RECEIVE carries the time its sender queued it, the time the server read it and
+ * the time the server started the fan-out, so the latency splits into:
+ * - end-to-end: from the sender's send to our receive (only when the sender traces too);
+ * - server: from the server reading the line to the fan-out (parsing, shard queue, sequencing);
+ * - delivery: from the fan-out to our receive (the recipient's outbox, the network, our reader).
+ * Times come from different clocks: end-to-end and delivery are only meaningful if the clocks
+ * of the machines are synchronized.
+ */
+public class LatencyTracker {
+	public static final int DEFAULT_WINDOW = 1024;
+	private final long[][] samples;
+	private final int[] counts;
+	private final int window;
+	private long sequence;
+
+	/**
+	 * @param window the number of recent samples the percentiles are computed on
+	 */
+	public LatencyTracker(int window) {
+		this.window = window;
+		this.samples = new long[3][window];
+		this.counts = new int[3];
+	}
+
+	/**
+	 * Returns the current time in the unit of the trace stamps.
+	 *
+	 * @return microseconds since the epoch
+	 */
+	public static long nowMicros() {
+		Instant now = Instant.now();
+		return now.getEpochSecond() * 1_000_000 + now.getNano() / 1000;
+	}
+
+	/**
+	 * Records the stamps of a traced message, as found in its {@code ~<sent>,<received>,<fan-out>,<sequence>} prefix.
+	 *
+	 * @param stamps the prefix, without the leading {@code ~}
+	 * @param receivedMicros when the line was read, from {@link #nowMicros()}
+	 * @return false if the stamps are malformed
+	 */
+	public boolean record(String stamps, long receivedMicros) {
+		String[] parts = stamps.split(",");
+		if (parts.length != 4) {
+			return false;
+		}
+		try {
+			long sent = Long.parseLong(parts[0]);
+			long serverReceived = Long.parseLong(parts[1]);
+			long fanOut = Long.parseLong(parts[2]);
+			synchronized (this) {
+				if (sent > 0) {
+					add(0, receivedMicros - sent);
+				}
+				add(1, fanOut - serverReceived);
+				add(2, receivedMicros - fanOut);
+				sequence = Long.parseLong(parts[3]);
+			}
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	private void add(int metric, long micros) {
+		samples[metric][counts[metric]++ % window] = micros;
+		if (counts[metric] == 2 * window) {
+			// keep the counter small, the ring position stays the same
+			counts[metric] = window;
+		}
+	}
+
+	/**
+	 * Formats the percentiles of the recent samples, for a status line.
+	 *
+	 * @return the readout, or a placeholder if nothing was received yet
+	 */
+	public synchronized String summary() {
+		if (counts[1] == 0) {
+			return "trace: waiting for messages";
+		}
+		return String.format(Locale.ROOT, "trace (last %d, seq %d): end-to-end %s | server %s | delivery %s",
+			Math.min(counts[1], window), sequence, percentiles(0), percentiles(1), percentiles(2));
+	}
+
+	private String percentiles(int metric) {
+		int size = Math.min(counts[metric], window);
+		if (size == 0) {
+			return "n/a";
+		}
+		long[] sorted = Arrays.copyOf(samples[metric], size);
+		Arrays.sort(sorted);
+		return String.format(Locale.ROOT, "p50 %.1f p99 %.1f ms",
+			sorted[(size - 1) / 2] / 1000.0, sorted[(int) Math.ceil(0.99 * size) - 1] / 1000.0);
+	}
+}
@@ -0,0 +1,97 @@
+package ch.heigvd.dai.client;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The members of the current channel, kept up to date by the PRESENCE lines of the server.
+ * A snapshot ({@code PRESENCE <version> = <user> ...}) replaces the list, then every delta
+ * ({@code PRESENCE <version> +<user>}, {@code -<user>} or {@code ~<old> <new>}) must carry the next
+ * version. A delta with any other version means a change was missed: the view stops applying
+ * deltas until a new snapshot arrives, and the caller is expected to ask for one.
+ */
+public class PresenceView {
+	private final Set<String> members = new LinkedHashSet<>();
+	private long version;
+	private boolean synced;
+
+	/**
+	 * Applies a PRESENCE line.
+	 *
+	 * @param line the line, starting with {@code PRESENCE}
+	 * @return false if the line does not follow the current version, i.e. a snapshot must be requested
+	 */
+	public synchronized boolean apply(String line) {
+		String[] parts = line.split(" ", 4);
+		if (parts.length < 3) {
+			return !synced;
+		}
+		long next;
+		try {
+			next = Long.parseLong(parts[1]);
+		} catch (NumberFormatException e) {
+			return !synced;
+		}
+		String change = parts[2];
+		if (change.equals("=")) {
+			members.clear();
+			if (parts.length == 4) {
+				for (String member : parts[3].split(" ")) {
+					members.add(member);
+				}
+			}
+			version = next;
+			synced = true;
+			return true;
+		}
+		if (!synced) {
+			// waiting for a snapshot, the deltas in between are already part of it
+			return true;
+		}
+		char kind = change.charAt(0);
+		boolean rename = kind == '~' && parts.length == 4;
+		if (next != version + 1 || change.length() < 2 || kind != '+' && kind != '-' && !rename) {
+			synced = false;
+			return false;
+		}
+		if (kind == '+') {
+			members.add(change.substring(1));
+		} else {
+			members.remove(change.substring(1));
+			if (rename) {
+				members.add(parts[3]);
+			}
+		}
+		version = next;
+		return true;
+	}
+
+	/**
+	 * Returns the members of the channel, in the order the server listed them or they joined.
+	 *
+	 * @return a copy of the member list
+	 */
+	public synchronized List<String> getMembers() {
+		return new ArrayList<>(members);
+	}
+
+	/**
+	 * Returns the version of the member list, as numbered by the server.
+	 *
+	 * @return the version of the last snapshot or delta applied
+	 */
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Tells if the list is complete, i.e. a snapshot was received and no delta was missed since.
+	 *
+	 * @return true if the list can be used
+	 */
+	public synchronized boolean isSynced() {
+		return synced;
+	}
+}
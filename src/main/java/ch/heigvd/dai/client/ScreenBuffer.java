@@ -0,0 +1,88 @@
+package ch.heigvd.dai.client;
+
+/**
+ * Keeps the last frame drawn on the terminal and computes the escape sequences
+ * needed to turn it into the next one.
+ * Only the changed span of each changed row is rewritten, so a new message at the
+ * bottom of a full screen costs a handful of bytes instead of a full repaint.
+ */
+class ScreenBuffer {
+	private String[] previous;
+	private int width;
+
+	/**
+	 * Creates an empty screen buffer. The first frame is always drawn in full.
+	 */
+	ScreenBuffer() {
+		invalidate();
+	}
+
+	/**
+	 * Forgets the previous frame, forcing the next diff to clear and redraw everything.
+	 * Used when the terminal was resized or written to outside of this buffer.
+	 */
+	void invalidate() {
+		previous = null;
+		width = -1;
+	}
+
+	/**
+	 * Computes the output turning the previous frame into the given one, and remembers
+	 * the given frame as the new previous one.
+	 * Rows are drawn from the first line of the terminal; each row is padded or cut to the width.
+	 *
+	 * @param rows the rows of the new frame
+	 * @param width the width of the terminal
+	 * @return the escape sequences and text to write, empty if nothing changed
+	 */
+	String diff(String[] rows, int width) {
+		String[] next = new String[rows.length];
+		for (int i = 0; i < rows.length; i++) {
+			next[i] = fit(rows[i], width);
+		}
+
+		StringBuilder out = new StringBuilder();
+		if (previous == null || previous.length != next.length || this.width != width) {
+			out.append("\033[2J");
+			for (int i = 0; i < next.length; i++) {
+				moveTo(out, i, 0).append(next[i]);
+			}
+		} else {
+			for (int i = 0; i < next.length; i++) {
+				String before = previous[i];
+				String after = next[i];
+				if (before.equals(after)) {
+					continue;
+				}
+				int first = 0;
+				while (before.charAt(first) == after.charAt(first)) {
+					first++;
+				}
+				int last = width - 1;
+				while (before.charAt(last) == after.charAt(last)) {
+					last--;
+				}
+				moveTo(out, i, first).append(after, first, last + 1);
+			}
+		}
+
+		previous = next;
+		this.width = width;
+		return out.toString();
+	}
+
+	/**
+	 * Appends the escape sequence moving the cursor to a cell (0-based).
+	 */
+	private static StringBuilder moveTo(StringBuilder out, int row, int column) {
+		return out.append("\033[").append(row + 1).append(';').append(column + 1).append('H');
+	}
+
+	/**
+	 * Pads or truncates a row to exactly the given width.
+	 */
+	private static String fit(String s, int width) {
+		if (s.length() >= width) return s.substring(0, width);
+		return s + " ".repeat(width - s.length());
+	}
+}
@@ -0,0 +1,117 @@
+package ch.heigvd.dai.client;
+
+/**
+ * Bounded message history displayed by the client.
+ * Lines are kept in a ring buffer: adding a line is O(1) and, once the capacity is
+ * reached, overwrites the oldest one. The viewport is described by a scroll offset
+ * counted from the most recent line, so only the visible lines are ever copied out.
+ * All methods are thread-safe, lines are added by the receiving thread while
+ * the render thread reads them.
+ */
+public class Scrollback {
+	public static final int DEFAULT_CAPACITY = 10000;
+	private final String[] lines;
+	private int head;
+	private int size;
+	private int offset;
+
+	/**
+	 * Creates a scrollback with the default capacity.
+	 */
+	public Scrollback() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a scrollback.
+	 *
+	 * @param capacity the maximum number of lines kept
+	 */
+	public Scrollback(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("scrollback capacity must be positive: " + capacity);
+		}
+		lines = new String[capacity];
+	}
+
+	/**
+	 * Appends a line, dropping the oldest one if the scrollback is full.
+	 * When the view is scrolled up, it stays on the same lines.
+	 *
+	 * @param line the line to add
+	 */
+	public synchronized void add(String line) {
+		lines[(head + size) % lines.length] = line;
+		if (size < lines.length) {
+			size++;
+		} else {
+			head = (head + 1) % lines.length;
+		}
+		if (offset > 0) {
+			offset = Math.min(offset + 1, size - 1);
+		}
+	}
+
+	/**
+	 * Removes every line and scrolls back to the bottom.
+	 */
+	public synchronized void clear() {
+		java.util.Arrays.fill(lines, null);
+		head = 0;
+		size = 0;
+		offset = 0;
+	}
+
+	/**
+	 * Returns the number of lines kept.
+	 *
+	 * @return the number of lines
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the lines visible in a viewport of the given height,
+	 * oldest first, ending {@code offset} lines above the most recent one.
+	 *
+	 * @param height the number of rows of the viewport
+	 * @return at most {@code height} lines
+	 */
+	public synchronized String[] window(int height) {
+		int end = size - Math.min(offset, Math.max(0, size - height));
+		int start = Math.max(0, end - height);
+		String[] visible = new String[end - start];
+		for (int i = start; i < end; i++) {
+			visible[i - start] = lines[(head + i) % lines.length];
+		}
+		return visible;
+	}
+
+	/**
+	 * Scrolls the viewport one page towards older lines, stopping at the oldest line.
+	 *
+	 * @param height the number of rows of the viewport
+	 */
+	public synchronized void pageUp(int height) {
+		offset = Math.max(0, Math.min(offset + height, size - height));
+	}
+
+	/**
+	 * Scrolls the viewport one page towards newer lines, stopping at the most recent line.
+	 *
+	 * @param height the number of rows of the viewport
+	 */
+	public synchronized void pageDown(int height) {
+		offset = Math.max(0, offset - height);
+	}
+
+	/**
+	 * Checks if the viewport shows the most recent line.
+	 *
+	 * @return true if not scrolled up
+	 */
+	public synchronized boolean isAtBottom() {
+		return offset == 0;
+	}
+}
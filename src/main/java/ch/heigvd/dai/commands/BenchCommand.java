@@ -0,0 +1,56 @@
+package ch.heigvd.dai.commands;
+
+import java.util.concurrent.Callable;
+import picocli.CommandLine;
+import ch.heigvd.dai.bench.ReconnectBench;
+
+@CommandLine.Command(name = "bench", description = "Run a load benchmark against a CHCH server.")
+public class BenchCommand implements Callable<Integer> {
+
+	@CommandLine.Option(
+		names = {"-H", "--host"},
+		description = "Host to connect to (default: ${DEFAULT-VALUE}).",
+		defaultValue = "localhost")
+	protected String host;
+
+	@CommandLine.Option(
+		names = {"-p", "--port"},
+		description = "Port to use (default: ${DEFAULT-VALUE}).",
+		defaultValue = "4269")
+	protected int port;
+
+	@CommandLine.Option(
+		names = {"-n", "--connections"},
+		description = "Connections opened in each reconnect wave (default: ${DEFAULT-VALUE}).",
+		defaultValue = "5000")
+	protected int connections;
+
+	@CommandLine.Option(
+		names = {"-w", "--waves"},
+		description = "Number of connect/drop waves (default: ${DEFAULT-VALUE}).",
+		defaultValue = "3")
+	protected int waves;
+
+	@CommandLine.Option(
+		names = {"--concurrency"},
+		description = "Maximum connection attempts in flight (default: ${DEFAULT-VALUE}).",
+		defaultValue = "1000")
+	protected int concurrency;
+
+	@CommandLine.Option(
+		names = {"--timeout"},
+		description = "Connect and first response timeout in milliseconds (default: ${DEFAULT-VALUE}).",
+		defaultValue = "10000")
+	protected int timeout;
+
+	@Override
+	public Integer call() {
+		try {
+			ReconnectBench bench = new ReconnectBench(host, port, connections, concurrency, timeout);
+			return bench.run(waves, System.out) ? 0 : 1;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return 1;
+		}
+	}
+}
@@ -1,8 +1,15 @@
 package ch.heigvd.dai.commands;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.concurrent.Callable;
 import picocli.CommandLine;
 import ch.heigvd.dai.client.Client;
+import ch.heigvd.dai.client.HeadlessClient;
 
 @CommandLine.Command(name = "client", description = "Start the client part of the network game.")
 public class ClientCommand implements Callable<Integer> {
@@ -19,10 +26,68 @@ public class ClientCommand implements Callable<Integer> {
 		defaultValue = "4269")
 	protected int port;
 
+	@CommandLine.Option(
+		names = {"--fps"},
+		description = "Maximum screen refreshes per second for incoming messages (default: ${DEFAULT-VALUE}).",
+		defaultValue = "30")
+	protected int fps;
+
+	@CommandLine.Option(
+		names = {"--scrollback"},
+		description = "Maximum number of messages kept on screen (default: ${DEFAULT-VALUE}).",
+		defaultValue = "10000")
+	protected int scrollback;
+
+	@CommandLine.Option(
+		names = {"--cache-dir"},
+		description = "Directory where channel histories are cached (default: ${DEFAULT-VALUE}).",
+		defaultValue = "${sys:user.home}/.chch/cache")
+	protected File cacheDir;
+
+	@CommandLine.Option(
+		names = {"--compress"},
+		description = "Ask the server to compress large batches of messages, for slow links.")
+	protected boolean compress;
+
+	@CommandLine.Option(
+		names = {"--headless"},
+		description = "Run without terminal UI: join a channel and send every input line as a message.")
+	protected boolean headless;
+
+	@CommandLine.Option(
+		names = {"-c", "--channel"},
+		description = "Channel to join in headless mode.")
+	protected String channel;
+
+	@CommandLine.Option(
+		names = {"-u", "--username"},
+		description = "Username to use in headless mode.")
+	protected String username;
+
+	@CommandLine.Option(
+		names = {"-i", "--input"},
+		description = "File to read messages from in headless mode (default: standard input).")
+	protected File input;
+
+	@CommandLine.Option(
+		names = {"-r", "--rate"},
+		description = "Messages sent per second in headless mode, 0 for no limit (default: ${DEFAULT-VALUE}).",
+		defaultValue = "100")
+	protected double rate;
+
+	@CommandLine.Option(
+		names = {"-b", "--batch"},
+		description = "Maximum number of messages sent in one BATCH in headless mode (default: ${DEFAULT-VALUE}).",
+		defaultValue = "1")
+	protected int batch;
+
 	@Override
 	public Integer call() {
+		if (headless) {
+			return callHeadless();
+		}
 		try {
-			Client client = new Client(host, port);
+			Client client = new Client(host, port, fps, scrollback, cacheDir.toPath(), compress);
 			client.init();
 			return 0;
 		} catch (RuntimeException e) {
@@ -31,4 +96,21 @@ public class ClientCommand implements Callable<Integer> {
 			return 1;
 		}
 	}
+
+	private Integer callHeadless() {
+		if (channel == null || username == null) {
+			System.err.println("headless mode requires --channel and --username");
+			return 1;
+		}
+		try (BufferedReader lines = input != null
+				? Files.newBufferedReader(input.toPath(), StandardCharsets.UTF_8)
+				: new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))) {
+			HeadlessClient client = new HeadlessClient(host, port);
+			client.setCompression(compress);
+			return client.run(channel, username, lines, rate, batch, System.out);
+		} catch (IOException e) {
+			System.err.println("failed to read input: " + e.getMessage());
+			return 1;
+		}
+	}
 }
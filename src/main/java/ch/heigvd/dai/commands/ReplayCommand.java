@@ -0,0 +1,84 @@
+package ch.heigvd.dai.commands;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import picocli.CommandLine;
+import ch.heigvd.dai.bench.TrafficReplay;
+import ch.heigvd.dai.server.TrafficCapture;
+
+@CommandLine.Command(name = "replay", description = "Replay a traffic capture against a CHCH server.")
+public class ReplayCommand implements Callable<Integer> {
+
+	@CommandLine.Parameters(
+		index = "0",
+		description = "Trace recorded with server --capture.")
+	protected Path trace;
+
+	@CommandLine.Option(
+		names = {"-H", "--host"},
+		description = "Host to connect to (default: ${DEFAULT-VALUE}).",
+		defaultValue = "localhost")
+	protected String host;
+
+	@CommandLine.Option(
+		names = {"-p", "--port"},
+		description = "Port to use (default: ${DEFAULT-VALUE}).",
+		defaultValue = "4269")
+	protected int port;
+
+	@CommandLine.Option(
+		names = {"-s", "--speed"},
+		description = "Replay speed: 1 for the recorded pace, N for N times faster, 0 for maximum speed (default: ${DEFAULT-VALUE}).",
+		defaultValue = "1")
+	protected double speed;
+
+	@CommandLine.Option(
+		names = {"--timeout"},
+		description = "Time to wait for the last responses, in milliseconds (default: ${DEFAULT-VALUE}).",
+		defaultValue = "30000")
+	protected long timeout;
+
+	@CommandLine.Option(
+		names = {"--report"},
+		description = "Write the results to this file, to be used as a baseline later.")
+	protected Path report;
+
+	@CommandLine.Option(
+		names = {"--baseline"},
+		description = "Results of a previous replay of the same trace to compare with.")
+	protected Path baseline;
+
+	@Override
+	public Integer call() {
+		try {
+			List<TrafficCapture.Record> records = TrafficCapture.read(trace);
+			TrafficReplay replay = new TrafficReplay(host, port, records, Math.max(0, speed), timeout);
+			Properties results = replay.run(System.out);
+			if (report != null) {
+				try (Writer writer = Files.newBufferedWriter(report)) {
+					results.store(writer, "chch replay of " + trace);
+				}
+			}
+			if (baseline != null) {
+				Properties previous = new Properties();
+				try (Reader reader = Files.newBufferedReader(baseline)) {
+					previous.load(reader);
+				}
+				TrafficReplay.compare(previous, results, System.out);
+			}
+			return 0;
+		} catch (IOException e) {
+			System.err.println("replay failed: " + e.getMessage());
+			return 1;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return 1;
+		}
+	}
+}
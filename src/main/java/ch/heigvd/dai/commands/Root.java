@@ -8,6 +8,9 @@ import picocli.CommandLine;
     subcommands = {
       ClientCommand.class,
       ServerCommand.class,
+      BenchCommand.class,
+      SimulateCommand.class,
+      ReplayCommand.class,
     },
     scope = CommandLine.ScopeType.INHERIT,
     mixinStandardHelpOptions = true)
@@ -1,7 +1,13 @@
 package ch.heigvd.dai.commands;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Callable;
 import ch.heigvd.dai.server.Server;
+import ch.heigvd.dai.server.ServerEvents;
+import ch.heigvd.dai.server.SocketTuning;
 import picocli.CommandLine;
 
 @CommandLine.Command(name = "server", description = "Start the server part of CHCH")
@@ -13,9 +19,158 @@ public class ServerCommand implements Callable<Integer> {
       defaultValue = "4269")
   protected int port;
 
+  @CommandLine.Option(
+      names = {"--resume-window"},
+      description = "Seconds during which a disconnected client can resume its session (default: ${DEFAULT-VALUE}).",
+      defaultValue = "60")
+  protected int resumeWindow;
+
+  @CommandLine.Option(
+      names = {"--idle-timeout"},
+      description = "Seconds without traffic before the server sends PING to a client (default: ${DEFAULT-VALUE}).",
+      defaultValue = "60")
+  protected int idleTimeout;
+
+  @CommandLine.Option(
+      names = {"--ping-timeout"},
+      description = "Seconds to wait for PONG before closing an idle connection (default: ${DEFAULT-VALUE}).",
+      defaultValue = "15")
+  protected int pingTimeout;
+
+  @CommandLine.Option(
+      names = {"--max-frame"},
+      description = "Maximum size in bytes of a line received from a client (default: ${DEFAULT-VALUE}).",
+      defaultValue = "8192")
+  protected int maxFrame;
+
+  @CommandLine.Option(
+      names = {"--compress-min"},
+      description = "Minimum size in bytes of a batch of lines compressed for clients that asked for compression (default: ${DEFAULT-VALUE}).",
+      defaultValue = "512")
+  protected int compressMin;
+
+  @CommandLine.Option(
+      names = {"--archive-threshold"},
+      description = "Size in KB of a channel history file above which its old messages are compressed into the archive, 0 to never archive (default: ${DEFAULT-VALUE}).",
+      defaultValue = "8192")
+  protected int archiveThreshold;
+
+  @CommandLine.Option(
+      names = {"--node-id"},
+      description = "Identifier of this node in a cluster (default: node-<port>).")
+  protected String nodeId;
+
+  @CommandLine.Option(
+      names = {"--peer"},
+      description = "Other node of the cluster, as id@host:port. Repeat for each node; all nodes must list the same cluster.")
+  protected List<String> peers = new ArrayList<>();
+
+  @CommandLine.Option(
+      names = {"--peer-port"},
+      description = "Port on which the other nodes of the cluster connect, separate from the client port. Required with --peer.",
+      defaultValue = "0")
+  protected int peerPort;
+
+  @CommandLine.Option(
+      names = {"--cluster-secret"},
+      description = "Secret shared by all the nodes of the cluster, checked when a node connects (default: the CHCH_CLUSTER_SECRET environment variable). Required with --peer.",
+      defaultValue = "${env:CHCH_CLUSTER_SECRET}")
+  protected String clusterSecret;
+
+  @CommandLine.Option(
+      names = {"--acceptors"},
+      description = "Threads accepting connections, each with its own SO_REUSEPORT socket where supported (default: ${DEFAULT-VALUE}).",
+      defaultValue = "1")
+  protected int acceptors;
+
+  @CommandLine.Option(
+      names = {"--backlog"},
+      description = "Pending connections queued by the kernel per listening socket (default: ${DEFAULT-VALUE}).",
+      defaultValue = "50")
+  protected int backlog;
+
+  @CommandLine.Option(
+      names = {"--tcp-nodelay"},
+      description = "Disable Nagle's algorithm on client connections.")
+  protected boolean tcpNoDelay;
+
+  @CommandLine.Option(
+      names = {"--keepalive"},
+      description = "Enable TCP keepalive on client connections.")
+  protected boolean keepAlive;
+
+  @CommandLine.Option(
+      names = {"--sndbuf"},
+      description = "SO_SNDBUF of client connections in bytes, 0 for the system default (default: ${DEFAULT-VALUE}).",
+      defaultValue = "0")
+  protected int sendBuffer;
+
+  @CommandLine.Option(
+      names = {"--rcvbuf"},
+      description = "SO_RCVBUF of client connections in bytes, 0 for the system default (default: ${DEFAULT-VALUE}).",
+      defaultValue = "0")
+  protected int receiveBuffer;
+
+  @CommandLine.Option(
+      names = {"--capture"},
+      description = "Record every inbound client command to this binary trace, for the replay command.")
+  protected Path capture;
+
+  @CommandLine.Option(
+      names = {"--latency-report"},
+      description = "Seconds between per-channel latency reports in the log, 0 to disable (default: ${DEFAULT-VALUE}).",
+      defaultValue = "0")
+  protected int latencyReport;
+
+  @CommandLine.Option(
+      names = {"--jfr"},
+      description = "Start a Flight Recorder recording with the server events, written to this file when the server stops.")
+  protected Path jfr;
+
+  @CommandLine.Option(
+      names = {"-v", "--verbose"},
+      description = "Log every command received and every line sent.")
+  protected boolean verbose;
+
+  @CommandLine.Option(
+      names = {"--warmup"},
+      arity = "0..1",
+      fallbackValue = "1000",
+      description = "Before accepting connections, run synthetic in-process traffic through the commands and the broadcast,"
+          + " with this many messages per synthetic client (default without a value: ${FALLBACK-VALUE}).",
+      defaultValue = "0")
+  protected int warmup;
+
+  @CommandLine.Option(
+      names = {"--warmup-exit"},
+      description = "Exit after the warmup instead of accepting connections, e.g. as the training run of an AppCDS archive.")
+  protected boolean warmupExit;
+
   @Override
-  public Integer call() {
-      Server server = new Server(port);
+  public Integer call() throws IOException {
+      if (warmupExit && warmup == 0) {
+          System.out.println("--warmup-exit requires --warmup");
+          return 2;
+      }
+      if (!peers.isEmpty() && (peerPort <= 0 || clusterSecret == null || clusterSecret.isEmpty())) {
+          System.out.println("--peer requires --peer-port and --cluster-secret");
+          return 2;
+      }
+      if (clusterSecret != null && clusterSecret.contains(" ")) {
+          System.out.println("--cluster-secret must not contain spaces");
+          return 2;
+      }
+      Server.setVerbose(verbose);
+      if (jfr != null) {
+          ServerEvents.startRecording(jfr);
+      }
+      SocketTuning tuning = new SocketTuning(acceptors, backlog, tcpNoDelay, keepAlive, sendBuffer, receiveBuffer);
+      Server server = new Server(port, resumeWindow, idleTimeout, pingTimeout, maxFrame, nodeId, peers, clusterSecret,
+          peerPort, tuning, capture, latencyReport, compressMin, archiveThreshold, warmup);
+      if (warmupExit) {
+          server.open();
+          return 0;
+      }
       server.createServer();
       return 0;
   }
@@ -0,0 +1,71 @@
+package ch.heigvd.dai.commands;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.Callable;
+import picocli.CommandLine;
+import ch.heigvd.dai.bench.Simulation;
+import ch.heigvd.dai.server.Server;
+
+@CommandLine.Command(name = "simulate", description = "Run scripted clients against an in-memory server with a manual clock.")
+public class SimulateCommand implements Callable<Integer> {
+
+	@CommandLine.Option(
+		names = {"-c", "--clients"},
+		description = "Number of scripted clients (default: ${DEFAULT-VALUE}).",
+		defaultValue = "1000")
+	protected int clients;
+
+	@CommandLine.Option(
+		names = {"--channels"},
+		description = "Number of channels the clients are spread over (default: ${DEFAULT-VALUE}).",
+		defaultValue = "10")
+	protected int channels;
+
+	@CommandLine.Option(
+		names = {"-m", "--messages"},
+		description = "Messages posted by each client (default: ${DEFAULT-VALUE}).",
+		defaultValue = "10")
+	protected int messages;
+
+	@CommandLine.Option(
+		names = {"--silent"},
+		description = "Extra clients that never answer PING and must time out (default: ${DEFAULT-VALUE}).",
+		defaultValue = "100")
+	protected int silent;
+
+	@CommandLine.Option(
+		names = {"--timeout"},
+		description = "Real time allowed for each phase, in milliseconds (default: ${DEFAULT-VALUE}).",
+		defaultValue = "60000")
+	protected long timeout;
+
+	@CommandLine.Option(
+		names = {"-v", "--verbose"},
+		description = "Keep the server logs.")
+	protected boolean verbose;
+
+	@Override
+	public Integer call() {
+		PrintStream out = System.out;
+		Server.setVerbose(verbose);
+		if (!verbose) {
+			// the server logs every connection, thousands of clients would drown the results
+			System.setOut(Simulation.nullStream());
+		}
+		try {
+			Simulation simulation = new Simulation(clients, Math.max(1, channels), messages, silent, timeout);
+			boolean ok = simulation.run(out);
+			out.println(ok ? "simulation passed" : "simulation FAILED");
+			return ok ? 0 : 1;
+		} catch (IOException e) {
+			out.println("simulation failed: " + e);
+			return 1;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return 1;
+		} finally {
+			System.setOut(out);
+		}
+	}
+}
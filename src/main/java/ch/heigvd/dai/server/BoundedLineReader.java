@@ -0,0 +1,110 @@
+package ch.heigvd.dai.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Lecteur de lignes UTF-8 avec une taille maximale par ligne (frame).
+ * Contrairement à BufferedReader.readLine(), une ligne trop longue n'est jamais gardée
+ * en mémoire : dès que la limite est dépassée, les octets sont ignorés jusqu'au prochain
+ * '\n', puis une FrameTooLongException est levée. La lecture peut continuer normalement ensuite.
+ */
+public class BoundedLineReader {
+    private final InputStream in;
+    private int maxFrameBytes;
+    private final byte[] buffer = new byte[8192];
+    private int position;
+    private int limit;
+    private byte[] line = new byte[256];
+    private int length;
+
+    /**
+     * Ligne plus longue que la taille maximale, déjà ignorée
+     */
+    public static class FrameTooLongException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public FrameTooLongException(int maxFrameBytes) {
+            super("frame longer than " + maxFrameBytes + " bytes");
+        }
+    }
+
+    /**
+     * @param in
+     * @param maxFrameBytes taille maximale d'une ligne en octets, sans le '\n'
+     */
+    public BoundedLineReader(InputStream in, int maxFrameBytes) {
+        this.in = in;
+        this.maxFrameBytes = maxFrameBytes;
+    }
+
+    /**
+     * Change la taille maximale des lignes suivantes
+     * @param maxFrameBytes
+     */
+    public void setMaxFrameBytes(int maxFrameBytes) {
+        this.maxFrameBytes = maxFrameBytes;
+    }
+
+    /**
+     * Lit la prochaine ligne, sans le '\n' ni un éventuel '\r' final
+     * @return la ligne, ou null à la fin du flux
+     * @throws FrameTooLongException si la ligne dépasse la taille maximale (elle a été ignorée)
+     * @throws IOException
+     */
+    public String readLine() throws IOException {
+        length = 0;
+        boolean overflow = false;
+        while (true) {
+            if (position == limit) {
+                limit = in.read(buffer);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    if (overflow) {
+                        throw new FrameTooLongException(maxFrameBytes);
+                    }
+                    return length == 0 ? null : decode();
+                }
+            }
+
+            int start = position;
+            while (position < limit && buffer[position] != '\n') {
+                position++;
+            }
+            int chunk = position - start;
+            if (!overflow) {
+                if (length + chunk > maxFrameBytes) {
+                    //on arrête d'accumuler, le reste de la ligne sera ignoré
+                    overflow = true;
+                    length = 0;
+                } else {
+                    append(start, chunk);
+                }
+            }
+
+            if (position < limit) {
+                position++; //on consomme le '\n'
+                if (overflow) {
+                    throw new FrameTooLongException(maxFrameBytes);
+                }
+                return decode();
+            }
+        }
+    }
+
+    private void append(int start, int chunk) {
+        if (length + chunk > line.length) {
+            line = Arrays.copyOf(line, Math.min(maxFrameBytes, Math.max(line.length * 2, length + chunk)));
+        }
+        System.arraycopy(buffer, start, line, length, chunk);
+        length += chunk;
+    }
+
+    private String decode() {
+        int end = length > 0 && line[length - 1] == '\r' ? length - 1 : length;
+        return new String(line, 0, end, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,690 @@
+package ch.heigvd.dai.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Historique d'un channel, sauvegardé dans data/<channel>.txt.
+ * Chaque message reçoit un numéro de séquence (1 pour le premier message du channel),
+ * ce qui permet aux clients de ne demander que les messages qu'ils n'ont pas encore.
+ * Une ligne du fichier a le format "<timestamp> <username> <message>".
+ * Les messages sont aussi indexés pour SEARCH, voir SearchIndex.
+ *
+ * Les messages ne sont pas tous gardés en mémoire : on garde la position de chaque ligne dans
+ * le fichier (offsets) et seulement les messages récents. Au redémarrage, les positions sont
+ * reprises du snapshot (voir StateStore) et seule la fin du fichier écrite depuis est relue.
+ *
+ * Quand le fichier dépasse le seuil d'archivage, un thread de fond compresse ses anciens messages
+ * dans l'archive du channel (voir HistoryArchive) et réécrit le fichier avec seulement les plus récents.
+ * Le fichier commence alors par la ligne "#<base>" : ses messages ont les numéros base + 1, base + 2, ...
+ */
+public class ChannelHistory {
+    private static final int RECENT_CAPACITY = 4096;
+    private final Path file;
+    private OutputStream writer;
+    private final SearchIndex index;
+    private final HistoryArchive archive;
+    // taille du fichier à partir de laquelle les anciens messages sont archivés, 0 pour ne jamais archiver
+    private final long archiveThreshold;
+    private boolean archiving;
+    // offsets[i] est la position du message base + 1 + i
+    private long[] offsets = new long[1024];
+    private int base;
+    private int head;
+    private long length;
+    private boolean missingNewline;
+    // texte des messages récents en mémoire, recent.get(0) a le numéro de séquence recentStart + 1
+    // le username de chaque message est gardé à part, en identifiant de la table des usernames,
+    // référencé (voir Symbols.acquire) tant que le message est en mémoire
+    private final List<String> recent = new ArrayList<>();
+    private int[] recentUsers = new int[64];
+    private int recentStart;
+    private final Symbols usernames;
+
+    /**
+     * Positions des messages dans le fichier à un instant donné, gardées dans le snapshot du serveur
+     */
+    public static class Snapshot {
+        private final int base;
+        private final int head;
+        private final long length;
+        private final long[] offsets;
+
+        public Snapshot(int base, int head, long length, long[] offsets) {
+            this.base = base;
+            this.head = head;
+            this.length = length;
+            this.offsets = offsets;
+        }
+
+        public int getBase() {return base;}
+        public int getHead() {return head;}
+        public long getLength() {return length;}
+        public long[] getOffsets() {return offsets;}
+    }
+
+    /**
+     * On relit tout l'historique existant puis on ouvre le fichier en ajout
+     * @param file
+     * @throws IOException
+     */
+    public ChannelHistory(Path file) throws IOException {
+        this(file, null, 0, new Symbols());
+    }
+
+    /**
+     * On reprend les positions du snapshot, on relit seulement la fin du fichier
+     * puis on ouvre le fichier en ajout
+     * @param file
+     * @param snapshot positions connues, null pour tout relire
+     * @param archiveThreshold taille du fichier à partir de laquelle les anciens messages sont archivés, 0 pour ne jamais archiver
+     * @param usernames table des usernames, partagée entre les channels
+     * @throws IOException
+     */
+    public ChannelHistory(Path file, Snapshot snapshot, long archiveThreshold, Symbols usernames) throws IOException {
+        this.file = file;
+        this.archiveThreshold = archiveThreshold;
+        this.usernames = usernames;
+        //l'index et l'archive sont dans data/index/ et data/archive/, un sous-dossier n'est pas pris pour un channel
+        String name = file.getFileName().toString();
+        String channel = name.contains(".") ? name.substring(0, name.lastIndexOf('.')) : name;
+        archive = new HistoryArchive(file.resolveSibling("archive"), channel);
+
+        long size = Files.size(file);
+        base = readBase(file);
+        head = base;
+        if (snapshot != null && snapshot.length <= size && snapshot.base == base) {
+            offsets = Arrays.copyOf(snapshot.offsets, Math.max(1024, (snapshot.head - base) * 2));
+            head = snapshot.head;
+            length = snapshot.length;
+        }
+        scan(size);
+        int archived = archive.getLastSeq();
+        if (archived > base) {
+            //arrêt entre l'écriture de l'archive et la réécriture du fichier : ces messages sont déjà archivés
+            int dropped = Math.min(archived, head) - base;
+            offsets = Arrays.copyOfRange(offsets, dropped, Math.max(offsets.length, dropped + 1024));
+            base = archived;
+            head = Math.max(head, archived);
+        } else if (archived < base) {
+            System.out.println("[Server] History archive of " + channel + " ends at " + archived
+                    + ", messages up to " + base + " are missing");
+        }
+        recentStart = head;
+        writer = Files.newOutputStream(file, StandardOpenOption.APPEND);
+
+        index = new SearchIndex(file.resolveSibling("index").resolve(channel + ".idx"));
+        if (index.getIndexedUpTo() > head) {
+            index.clear();
+        }
+        //on n'indexe que les messages arrivés depuis la dernière sauvegarde de l'index
+        forEachSince(index.getIndexedUpTo(), head, (entry, seq) -> index.add(seq, entry));
+        archiveIfNeeded();
+    }
+
+    /**
+     * Lit le numéro de séquence du dernier message archivé avant ce fichier, dans sa ligne "#<base>"
+     * @param file
+     * @return 0 si le fichier ne commence pas par cette ligne
+     * @throws IOException
+     */
+    private static int readBase(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            if (in.read() != '#') {
+                return 0;
+            }
+            int base = 0;
+            int b;
+            while ((b = in.read()) >= '0' && b <= '9') {
+                base = base * 10 + (b - '0');
+            }
+            return base;
+        }
+    }
+
+    /**
+     * Lit le fichier de length jusqu'à la fin et note la position de chaque ligne valide
+     * (une ligne sans espace n'a pas de username et n'est pas un message)
+     * @param size
+     * @throws IOException
+     */
+    private void scan(long size) throws IOException {
+        if (length >= size) {
+            return;
+        }
+        try (InputStream in = new BufferedInputStream(Channels.newInputStream(
+                FileChannel.open(file, StandardOpenOption.READ).position(length)), 1 << 16)) {
+            long lineStart = length;
+            boolean space = false;
+            int b;
+            while ((b = in.read()) != -1) {
+                length++;
+                if (b == ' ') {
+                    space = true;
+                } else if (b == '\n') {
+                    if (space) {
+                        addOffset(lineStart);
+                    }
+                    lineStart = length;
+                    space = false;
+                }
+            }
+            if (lineStart < length) {
+                //dernière ligne sans '\n' (écriture interrompue) : on la garde, le prochain ajout la termine
+                if (space) {
+                    addOffset(lineStart);
+                }
+                missingNewline = true;
+            }
+        }
+    }
+
+    private void addOffset(long offset) {
+        if (head - base == offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+        offsets[head++ - base] = offset;
+    }
+
+    /**
+     * Ajoute un message à l'historique et l'écrit sur le disque
+     * @param entry "username message"
+     * @return le numéro de séquence du message
+     */
+    public synchronized int append(String entry) {
+        return appendAll(List.of(entry));
+    }
+
+    /**
+     * Ajoute plusieurs messages à l'historique, écrits sur le disque en une seule fois (commande BATCH)
+     * @param entries "username message" pour chaque message
+     * @return le numéro de séquence du dernier message
+     */
+    public synchronized int appendAll(List<String> entries) {
+        ServerEvents.HistoryAppendEvent event = new ServerEvents.HistoryAppendEvent();
+        event.begin();
+        ByteArrayOutputStream lines = new ByteArrayOutputStream();
+        long timestamp = System.currentTimeMillis();
+        long position = length;
+        if (missingNewline) {
+            lines.write('\n');
+            position++;
+            missingNewline = false;
+        }
+        for (String entry : entries) {
+            byte[] line = (timestamp + " " + entry + "\n").getBytes(StandardCharsets.UTF_8);
+            lines.writeBytes(line);
+            addOffset(position);
+            position += line.length;
+
+            addRecent(entry);
+            index.add(head, entry);
+        }
+        try {
+            lines.writeTo(writer);
+            writer.flush();
+        } catch (IOException e) {
+            System.out.println("[Server] Failed to save history to " + file + ": " + e);
+        }
+        length = position;
+        if (recent.size() > 2 * RECENT_CAPACITY) {
+            int trimmed = recent.size() - RECENT_CAPACITY;
+            for (int i = 0; i < trimmed; i++) {
+                usernames.release(recentUsers[i]);
+            }
+            recent.subList(0, trimmed).clear();
+            System.arraycopy(recentUsers, trimmed, recentUsers, 0, recent.size());
+            recentStart += trimmed;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.file = file.toString();
+            event.sequence = head;
+            event.bytes = lines.size();
+            event.commit();
+        }
+        archiveIfNeeded();
+        return head;
+    }
+
+    /**
+     * Lance l'archivage en arrière-plan si le fichier dépasse le seuil et qu'aucun archivage n'est en cours.
+     * Les messages récents, ceux qu'on a en mémoire, restent dans le fichier.
+     */
+    private void archiveIfNeeded() {
+        if (archiveThreshold <= 0 || archiving || length < archiveThreshold || head - base <= RECENT_CAPACITY) {
+            return;
+        }
+        archiving = true;
+        Thread.startVirtualThread(this::archive);
+    }
+
+    /**
+     * Compresse les anciens messages du fichier dans l'archive, puis réécrit le fichier sans eux.
+     * La lecture et la compression se font sans le verrou : cette partie du fichier ne change plus.
+     * Seule la copie de la fin du fichier bloque les ajouts.
+     * Si la réécriture a échoué la dernière fois, l'archive contient déjà des messages du fichier :
+     * on reprend après le dernier message archivé pour ne pas les archiver deux fois.
+     */
+    private void archive() {
+        int from;
+        int to;
+        long start;
+        long end;
+        synchronized (this) {
+            from = Math.max(base, archive.getLastSeq()) + 1;
+            to = head - RECENT_CAPACITY;
+            start = offsets[from - base - 1];
+            end = offsets[to - base];
+        }
+        try {
+            long begin = System.nanoTime();
+            List<String> lines = new ArrayList<>(Math.max(0, to - from + 1));
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                channel.position(start);
+                BufferedReader in = new BufferedReader(new InputStreamReader(
+                        Channels.newInputStream(channel), StandardCharsets.UTF_8), 1 << 16);
+                String line;
+                while (lines.size() <= to - from && (line = in.readLine()) != null) {
+                    //même règle que scan() : une ligne sans espace n'est pas un message
+                    if (line.indexOf(' ') >= 0) {
+                        lines.add(line);
+                    }
+                }
+            }
+            if (lines.size() != Math.max(0, to - from + 1)) {
+                throw new IOException("expected " + (to - from + 1) + " messages, found " + lines.size());
+            }
+            long compressed = lines.isEmpty() ? 0 : archive.append(lines, from);
+            synchronized (this) {
+                rewrite(to, end);
+            }
+            System.out.println("[Server] Archived messages " + from + " to " + to + " of " + file.getFileName()
+                    + ": " + (end - start) + " bytes compressed to " + compressed + " in "
+                    + (System.nanoTime() - begin) / 1_000_000 + " ms");
+        } catch (IOException | RuntimeException e) {
+            System.out.println("[Server] Failed to archive history of " + file + ": " + e);
+        } finally {
+            synchronized (this) {
+                archiving = false;
+            }
+        }
+    }
+
+    /**
+     * Remplace le fichier par ses messages après newBase, précédés de la ligne "#<newBase>".
+     * Le nouveau fichier est écrit à côté puis renommé : un arrêt pendant la copie laisse l'ancien fichier.
+     * Le fichier est rouvert en ajout dans tous les cas, le nouveau si le renommage a réussi, sinon l'ancien.
+     * @param newBase dernier message archivé
+     * @param end position du premier message gardé
+     * @throws IOException
+     */
+    private void rewrite(int newBase, long end) throws IOException {
+        byte[] header = ("#" + newBase + "\n").getBytes(StandardCharsets.US_ASCII);
+        Path tmp = file.resolveSibling("archive").resolve(file.getFileName() + ".tmp");
+        writer.close();
+        try {
+            try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ);
+                 FileChannel target = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                         StandardOpenOption.TRUNCATE_EXISTING)) {
+                target.write(ByteBuffer.wrap(header));
+                long copied = 0;
+                while (copied < length - end) {
+                    copied += source.transferTo(end + copied, length - end - copied, target);
+                }
+                target.force(true);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            int kept = head - newBase;
+            long shift = end - header.length;
+            long[] keptOffsets = new long[Math.max(1024, kept * 2)];
+            for (int i = 0; i < kept; i++) {
+                keptOffsets[i] = offsets[newBase - base + i] - shift;
+            }
+            offsets = keptOffsets;
+            base = newBase;
+            length -= shift;
+        } finally {
+            writer = Files.newOutputStream(file, StandardOpenOption.APPEND);
+        }
+    }
+
+    /**
+     * Retourne le numéro de séquence du dernier message (0 si l'historique est vide)
+     * @return
+     */
+    public synchronized int head() {
+        return head;
+    }
+
+    /**
+     * Retourne les messages dont le numéro de séquence est plus grand que since
+     * @param since
+     * @return
+     */
+    public List<String> since(int since) {
+        return since(since, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Retourne au plus count messages dont le numéro de séquence est plus grand que since.
+     * Pour des messages archivés, seuls les blocs qui les contiennent sont décompressés.
+     * Le verrou n'est pris que pour copier les messages récents et ouvrir le fichier :
+     * l'archive et le fichier sont lus sans bloquer les ajouts du shard.
+     * @param since
+     * @param count
+     * @return
+     */
+    public List<String> since(int since, int count) {
+        int first = Math.max(0, since);
+        int to;
+        int archived;
+        int inFile;
+        long position = 0;
+        FileChannel channel = null;
+        List<String> recentMessages = new ArrayList<>();
+        synchronized (this) {
+            to = (int) Math.min(head, (long) first + count);
+            //messages first + 1 à archived dans l'archive, puis jusqu'à inFile dans le fichier, puis en mémoire
+            archived = Math.max(first, Math.min(to, base));
+            inFile = Math.max(archived, Math.min(to, recentStart));
+            for (int seq = inFile + 1; seq <= to; seq++) {
+                recentMessages.add(recent(seq));
+            }
+            if (inFile > archived) {
+                position = offsets[archived - base];
+                channel = openFile();
+                if (channel == null) {
+                    inFile = archived;
+                }
+            }
+        }
+        List<String> messages = new ArrayList<>(Math.max(0, to - first));
+        if (archived > first) {
+            archive.read(first + 1, archived, (entry, seq) -> messages.add(entry));
+        }
+        if (inFile > archived) {
+            readFile(channel, position, archived + 1, inFile, (entry, seq) -> messages.add(entry));
+        }
+        messages.addAll(recentMessages);
+        return messages;
+    }
+
+    /**
+     * Cherche le premier message écrit à timestamp ou après : les blocs de l'archive sont trouvés par leur
+     * premier timestamp, seul le fichier est lu ligne par ligne.
+     * Le verrou n'est pris que pour ouvrir le fichier : la lecture ne bloque pas les ajouts du shard.
+     * @param timestamp en millisecondes depuis l'epoch
+     * @return son numéro de séquence, ou head() + 1 si tous les messages sont plus anciens
+     */
+    public int seqAt(long timestamp) {
+        int previousArchived = -1;
+        while (true) {
+            int archived = archive.getLastSeq();
+            int seq = archive.seqAt(timestamp);
+            if (seq <= archived) {
+                //trouvé dans l'archive, qui ne change plus
+                return seq;
+            }
+            int last;
+            long position;
+            FileChannel channel;
+            synchronized (this) {
+                if (seq <= base && archived != previousArchived) {
+                    //un archivage s'est terminé entre-temps, on cherche à nouveau dans l'archive.
+                    //si elle n'a pas changé, elle s'arrête avant base (messages perdus) : on cherche dans le fichier
+                    previousArchived = archived;
+                    continue;
+                }
+                if (head == base) {
+                    return head + 1;
+                }
+                seq = base + 1;
+                last = head;
+                position = offsets[0];
+                channel = openFile();
+                if (channel == null) {
+                    return head + 1;
+                }
+            }
+            try (channel) {
+                channel.position(position);
+                BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8), 1 << 16);
+                String line;
+                while (seq <= last && (line = in.readLine()) != null) {
+                    if (line.indexOf(' ') < 0) {
+                        continue;
+                    }
+                    if (HistoryArchive.timestamp(line) >= timestamp) {
+                        return seq;
+                    }
+                    seq++;
+                }
+            } catch (IOException e) {
+                System.out.println("[Server] Failed to read history from " + file + ": " + e);
+            }
+            return last + 1;
+        }
+    }
+
+    /**
+     * Parcourt les messages dont le numéro de séquence est plus grand que since, jusqu'à to, depuis la mémoire
+     * s'ils sont récents, sinon en lisant le fichier à partir de la position du premier
+     * @param since
+     * @param to dernier message parcouru
+     * @param action reçoit le message et son numéro de séquence
+     */
+    private void forEachSince(int since, int to, ObjIntConsumer<String> action) {
+        since = Math.max(0, since);
+        if (since >= to) {
+            return;
+        }
+        if (since >= recentStart) {
+            for (int seq = since + 1; seq <= to; seq++) {
+                action.accept(recent(seq), seq);
+            }
+            return;
+        }
+        read(since + 1, to, action);
+    }
+
+    /**
+     * Lit les messages from à to (inclus), dans l'archive pour ceux qui y sont puis dans le fichier
+     */
+    private void read(int from, int to, ObjIntConsumer<String> action) {
+        if (from <= base) {
+            archive.read(from, Math.min(to, base), action);
+            from = base + 1;
+        }
+        if (from > to) {
+            return;
+        }
+        FileChannel channel = openFile();
+        if (channel != null) {
+            readFile(channel, offsets[from - base - 1], from, to, action);
+        }
+    }
+
+    /**
+     * Ouvre le fichier pour une lecture faite sans le verrou. Appelé avec le verrou, pour que les positions
+     * lues en même temps soient celles du fichier ouvert : si un archivage le remplace pendant la lecture,
+     * on continue de lire l'ancien.
+     * @return le fichier, ou null s'il n'a pas pu être ouvert
+     */
+    private FileChannel openFile() {
+        try {
+            return FileChannel.open(file, StandardOpenOption.READ);
+        } catch (IOException e) {
+            System.out.println("[Server] Failed to read history from " + file + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Lit les messages from à to (inclus) d'un fichier ouvert par openFile(), puis le ferme
+     * @param channel
+     * @param position position du message from
+     * @param from
+     * @param to
+     * @param action reçoit le message et son numéro de séquence
+     */
+    private void readFile(FileChannel channel, long position, int from, int to, ObjIntConsumer<String> action) {
+        try (channel) {
+            channel.position(position);
+            BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8), 1 << 16);
+            int seq = from;
+            String line;
+            while (seq <= to && (line = in.readLine()) != null) {
+                String[] parts = line.split(" ", 2);
+                if (parts.length == 2) {
+                    action.accept(parts[1], seq++);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("[Server] Failed to read history from " + file + ": " + e);
+        }
+    }
+
+    /**
+     * Garde un message en mémoire : le texte d'un côté, l'identifiant du username de l'autre
+     * @param entry "username message"
+     */
+    private void addRecent(String entry) {
+        int space = entry.indexOf(' ');
+        String username = space < 0 ? entry : entry.substring(0, space);
+        int count = recent.size();
+        if (count == recentUsers.length) {
+            recentUsers = Arrays.copyOf(recentUsers, count * 2);
+        }
+        recentUsers[count] = usernames.acquire(username);
+        recent.add(space < 0 ? "" : entry.substring(space + 1));
+    }
+
+    /**
+     * Reconstruit un message gardé en mémoire
+     * @param seq plus grand que recentStart
+     * @return "username message"
+     */
+    private String recent(int seq) {
+        int i = seq - recentStart - 1;
+        return usernames.name(recentUsers[i]) + " " + recent.get(i);
+    }
+
+    /**
+     * Cherche les messages qui contiennent tous les mots de la requête
+     * @param query
+     * @param limit nombre maximum de résultats
+     * @return les messages "username message" trouvés, les plus récents, du plus ancien au plus récent
+     */
+    public List<String> search(String query, int limit) {
+        String[] found;
+        int[] seqs;
+        //position dans le fichier des résultats à y lire, -1 pour les autres
+        long[] positions;
+        int archived;
+        FileChannel channel = null;
+        synchronized (this) {
+            seqs = index.search(query, limit);
+            found = new String[seqs.length];
+            positions = new long[seqs.length];
+            archived = base;
+            for (int i = 0; i < seqs.length; i++) {
+                positions[i] = -1;
+                if (seqs[i] > recentStart) {
+                    found[i] = recent(seqs[i]);
+                } else if (seqs[i] > base) {
+                    positions[i] = offsets[seqs[i] - base - 1];
+                    if (channel == null) {
+                        channel = openFile();
+                    }
+                }
+            }
+        }
+        //l'archive et le fichier sont lus sans le verrou, comme dans since()
+        for (int i = 0; i < seqs.length && seqs[i] <= archived; i++) {
+            int result = i;
+            archive.read(seqs[i], seqs[i], (entry, seq) -> found[result] = entry);
+        }
+        if (channel != null) {
+            try (FileChannel opened = channel) {
+                for (int i = 0; i < seqs.length; i++) {
+                    if (positions[i] >= 0) {
+                        opened.position(positions[i]);
+                        BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(opened), StandardCharsets.UTF_8));
+                        String line = in.readLine();
+                        int space = line == null ? -1 : line.indexOf(' ');
+                        found[i] = space < 0 ? null : line.substring(space + 1);
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("[Server] Failed to read history from " + file + ": " + e);
+            }
+        }
+        return Arrays.asList(found);
+    }
+
+    /**
+     * Retourne les positions actuelles des messages, pour le snapshot du serveur
+     * @return
+     */
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(base, head, length, Arrays.copyOf(offsets, head - base));
+    }
+
+    /**
+     * Ferme le fichier d'historique, aucun message ne peut plus être ajouté.
+     * Les usernames des messages récents sont rendus à la table des usernames.
+     */
+    public synchronized void close() {
+        for (int i = 0; i < recent.size(); i++) {
+            usernames.release(recentUsers[i]);
+        }
+        recent.clear();
+        recentStart = head;
+        try {
+            writer.close();
+        } catch (IOException e) {
+            System.out.println("[Server] Failed to close history " + file + ": " + e);
+        }
+    }
+
+    /**
+     * Sauvegarde l'index de recherche s'il a changé.
+     * L'index est seulement figé sous le verrou, l'écriture ne bloque pas les ajouts du shard.
+     */
+    public void saveIndex() {
+        SearchIndex.Frozen frozen;
+        synchronized (this) {
+            frozen = index.freeze();
+        }
+        if (frozen == null) {
+            return;
+        }
+        try {
+            frozen.save();
+        } catch (IOException e) {
+            System.out.println("[Server] Failed to save search index of " + file + ": " + e);
+            synchronized (this) {
+                index.markDirty();
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package ch.heigvd.dai.server;
+
+import java.util.Iterator;
+
+/**
+ * Membres d'un channel sur ce serveur, indexés par l'identifiant de leur username (voir Symbols).
+ * Chaque changement incrémente la version de la liste, envoyée avec les changements PRESENCE.
+ * La liste des usernames (USRLIST, PRESENCE) n'est reconstruite que si la version a changé depuis la dernière fois.
+ * N'est lu et modifié que par le shard du channel.
+ */
+public class ChannelMembers implements Iterable<ClientHandler> {
+    private final IntObjectMap<ClientHandler> members = new IntObjectMap<>();
+    private long version;
+    private String names = "";
+    private long namesVersion;
+
+    /**
+     * Ajoute un membre
+     * @param userId
+     * @param client
+     */
+    public void add(int userId, ClientHandler client) {
+        members.put(userId, client);
+        version++;
+    }
+
+    /**
+     * Retire un membre, seulement si son username est encore à ce client
+     * @param userId
+     * @param client
+     * @return true si le membre a été retiré
+     */
+    public boolean remove(int userId, ClientHandler client) {
+        if (!members.remove(userId, client)) {
+            return false;
+        }
+        version++;
+        return true;
+    }
+
+    /**
+     * Change le username d'un membre, en un seul changement de version
+     * @param previousId
+     * @param userId
+     * @param client
+     * @return false si le client n'était pas membre sous previousId
+     */
+    public boolean rename(int previousId, int userId, ClientHandler client) {
+        if (!members.remove(previousId, client)) {
+            return false;
+        }
+        members.put(userId, client);
+        version++;
+        return true;
+    }
+
+    public int size() {return members.size();}
+    public boolean isEmpty() {return members.isEmpty();}
+    public long getVersion() {return version;}
+
+    /**
+     * Retourne les usernames des membres séparés par des espaces, la même String tant que la liste ne change pas
+     * @param usernames table des usernames
+     * @return "" si le channel est vide
+     */
+    public String names(Symbols usernames) {
+        if (namesVersion != version) {
+            StringBuilder list = new StringBuilder();
+            members.forEachKey(userId -> {
+                if (!list.isEmpty()) {
+                    list.append(' ');
+                }
+                list.append(usernames.name(userId));
+            });
+            names = list.toString();
+            namesVersion = version;
+        }
+        return names;
+    }
+
+    @Override
+    public Iterator<ClientHandler> iterator() {
+        return members.iterator();
+    }
+}
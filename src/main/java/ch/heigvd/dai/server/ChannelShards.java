@@ -0,0 +1,90 @@
+package ch.heigvd.dai.server;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * Répartit les channels sur un nombre fixe de shards, un par coeur.
+ * Chaque shard est un thread unique : tout ce qui touche à l'état d'un channel
+ * (membres, ajout à l'historique, envoi aux membres) est exécuté sur le shard du channel,
+ * dans l'ordre de soumission, sans verrou. Les connexions ne font que soumettre des tâches.
+ * Des channels sur des shards différents avancent en parallèle.
+ */
+public class ChannelShards {
+    private final ExecutorService[] shards;
+
+    /**
+     * @param count nombre de shards
+     */
+    public ChannelShards(int count) {
+        shards = new ExecutorService[Math.max(1, count)];
+        for (int i = 0; i < shards.length; i++) {
+            int index = i;
+            shards[i] = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, "chch-shard-" + index);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Retourne le numéro du shard d'un channel
+     * @param channel
+     * @return
+     */
+    public int shardOf(String channel) {
+        int h = channel.hashCode();
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % shards.length;
+    }
+
+    /**
+     * Exécute une tâche sur le shard du channel, sans attendre
+     * @param channel
+     * @param task
+     */
+    public void execute(String channel, Runnable task) {
+        shards[shardOf(channel)].execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.out.println("[Server] Error in shard of channel " + channel + ": " + e);
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Exécute une tâche sur le shard du channel et attend son résultat.
+     * À n'utiliser que depuis le thread d'une connexion, jamais depuis un shard.
+     * @param channel
+     * @param task
+     * @return le résultat de la tâche
+     */
+    public <T> T call(String channel, Supplier<T> task) {
+        try {
+            return CompletableFuture.supplyAsync(task, shards[shardOf(channel)]).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Exécute une tâche sur le shard du channel et attend qu'elle soit terminée
+     * @param channel
+     * @param task
+     */
+    public void run(String channel, Runnable task) {
+        call(channel, () -> {
+            task.run();
+            return null;
+        });
+    }
+}
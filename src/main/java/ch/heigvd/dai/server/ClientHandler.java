@@ -1,19 +1,69 @@
 package ch.heigvd.dai.server;
 
 import java.io.*;
-import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import ch.heigvd.dai.transport.Transport;
 
 public class ClientHandler implements Runnable {
     private BufferedWriter out;
-    private final Socket socket;
+    private final Transport transport;
     private String username;
+    // identifiant du username dans Server.getUserIds(), la clé du client dans les membres de son channel
+    private int userId = -1;
     private String channel;
+    private String requestTag;
+    //lu par la connexion qui reprend la session quand celle-ci est restée à moitié ouverte
+    private volatile SessionRegistry.Session session;
+    private String peerId;
+    // connexion reçue sur le port du cluster : seule la poignée de main d'un autre noeud y est acceptée
+    private final boolean peerListener;
+    // id de la connexion dans la trace de --capture, 0 sans capture
+    private long captureId;
+    // mode trace : les messages reçus du channel sont horodatés (commande TRACE)
+    private volatile boolean traced;
+    // abonné aux changements de la liste des membres de son channel (commande PRESENCE)
+    private volatile boolean presenceSubscribed;
+    // lignes à envoyer au client, écrites par writerThread : un shard ne bloque jamais sur un client lent
+    private final BlockingQueue<String> outbox = new LinkedBlockingQueue<>(OUTBOX_CAPACITY);
+    private Thread writerThread;
+    // compression du flux vers le client (commande COMPRESS), utilisée seulement par writerThread
+    private FrameCompressor compressor;
+    // marque dans la file : ce qui suit peut être compressé
+    private static final String START_COMPRESSION = new String("COMPRESS");
+    // marque dans la file : la connexion se ferme, writerThread écrit ce qui précède puis s'arrête
+    private static final String CLOSE = new String("CLOSE");
+    private boolean compressionRequested;
+    private volatile long lastActivity;
+    private volatile boolean pingSent;
     private enum commandes{MESSAGE,JOIN,CHANGE}
+    private static final int OUTBOX_CAPACITY = 8192;
+    private static final int MAX_WRITE_BATCH = 256;
+    //lignes d'un élément de la file pour un HISTORY sans argument, qui peut dépasser OUTBOX_CAPACITY lignes
+    private static final int HISTORY_CHUNK = 1024;
+    private static final long WRITER_DRAIN_MILLIS = 1000;
+    private static final int DEFAULT_SEARCH_LIMIT = 20;
+    private static final int MAX_SEARCH_LIMIT = 500;
+    private static final int MAX_BATCH = 1000;
 
-    public ClientHandler(Socket socket) {
-        this.socket = socket;
+    /**
+     * @param transport connexion du client, une socket TCP ou un tuyau en mémoire
+     */
+    public ClientHandler(Transport transport) {
+        this(transport, false);
+    }
+
+    /**
+     * @param transport
+     * @param peerListener true pour une connexion reçue sur le port du cluster
+     */
+    public ClientHandler(Transport transport, boolean peerListener) {
+        this.transport = transport;
+        this.peerListener = peerListener;
         this.channel = "global";
     }
 
@@ -22,116 +72,458 @@ public class ClientHandler implements Runnable {
      */
     @Override
     public void run() {
+        ServerEvents.ConnectionEvent connectionEvent = new ServerEvents.ConnectionEvent();
+        connectionEvent.begin();
         try {
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            BoundedLineReader in = new BoundedLineReader(transport.getInputStream(), Server.getMaxFrameBytes());
+            out = new BufferedWriter(new OutputStreamWriter(transport.getOutputStream(), StandardCharsets.UTF_8));
+            writerThread = Thread.startVirtualThread(this::writeLoop);
 
-            String clientAddress = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+            String clientAddress = transport.getRemoteAddress();
             System.out.println("[Server] Client connected: " + clientAddress);
 
+            lastActivity = Server.getClock().millis();
+            Server.getTimers().schedule(this::checkIdle, Server.getIdleTimeoutMillis());
+
+            TrafficCapture capture = Server.getCapture();
+            if (capture != null && !peerListener) {
+                captureId = capture.opened();
+            }
+
             String message;
 
-            while ((message = in.readLine()) != null) {
+            while (true) {
+                try {
+                    message = in.readLine();
+                } catch (BoundedLineReader.FrameTooLongException e) {
+                    //la ligne a déjà été ignorée, on la refuse sans couper la connexion
+                    System.out.println("[Server] Frame too long, sending ERROR 3");
+                    lastActivity = Server.getClock().millis();
+                    send("ERROR 3");
+                    continue;
+                }
+                if (message == null) {
+                    break;
+                }
+
+                ServerEvents.CommandEvent commandEvent = new ServerEvents.CommandEvent();
+                commandEvent.begin();
+                connectionEvent.commands++;
+
+                //toute ligne reçue prouve que le client est vivant
+                lastActivity = Server.getClock().millis();
+                long receivedNanos = Server.getClock().nanos();
+                pingSent = false;
+
+                if (captureId != 0 && peerId == null) {
+                    capture.line(captureId, message);
+                }
+
+                if (peerId != null) {
+                    //connexion d'un autre noeud du cluster
+                    try {
+                        Server.getCluster().receive(peerId, message);
+                    } catch (RuntimeException e) {
+                        System.out.println("[Cluster] Invalid message from " + peerId + ": " + message + " (" + e + ")");
+                    }
+                    continue;
+                }
+                if (peerListener) {
+                    //un autre noeud du cluster se connecte, la suite de la connexion est réservée au cluster
+                    String[] hello = message.split(" ");
+                    Cluster cluster = Server.getCluster();
+                    if (cluster == null || hello.length != 3 || !hello[0].equals("PEER")
+                            || !cluster.authenticate(hello[1], hello[2])) {
+                        System.out.println("[Cluster] Rejected connection from " + clientAddress);
+                        break;
+                    }
+                    peerId = hello[1];
+                    //un message relayé est plus long que la ligne MESSAGE du client d'origine
+                    in.setMaxFrameBytes(Server.getMaxFrameBytes() * 2 + 1024);
+                    cluster.peerConnected(peerId);
+                    continue;
+                }
+
+                //en mode trace, un MESSAGE peut être préfixé par "~<heure d'envoi> ", en microsecondes depuis l'epoch
+                long sentMicros = 0;
+                if (message.startsWith("~")) {
+                    int space = message.indexOf(' ');
+                    try {
+                        sentMicros = Long.parseLong(message.substring(1, space));
+                        message = message.substring(space + 1);
+                    } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                        //pas un horodatage, la ligne est traitée telle quelle
+                    }
+                }
+
+                //une commande peut être préfixée par "@<tag> ", le tag est renvoyé avec la réponse
+                requestTag = null;
+                if (message.startsWith("@")) {
+                    int space = message.indexOf(' ');
+                    if (space > 1) {
+                        requestTag = message.substring(1, space);
+                        message = message.substring(space + 1);
+                    }
+                }
+
                 String[] commande = message.split(" ", 2);
-				System.out.println("[Server] Received message: " + message);
-				System.out.println("[Server] Parsed command array length: " + commande.length);
-				if (commande.length > 0) {
-					System.out.println("[Server] Command[0]: '" + commande[0] + "'");
-				}
-				if (commande.length > 1) {
-					System.out.println("[Server] Command[1]: '" + commande[1] + "'");
-				}
+                if (Server.isVerbose()) {
+                    System.out.println("[Server] Received message: " + message);
+                    System.out.println("[Server] Parsed command array length: " + commande.length);
+                    if (commande.length > 0) {
+                        System.out.println("[Server] Command[0]: '" + commande[0] + "'");
+                    }
+                    if (commande.length > 1) {
+                        System.out.println("[Server] Command[1]: '" + commande[1] + "'");
+                    }
+                }
 
                 //Switch des commandes possible
                 try {
                     if (commande.length == 0 || commande[0] == null || commande[0].isEmpty()) {
                         System.out.println("[Server] Empty or invalid command");
-                        send("ERROR 0");
+                        reply("ERROR 0");
                         continue;
                     }
                     switch (commande[0].toUpperCase()) {
                     case "JOIN":
                         if (commande.length < 2 || commande[1] == null) {
-                            send("ERROR 0");
+                            reply("ERROR 0");
                             break;
                         }
                         String[] params = commande[1].split(" ", 3);
                         if (params.length < 2) {
-                            send("ERROR 0");
+                            reply("ERROR 0");
                             break;
                         }
 
                         //check si le channel existe
-                        System.out.println("[Server] Checking if channel exists: " + params[0]);
+                        debug("[Server] Checking if channel exists: " + params[0]);
                         List<String> channels = Server.getListChannels();
                         if (channels == null) {
                             System.out.println("[Server] ERROR: getListChannels() returned null!");
-                            send("ERROR 0");
+                            reply("ERROR 0");
                             break;
                         }
-                        System.out.println("[Server] Available channels: " + channels);
+                        debug("[Server] Available channels: " + channels);
                         if (!channels.contains(params[0])) {
                             System.out.println("[Server] Channel does not exist, sending ERROR 1");
-                            send("ERROR 1");
+                            reply("ERROR 1");
                             break;
                         }
 
                         //check si le username est disponible
-                        System.out.println("[Server] Checking if username is available: " + params[1] + " in channel " + params[0]);
-                        if (Server.getUsernames(params[0]).contains(params[1])) {
+                        debug("[Server] Checking if username is available: " + params[1] + " in channel " + params[0]);
+                        if (Server.getSessions().isReserved(params[1])
+                                || !Server.claimUsername(params[1], this)) {
                             System.out.println("[Server] Username already taken, sending ERROR 2");
-                            send("ERROR 2");
+                            reply("ERROR 2");
                             break;
                         }
 
                         Server.remove(this); //le retire de l'ancien channel
-                        channel = params[0]; //channel actuel
-                        username = params[1]; //username pour ce channel
-                        Server.add(this); //ajout à la liste des users du channel
-
-                        System.out.println("[Server] Sending OK for JOIN: " + channel + " " + username);
-                        send("OK");
-                        System.out.println("[Server] OK sent, now broadcasting JOINED");
-                        Server.broadcast(channel, "JOINED " + username, this);
+                        if (!params[1].equals(username)) {
+                            Server.releaseUsername(username, this);
+                        }
+                        channel = Server.getChannelIds().intern(params[0]); //channel actuel
+                        setUsername(params[1]); //username pour ce channel
+
+                        //nouvelle session, le token permet de la reprendre si la connexion tombe
+                        Server.getSessions().close(session, this);
+                        session = Server.getSessions().open(channel, username, this);
+
+                        //ajout à la liste des users du channel. Le OK donne le dernier message du channel,
+                        //lu par le shard juste après l'ajout : le client numérote les messages qui suivent
+                        debug("[Server] Sending OK for JOIN: " + channel + " " + username);
+                        String joinedOk = tagged("OK " + session.getToken());
+                        Server.add(this, () -> send(joinedOk + " " + Server.getHistory(channel).head()));
+                        debug("[Server] OK sent, now broadcasting JOINED");
+                        Server.getPresence().joined(channel, username, this);
                         System.out.println("[Server] Client change channel: " + channel);
                         break;
                     case "NICK":
-                        if (Server.getUsernames(channel).contains(commande[1])) {
-                            send("ERROR 1");
+                        if (commande.length < 2 || commande[1].contains(" ")) {
+                            reply("ERROR 0");
+                            break;
+                        }
+                        if (Server.getSessions().isReserved(commande[1])
+                                || !Server.claimUsername(commande[1], this)) {
+                            reply("ERROR 1");
                             continue;
                         }
 
-                        username = commande[1];
-                        send("OK");
+                        String previousUsername = username;
+                        int previousId = userId;
+                        if (!commande[1].equals(username)) {
+                            Server.releaseUsername(username, this);
+                        }
+                        //l'ancien identifiant reste valable jusqu'à ce que la map du channel soit passée au nouveau
+                        Server.getUserIds().retain(previousId);
+                        setUsername(commande[1]);
+                        //la map du channel est indexée par username : l'entrée est déplacée par le shard
+                        if (session != null && previousUsername != null && !previousUsername.equals(username)) {
+                            Server.rename(this, previousUsername, previousId);
+                        }
+                        Server.getUserIds().release(previousId);
+                        if (session != null) {
+                            Server.getSessions().rename(session, username);
+                        }
+                        reply("OK");
                         System.out.println("[Server] Client change username: " + username);
                         break;
                     case "MESSAGE":
-                        System.out.println("[Server] Message from " + username + ": " + commande[1]);
-                        Server.broadcast(channel,"RECEIVE " + username + " " + commande[1], this);
+                        if (Server.isVerbose()) {
+                            System.out.println("[Server] Message from " + username + ": " + commande[1]);
+                        }
+                        MessageTrace trace = Server.isTracing() ? new MessageTrace(sentMicros, receivedNanos) : null;
+                        Server.publish(channel, username, commande[1], this, trace);
                         break;
-                    case "CHANLIST":
-                        StringBuilder chanList = new StringBuilder("CHANLIST");
-                        for (String channel : Server.getListChannels()) {
-                            chanList.append(" ").append(channel);
+                    case "BATCH":
+                        //BATCH <n> : les n lignes suivantes sont des MESSAGE, publiés ensemble
+                        int count;
+                        try {
+                            count = commande.length < 2 ? 0 : Integer.parseInt(commande[1].trim());
+                        } catch (NumberFormatException e) {
+                            count = 0;
+                        }
+                        if (count < 1 || count > MAX_BATCH) {
+                            reply("ERROR 0");
+                            break;
                         }
-                        send(chanList.toString());
+                        List<String> batch = readBatch(in, count);
+                        if (batch == null) {
+                            //le lot entier est refusé, aucun message n'est publié
+                            reply("ERROR 0");
+                            break;
+                        }
+                        Server.publishAll(channel, username, batch, this);
                         break;
-                    case "USRLIST":
-                        StringBuilder usrList = new StringBuilder("USRLIST");
-                        for (String user : Server.getUsernames(channel)) {
-                            usrList.append(" ").append(user);
+                    case "PRIVMSG":
+                        //PRIVMSG <user> <text> : livré à une seule connexion, trouvée dans l'index global
+                        String[] privmsg = commande.length < 2 ? new String[0] : commande[1].split(" ", 2);
+                        if (username == null || privmsg.length < 2) {
+                            reply("ERROR 0");
+                            break;
+                        }
+                        ClientHandler recipient = Server.getUser(privmsg[0]);
+                        if (recipient == null) {
+                            reply("ERROR 1");
+                            break;
                         }
-                        send(usrList.toString());
+                        recipient.send("PRIVMSG " + username + " " + privmsg[1]);
+                        reply("OK");
+                        break;
+                    case "CHANLIST":
+                        reply(Server.getChanList());
+                        break;
+                    case "USRLIST":
+                        String members = Server.getMemberNames(channel);
+                        reply(members.isEmpty() ? "USRLIST" : "USRLIST " + members);
                         break;
                     case "HISTORY":
-                        for (String historyMessage : Server.getHistoryMessage(channel)){
-                            send("RECEIVE " + historyMessage);
+                        if (commande.length < 2) {
+                            //tout l'historique, par paquets : une ligne par élément remplirait la file
+                            List<String> all = Server.getHistoryMessage(channel);
+                            List<String> chunk = new ArrayList<>(Math.min(all.size(), HISTORY_CHUNK));
+                            for (String historyMessage : all) {
+                                chunk.add("RECEIVE " + historyMessage);
+                                if (chunk.size() == HISTORY_CHUNK) {
+                                    sendAll(chunk);
+                                    chunk.clear();
+                                }
+                            }
+                            if (!chunk.isEmpty()) {
+                                sendAll(chunk);
+                            }
+                            break;
+                        }
+
+                        //HISTORY <since> [<count>] : seulement les messages après since, précédés d'un en-tête
+                        //HISTORY AT <timestamp> [<count>] : les messages écrits à partir de timestamp
+                        String[] range = commande[1].trim().split(" +");
+                        boolean at = range[0].equalsIgnoreCase("AT");
+                        int since;
+                        int maxCount = Integer.MAX_VALUE;
+                        ChannelHistory history = Server.getHistory(channel);
+                        try {
+                            since = at ? history.seqAt(Long.parseLong(range[1])) - 1 : Integer.parseInt(range[0]);
+                            if (range.length > (at ? 2 : 1)) {
+                                maxCount = Integer.parseInt(range[at ? 2 : 1]);
+                            }
+                        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                            reply("ERROR 0");
+                            break;
+                        }
+                        if (maxCount < 1 || range.length > (at ? 3 : 2)) {
+                            reply("ERROR 0");
+                            break;
+                        }
+                        int head = history.head();
+                        if (since > head) {
+                            //le client connait plus de messages que nous : on renvoie tout
+                            since = 0;
+                        }
+                        List<String> missed = history.since(since, maxCount);
+                        List<String> lines = new ArrayList<>(missed.size() + 1);
+                        lines.add(tagged("HISTORY " + (since + missed.size()) + " " + missed.size()));
+                        for (String historyMessage : missed) {
+                            lines.add("RECEIVE " + historyMessage);
                         }
+                        sendAll(lines);
+                        break;
+                    case "SEARCH":
+                        //SEARCH <mots> [LIMIT n] : les messages du channel contenant tous les mots
+                        if (commande.length < 2 || commande[1].isBlank()) {
+                            reply("ERROR 0");
+                            break;
+                        }
+                        String query = commande[1];
+                        int limit = DEFAULT_SEARCH_LIMIT;
+                        String[] words = query.trim().split(" +");
+                        if (words.length >= 2 && words[words.length - 2].equalsIgnoreCase("LIMIT")) {
+                            try {
+                                limit = Math.min(Integer.parseInt(words[words.length - 1]), MAX_SEARCH_LIMIT);
+                            } catch (NumberFormatException e) {
+                                reply("ERROR 0");
+                                break;
+                            }
+                            query = String.join(" ", Arrays.copyOf(words, words.length - 2));
+                        }
+                        List<String> found = Server.getHistory(channel).search(query, limit);
+                        List<String> searchLines = new ArrayList<>(found.size() + 1);
+                        searchLines.add(tagged("SEARCH " + found.size()));
+                        for (String foundMessage : found) {
+                            searchLines.add("RECEIVE " + foundMessage);
+                        }
+                        sendAll(searchLines);
+                        break;
+                    case "RESUME":
+                        //RESUME <token> [<lastSeq>] : lastSeq est le dernier message du channel reçu ou envoyé par le client
+                        String[] resumeParams = commande.length < 2 ? new String[0] : commande[1].trim().split(" ");
+                        int lastSeq = -1;
+                        if (resumeParams.length == 2) {
+                            try {
+                                lastSeq = Integer.parseInt(resumeParams[1]);
+                            } catch (NumberFormatException e) {
+                                lastSeq = -1;
+                            }
+                        }
+                        if (resumeParams.length < 1 || resumeParams.length > 2 || (resumeParams.length == 2 && lastSeq < 0)) {
+                            reply("ERROR 0");
+                            break;
+                        }
+                        SessionRegistry.Session resumed = Server.getSessions().resume(resumeParams[0], this);
+                        if (resumed == null) {
+                            System.out.println("[Server] Unknown or expired session, sending ERROR 1");
+                            reply("ERROR 1");
+                            break;
+                        }
+                        //l'ancienne connexion de la session est restée à moitié ouverte après une coupure réseau :
+                        //elle est fermée et son username passe à cette connexion
+                        ClientHandler stale = Server.getUser(resumed.getUsername());
+                        if (stale != null && stale != this && stale.session == resumed) {
+                            System.out.println("[Server] Session taken over from a stale connection: " + resumed.getUsername());
+                            Server.remove(stale);
+                            Server.replaceUsername(resumed.getUsername(), stale, this);
+                            try { stale.transport.close(); } catch (IOException ignored) {}
+                        } else {
+                            stale = null;
+                        }
+                        if (!Server.claimUsername(resumed.getUsername(), this)) {
+                            Server.getSessions().close(resumed, this);
+                            reply("ERROR 2");
+                            break;
+                        }
+
+                        Server.remove(this);
+                        if (!resumed.getUsername().equals(username)) {
+                            Server.releaseUsername(username, this);
+                        }
+                        Server.getSessions().close(session, this);
+                        session = resumed;
+                        channel = Server.getChannelIds().intern(resumed.getChannel());
+                        setUsername(resumed.getUsername());
+
+                        //l'historique est lu par le shard du channel, juste après l'ajout : les messages
+                        //déjà numérotés sont dans la reprise, les suivants arrivent en direct, sans doublon
+                        String resumedOk = tagged("OK " + session.getToken() + " " + channel + " " + username);
+                        //sans lastSeq, on reprend au point noté à la déconnexion, ou au dernier message si
+                        //la session était encore attachée
+                        int resumeFrom = lastSeq >= 0 ? lastSeq : stale == null ? resumed.getResumeFrom() : Integer.MAX_VALUE;
+                        int[] missedCount = new int[1];
+                        Server.add(this, () -> {
+                            ChannelHistory resumedHistory = Server.getHistory(channel);
+                            int resumedHead = resumedHistory.head();
+                            List<String> missedMessages = resumedHistory.since(Math.min(resumeFrom, resumedHead));
+                            List<String> resumeLines = new ArrayList<>(missedMessages.size() + 1);
+                            resumeLines.add(resumedOk + " " + resumedHead + " " + missedMessages.size());
+                            for (String missedMessage : missedMessages) {
+                                resumeLines.add("RECEIVE " + missedMessage);
+                            }
+                            sendAll(resumeLines);
+                            missedCount[0] = missedMessages.size();
+                        });
+                        System.out.println("[Server] Client resumed session: " + channel + " " + username
+                                + " (" + missedCount[0] + " missed messages)");
                         break;
                     case "QUIT":
                         System.out.println("[Server] Client " + username + " disconnected");
-                        Server.broadcast(channel,"QUIT "+ username , this);
+                        if (username != null) {
+                            Server.getPresence().quit(channel, username, this);
+                        }
                         Server.remove(this);
+                        Server.releaseUsername(username, this);
+                        Server.getSessions().close(session, this);
+                        session = null;
+                        setUsername(null);
+                        reply("OK");
+                        break;
+                    case "TRACE":
+                        //TRACE [ON|OFF] : les messages du channel sont reçus avec leurs horodatages
+                        boolean enable = commande.length < 2 || commande[1].trim().equalsIgnoreCase("ON");
+                        if (commande.length == 2 && !enable && !commande[1].trim().equalsIgnoreCase("OFF")) {
+                            reply("ERROR 0");
+                            break;
+                        }
+                        if (enable != traced) {
+                            traced = enable;
+                            Server.setTracing(enable);
+                        }
+                        reply("OK");
+                        break;
+                    case "PRESENCE":
+                        //PRESENCE [ON|OFF] : liste complète des membres, puis seulement les changements
+                        boolean subscribe = commande.length < 2 || commande[1].trim().equalsIgnoreCase("ON");
+                        if (commande.length == 2 && !subscribe && !commande[1].trim().equalsIgnoreCase("OFF")) {
+                            reply("ERROR 0");
+                            break;
+                        }
+                        if (!subscribe) {
+                            presenceSubscribed = false;
+                            reply("OK");
+                            break;
+                        }
+                        //la liste est envoyée par le shard : les changements suivants ne peuvent pas la précéder
+                        Server.getShards().run(channel, () -> {
+                            presenceSubscribed = true;
+                            reply(Server.presenceSnapshot(channel));
+                        });
+                        break;
+                    case "COMPRESS":
+                        //COMPRESS : les lots assez gros envoyés après le OK sont compressés
+                        reply("OK");
+                        if (!compressionRequested) {
+                            compressionRequested = true;
+                            if (!outbox.offer(START_COMPRESSION)) {
+                                try { transport.close(); } catch (IOException ignored) {}
+                            }
+                        }
+                        break;
+                    case "PING":
+                        reply("PONG");
+                        break;
+                    case "PONG":
+                        //rien à faire, l'activité a déjà été notée
                         break;
                     default:
                         System.out.println("[Server] Unknown command: " + commande[0]);
@@ -142,36 +534,280 @@ public class ClientHandler implements Runnable {
                     System.out.println("[Server] Command was: " + (commande.length > 0 ? commande[0] : "unknown"));
                     e.printStackTrace();
                     try {
-                        send("ERROR 0");
+                        reply("ERROR 0");
                     } catch (Exception sendEx) {
                         System.out.println("[Server] Failed to send ERROR 0: " + sendEx);
                     }
+                } finally {
+                    commandEvent.end();
+                    if (commandEvent.shouldCommit()) {
+                        commandEvent.verb = commande.length > 0 ? commande[0].toUpperCase() : "";
+                        commandEvent.channel = channel;
+                        commandEvent.username = username;
+                        commandEvent.commit();
+                    }
                 }
             }
         }catch (IOException e) {
             System.out.println("[Server] Client disconnected");
         } finally {
+            closeWriter();
+            if (captureId != 0) {
+                Server.getCapture().closed(captureId);
+            }
+            if (traced) {
+                Server.setTracing(false);
+            }
             Server.remove(this);
-            try { socket.close(); } catch (IOException ignored) {}
+            if (session != null) {
+                //connexion perdue sans QUIT : la session peut être reprise pendant la fenêtre de reprise.
+                //le username est réservé avant d'être libéré, personne ne peut le prendre entre les deux.
+                //le dernier message du channel ne sert qu'aux clients qui ne donnent pas lastSeq avec RESUME
+                Server.getSessions().detach(session, this, Server.getHistory(channel).head());
+            }
+            Server.releaseUsername(username, this);
+            try { transport.close(); } catch (IOException ignored) {}
+            connectionEvent.end();
+            if (connectionEvent.shouldCommit()) {
+                connectionEvent.remoteAddress = transport.getRemoteAddress();
+                connectionEvent.username = username;
+                connectionEvent.commit();
+            }
+            setUsername(null);
         }
     }
 
     /**
-     * Envoie un message au client
+     * Lit les lignes d'un BATCH. Toutes sont lues même si l'une est invalide,
+     * pour que la ligne suivante soit bien la prochaine commande.
+     * @param in
+     * @param count nombre de lignes du lot
+     * @return le texte des messages, ou null si une ligne n'est pas un MESSAGE ou est trop longue
+     * @throws IOException
+     */
+    private List<String> readBatch(BoundedLineReader in, int count) throws IOException {
+        List<String> messages = new ArrayList<>(count);
+        boolean valid = true;
+        for (int i = 0; i < count; i++) {
+            String line;
+            try {
+                line = in.readLine();
+            } catch (BoundedLineReader.FrameTooLongException e) {
+                valid = false;
+                continue;
+            }
+            if (line == null) {
+                return null;
+            }
+            if (captureId != 0) {
+                Server.getCapture().line(captureId, line);
+            }
+            String[] parts = line.split(" ", 2);
+            if (parts.length < 2 || !parts[0].equalsIgnoreCase("MESSAGE")) {
+                valid = false;
+                continue;
+            }
+            messages.add(parts[1]);
+        }
+        lastActivity = Server.getClock().millis();
+        return valid ? messages : null;
+    }
+
+    /**
+     * Vérifie l'activité du client, appelé par la roue de timers.
+     * On ne replanifie pas à chaque message reçu : à l'échéance, si le client a été actif
+     * entre-temps, on replanifie pour le temps restant. Sinon on envoie un PING, et si
+     * rien n'est reçu avant le délai de réponse on ferme la connexion, ce qui libère son username.
+     */
+    private void checkIdle() {
+        if (transport.isClosed()) {
+            return;
+        }
+        long idle = Server.getClock().millis() - lastActivity;
+        if (pingSent) {
+            if (idle >= Server.getIdleTimeoutMillis() + Server.getPingTimeoutMillis()) {
+                System.out.println("[Server] No PONG from " + username + ", closing connection");
+                try { transport.close(); } catch (IOException ignored) {}
+                return;
+            }
+        } else if (idle >= Server.getIdleTimeoutMillis()) {
+            pingSent = true;
+            send("PING");
+            Server.getTimers().schedule(this::checkIdle, Server.getPingTimeoutMillis());
+            return;
+        }
+        long remaining = pingSent
+                ? Server.getIdleTimeoutMillis() + Server.getPingTimeoutMillis() - idle
+                : Server.getIdleTimeoutMillis() - idle;
+        Server.getTimers().schedule(this::checkIdle, remaining);
+    }
+
+    /**
+     * Met un message dans la file d'envoi du client, sans bloquer.
+     * Si le client ne lit plus assez vite et que sa file est pleine, la connexion est fermée.
      * @param message
+     * @return false si la file était pleine et la connexion a été fermée
      */
-    public void send(String message) {
-        try {
+    public boolean send(String message) {
+        if (Server.isVerbose()) {
             System.out.println("[Server] Sending: " + message);
-            out.write(message + "\n");
-            out.flush();
-            System.out.println("[Server] Sent and flushed: " + message);
+        }
+        if (!outbox.offer(message)) {
+            if (transport.isClosed()) {
+                //déjà fermée : les envois suivants de la même rafale ne sont pas signalés à nouveau
+                return false;
+            }
+            System.out.println("[Server] Outbox of " + username + " full, closing connection");
+            try { transport.close(); } catch (IOException ignored) {}
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Envoie plusieurs lignes d'un coup, sans qu'un broadcast puisse s'intercaler
+     * @param messages
+     */
+    public void sendAll(List<String> messages) {
+        send(String.join("\n", messages));
+    }
+
+    /**
+     * Écrit les messages de la file par lots, avec un seul flush par lot
+     */
+    private void writeLoop() {
+        List<String> batch = new ArrayList<>();
+        try {
+            boolean closing = false;
+            while (!closing) {
+                batch.add(outbox.take());
+                outbox.drainTo(batch, MAX_WRITE_BATCH - 1);
+                int start = 0;
+                int end = batch.size();
+                for (int i = 0; i < end; i++) {
+                    if (batch.get(i) == START_COMPRESSION) {
+                        //le OK de COMPRESS est écrit en clair, la compression commence après
+                        write(batch.subList(start, i));
+                        compressor = new FrameCompressor();
+                        start = i + 1;
+                    } else if (batch.get(i) == CLOSE) {
+                        end = i;
+                        closing = true;
+                    }
+                }
+                write(batch.subList(start, end));
+                out.flush();
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            //la connexion est terminée
         } catch (IOException e) {
             System.out.println("[Server] Send failed: " + e);
-            e.printStackTrace();
+            try { transport.close(); } catch (IOException ignored) {}
+        } finally {
+            if (compressor != null) {
+                System.out.println("[Server] Compressed " + compressor.getRawBytes() + " bytes to "
+                        + compressor.getCompressedBytes() + " for " + username);
+                compressor.end();
+            }
+        }
+    }
+
+    /**
+     * Laisse writerThread écrire les réponses déjà en file (le OK d'un QUIT par exemple) avant la fermeture.
+     * Un client qui ne lit plus ne retient pas la connexion plus de WRITER_DRAIN_MILLIS.
+     */
+    private void closeWriter() {
+        if (writerThread == null) {
+            return;
+        }
+        try {
+            if (outbox.offer(CLOSE)) {
+                writerThread.join(WRITER_DRAIN_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writerThread.interrupt();
+    }
+
+    /**
+     * Écrit un lot de lignes, en une trame compressée si la compression est active et que le lot est assez gros :
+     * un petit message isolé ne paie pas le coût de la compression
+     * @param lines
+     * @throws IOException
+     */
+    private void write(List<String> lines) throws IOException {
+        if (lines.isEmpty()) {
+            return;
+        }
+        if (compressor != null) {
+            int size = 0;
+            for (String line : lines) {
+                size += line.length() + 1;
+            }
+            if (size >= Server.getCompressMinBytes()) {
+                //les lignes déjà écrites en clair doivent partir avant la trame
+                out.flush();
+                compressor.write(lines, transport.getOutputStream());
+                return;
+            }
+        }
+        for (String message : lines) {
+            out.write(message);
+            out.write('\n');
+        }
+    }
+
+    /**
+     * Envoie la réponse à la commande en cours, préfixée par son tag si elle en avait un
+     * @param response
+     */
+    private void reply(String response) {
+        send(tagged(response));
+    }
+
+    /**
+     * Log d'une étape d'une commande, seulement avec --verbose
+     * @param line
+     */
+    private static void debug(String line) {
+        if (Server.isVerbose()) {
+            System.out.println(line);
+        }
+    }
+
+    /**
+     * Préfixe la réponse par le tag de la commande en cours s'il y en a un
+     * @param response
+     * @return
+     */
+    private String tagged(String response) {
+        return requestTag == null ? response : "@" + requestTag + " " + response;
+    }
+
+    /**
+     * Change le username et son identifiant ; le username gardé est l'instance partagée de la table.
+     * Le client garde une référence sur son identifiant (voir Symbols), rendue quand il change de username :
+     * il ne doit plus être la clé du client dans les membres de son channel.
+     * @param name null si le client n'a plus de username
+     */
+    private void setUsername(String name) {
+        Symbols userIds = Server.getUserIds();
+        int previousId = userId;
+        if (name == null) {
+            username = null;
+            userId = -1;
+        } else {
+            userId = userIds.acquire(name);
+            username = userIds.name(userId);
         }
+        userIds.release(previousId);
     }
 
+    public boolean isTraced() {return traced;}
+    public boolean isPresenceSubscribed() {return presenceSubscribed;}
+    public int getUserId() {return userId;}
     public String getUsername() {return username;}
     public String getChannel() {return channel;}
 }
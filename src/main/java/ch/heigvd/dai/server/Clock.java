@@ -0,0 +1,47 @@
+package ch.heigvd.dai.server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Horloge du serveur, utilisée pour les timeouts, la fenêtre de reprise et le regroupement des présences.
+ * En production c'est l'horloge du système ; une simulation utilise une ManualClock
+ * qui n'avance que quand on le lui demande.
+ */
+public interface Clock {
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long millis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public long nanos() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void sleepUntil(long deadlineNanos) throws InterruptedException {
+            long sleep = deadlineNanos - System.nanoTime();
+            if (sleep > 0) {
+                TimeUnit.NANOSECONDS.sleep(sleep);
+            }
+        }
+    };
+
+    /**
+     * @return l'heure actuelle en millisecondes depuis l'epoch
+     */
+    long millis();
+
+    /**
+     * @return un temps monotone en nanosecondes, pour mesurer des durées
+     */
+    long nanos();
+
+    /**
+     * Attend que nanos() atteigne l'échéance
+     * @param deadlineNanos
+     * @throws InterruptedException
+     */
+    void sleepUntil(long deadlineNanos) throws InterruptedException;
+}
@@ -0,0 +1,362 @@
+package ch.heigvd.dai.server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Mode cluster : plusieurs noeuds chch reliés entre eux, les utilisateurs connectés
+ * à des noeuds différents discutent comme sur un seul serveur.
+ *
+ * Chaque channel a un noeud propriétaire, choisi par rendezvous hashing sur la liste des noeuds
+ * (la même sur tous les noeuds). Le propriétaire donne les numéros de séquence : un noeud qui
+ * reçoit un message d'un de ses clients le transmet au propriétaire (PFWD), qui l'ajoute à son
+ * historique puis le relaie (PMSG) seulement aux noeuds qui ont des membres dans le channel (PINTEREST).
+ * Chaque noeud garde une copie de l'historique dans le même ordre ; un trou dans les numéros de séquence
+ * se rattrape en demandant les messages manquants au propriétaire (PSYNC).
+ * Tout ce qui touche à un channel est exécuté sur son shard (voir ChannelShards), dans l'ordre de réception.
+ *
+ * Les noeuds se connectent sur le port du cluster (--peer-port), jamais sur le port des clients,
+ * et s'authentifient avec le secret partagé par tous les noeuds (--cluster-secret).
+ *
+ * Messages entre noeuds, envoyés sur la connexion sortante de l'émetteur :
+ * <pre>
+ * PEER &lt;id&gt; &lt;secret&gt;                                poignée de main
+ * PCHANS &lt;channel&gt; ...                              channels de l'émetteur
+ * PINTEREST &lt;channel&gt; &lt;0|1&gt;                        l'émetteur a (1) ou n'a plus (0) de membres
+ * PSYNC &lt;channel&gt; &lt;since&gt;                          demande les messages après since
+ * PFWD &lt;id&gt; &lt;channel&gt; &lt;username&gt; &lt;message&gt;       message à séquencer par le propriétaire
+ * PACK &lt;id&gt;                                         PFWD séquencé
+ * PMSG &lt;channel&gt; &lt;seq&gt; &lt;origin&gt; &lt;username&gt; &lt;message&gt;  message séquencé
+ * </pre>
+ */
+public class Cluster {
+    private final String nodeId;
+    private final byte[] secret;
+    private final Map<String, PeerLink> peers = new ConcurrentHashMap<>();
+    private final List<String> nodeIds = new ArrayList<>();
+    // channel -> noeuds qui ont des membres dans le channel
+    private final Map<String, Set<String>> interested = new ConcurrentHashMap<>();
+    // noeud -> dernier PFWD séquencé, pour ignorer les renvois après une reconnexion
+    private final Map<String, Long> lastForwards = new ConcurrentHashMap<>();
+    // croissant même après un redémarrage, le propriétaire ignore les identifiants déjà vus
+    private final AtomicLong nextForward = new AtomicLong(System.currentTimeMillis() * 1000);
+    // channel -> head pour lequel un PSYNC est déjà demandé, pour ne pas en envoyer un par message manquant
+    private final Map<String, Integer> syncRequested = new ConcurrentHashMap<>();
+
+    /**
+     * @param nodeId identifiant de ce noeud
+     * @param secret secret partagé par les noeuds du cluster
+     * @param peerSpecs les autres noeuds, au format "id@host:port"
+     */
+    public Cluster(String nodeId, String secret, List<String> peerSpecs) {
+        this.nodeId = nodeId;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        nodeIds.add(nodeId);
+        for (String spec : peerSpecs) {
+            PeerLink link = new PeerLink(spec);
+            peers.put(link.getId(), link);
+            nodeIds.add(link.getId());
+        }
+    }
+
+    /**
+     * Ouvre les connexions vers les autres noeuds
+     */
+    public void start() {
+        System.out.println("[Cluster] Node " + nodeId + " with peers " + peers.keySet());
+        for (PeerLink link : peers.values()) {
+            link.start(this);
+        }
+    }
+
+    public String getNodeId() {return nodeId;}
+
+    /**
+     * Première ligne envoyée sur une connexion vers un autre noeud
+     * @return
+     */
+    String hello() {
+        return "PEER " + nodeId + " " + new String(secret, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Vérifie la poignée de main d'un noeud qui se connecte.
+     * Le secret est comparé en temps constant, sa durée ne dit rien sur les caractères justes.
+     * @param peerId
+     * @param peerSecret
+     * @return true si le noeud fait partie du cluster et connaît le secret
+     */
+    public boolean authenticate(String peerId, String peerSecret) {
+        boolean valid = MessageDigest.isEqual(secret, peerSecret.getBytes(StandardCharsets.UTF_8));
+        return valid && peers.containsKey(peerId);
+    }
+
+    /**
+     * Noeud propriétaire d'un channel : celui qui a le plus grand hash(noeud, channel).
+     * Tous les noeuds trouvent le même propriétaire sans se concerter.
+     * @param channel
+     * @return
+     */
+    public String owner(String channel) {
+        String best = null;
+        long bestScore = Long.MIN_VALUE;
+        for (String node : nodeIds) {
+            long score = mix((node + "/" + channel).hashCode());
+            if (best == null || score > bestScore || (score == bestScore && node.compareTo(best) < 0)) {
+                best = node;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Publie le message d'un client de ce noeud
+     * @param channel
+     * @param username
+     * @param message
+     * @param sender
+     * @param trace horodatages du message, null hors du mode trace ; perdus si le channel appartient à un autre noeud
+     */
+    public void publish(String channel, String username, String message, ClientHandler sender, MessageTrace trace) {
+        String owner = owner(channel);
+        if (owner.equals(nodeId)) {
+            if (trace != null) {
+                trace.published();
+            }
+            Server.getShards().execute(channel, () -> {
+                if (trace != null) {
+                    trace.dequeued();
+                }
+                int seq = sequence(channel, nodeId, username, message);
+                if (trace != null) {
+                    trace.sequenced(seq);
+                }
+                Server.fanOut(channel, "RECEIVE " + username + " " + message, sender, trace);
+            });
+            return;
+        }
+        //les clients de ce noeud le recevront avec le PMSG du propriétaire
+        long forwardId = nextForward.incrementAndGet();
+        peers.get(owner).forward(forwardId, "PFWD " + forwardId + " " + channel + " " + username + " " + message);
+    }
+
+    /**
+     * Lignes envoyées à un noeud à chaque (re)connexion, pour qu'il connaisse notre état
+     * @param peerId
+     * @return
+     */
+    public List<String> handshake(String peerId) {
+        List<String> lines = new ArrayList<>();
+        StringBuilder channels = new StringBuilder("PCHANS");
+        for (String channel : Server.getListChannels()) {
+            channels.append(' ').append(channel);
+        }
+        lines.add(channels.toString());
+        for (String channel : Server.getListChannels()) {
+            if (Server.hasMembers(channel)) {
+                lines.add("PINTEREST " + channel + " 1");
+                if (owner(channel).equals(peerId)) {
+                    lines.add("PSYNC " + channel + " " + Server.getHistory(channel).head());
+                }
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Un noeud vient de se (re)connecter à nous : il va renvoyer son intérêt pour les channels,
+     * et on lui redemande ce qu'on a pu manquer pendant la coupure de sa connexion
+     * @param peerId
+     */
+    public void peerConnected(String peerId) {
+        System.out.println("[Cluster] Peer " + peerId + " connected");
+        for (Set<String> nodes : interested.values()) {
+            nodes.remove(peerId);
+        }
+        PeerLink link = peers.get(peerId);
+        for (String channel : Server.getListChannels()) {
+            if (Server.hasMembers(channel) && owner(channel).equals(peerId)) {
+                link.send("PSYNC " + channel + " " + Server.getHistory(channel).head());
+            }
+        }
+        link.retransmit();
+    }
+
+    /**
+     * Le premier membre d'un channel est arrivé sur ce noeud, ou le dernier est parti.
+     * Appelé par le shard du channel.
+     * @param channel
+     * @param members true si le channel a maintenant des membres sur ce noeud
+     */
+    public void membershipChanged(String channel, boolean members) {
+        for (PeerLink link : peers.values()) {
+            link.send("PINTEREST " + channel + " " + (members ? 1 : 0));
+        }
+        String owner = owner(channel);
+        if (members && !owner.equals(nodeId)) {
+            //notre copie de l'historique a pu prendre du retard pendant qu'on n'avait pas de membres
+            peers.get(owner).send("PSYNC " + channel + " " + Server.getHistory(channel).head());
+        }
+    }
+
+    /**
+     * Traite une ligne reçue d'un autre noeud
+     * @param peerId
+     * @param line
+     */
+    public void receive(String peerId, String line) {
+        String[] parts = line.split(" ", 2);
+        String args = parts.length > 1 ? parts[1] : "";
+        switch (parts[0]) {
+            case "PCHANS":
+                for (String channel : args.split(" ")) {
+                    if (!channel.isEmpty()) {
+                        Server.createChannel(channel);
+                    }
+                }
+                break;
+            case "PINTEREST": {
+                String[] p = args.split(" ");
+                Set<String> nodes = interested.computeIfAbsent(p[0], c -> ConcurrentHashMap.newKeySet());
+                if (p.length > 1 && p[1].equals("1")) {
+                    nodes.add(peerId);
+                } else {
+                    nodes.remove(peerId);
+                }
+                break;
+            }
+            case "PSYNC": {
+                String[] p = args.split(" ");
+                int since = Integer.parseInt(p[1]);
+                if (Server.getHistory(p[0]) != null) {
+                    Server.getShards().execute(p[0], () -> sync(peerId, p[0], since));
+                }
+                break;
+            }
+            case "PFWD": {
+                String[] p = args.split(" ", 4);
+                if (p.length == 4) {
+                    sequenceForward(peerId, Long.parseLong(p[0]), p[1], p[2], p[3]);
+                }
+                break;
+            }
+            case "PACK":
+                peers.get(peerId).acknowledge(Long.parseLong(args));
+                break;
+            case "PMSG": {
+                String[] p = args.split(" ", 5);
+                if (p.length == 5 && Server.getHistory(p[0]) != null) {
+                    int seq = Integer.parseInt(p[1]);
+                    Server.getShards().execute(p[0], () -> apply(peerId, p[0], seq, p[2], p[3], p[4]));
+                }
+                break;
+            }
+            case "PONG":
+                break;
+            default:
+                System.out.println("[Cluster] Unknown message from " + peerId + ": " + line);
+        }
+    }
+
+    /**
+     * Donne un numéro de séquence au message et le relaie aux noeuds intéressés.
+     * Appelé par le shard du channel : les PMSG sont mis en file dans l'ordre des numéros.
+     */
+    private int sequence(String channel, String origin, String username, String message) {
+        int seq = Server.getHistory(channel).append(username + " " + message);
+        Set<String> nodes = interested.get(channel);
+        if (nodes != null) {
+            String line = "PMSG " + channel + " " + seq + " " + origin + " " + username + " " + message;
+            for (String node : nodes) {
+                peers.get(node).send(line);
+            }
+        }
+        return seq;
+    }
+
+    /**
+     * Message transmis par un autre noeud, dont on est le propriétaire du channel.
+     * Les doublons sont détectés ici, dans l'ordre d'arrivée ; le séquencement et le PACK
+     * sont faits par le shard du channel, le PACK n'est donc envoyé qu'une fois le message séquencé.
+     */
+    private void sequenceForward(String peerId, long forwardId, String channel, String username, String message) {
+        PeerLink link = peers.get(peerId);
+        boolean duplicate;
+        synchronized (link) {
+            Long last = lastForwards.get(peerId);
+            duplicate = last != null && forwardId <= last;
+            if (!duplicate) {
+                lastForwards.put(peerId, forwardId);
+            }
+        }
+        if (Server.getHistory(channel) == null || !owner(channel).equals(nodeId)) {
+            System.out.println("[Cluster] Dropping forward for channel " + channel + " not owned by " + nodeId);
+            link.send("PACK " + forwardId);
+            return;
+        }
+        Server.getShards().execute(channel, () -> {
+            if (!duplicate) {
+                sequence(channel, peerId, username, message);
+                Server.fanOut(channel, "RECEIVE " + username + " " + message, null);
+            }
+            link.send("PACK " + forwardId);
+        });
+    }
+
+    /**
+     * Message séquencé par le propriétaire du channel, ajouté à notre copie de l'historique.
+     * Appelé par le shard du channel.
+     */
+    private void apply(String peerId, String channel, int seq, String origin, String username, String message) {
+        ChannelHistory history = Server.getHistory(channel);
+        int head = history.head();
+        if (seq <= head) {
+            return; //déjà reçu
+        }
+        if (seq > head + 1) {
+            //des messages manquent : le propriétaire les renverra dans l'ordre
+            Integer requested = syncRequested.put(channel, head);
+            if (requested == null || requested != head) {
+                peers.get(peerId).send("PSYNC " + channel + " " + head);
+            }
+            return;
+        }
+        history.append(username + " " + message);
+        //l'auteur du message a déjà affiché son propre message
+        ClientHandler sender = origin.equals(nodeId) ? Server.getUser(username) : null;
+        Server.fanOut(channel, "RECEIVE " + username + " " + message, sender);
+    }
+
+    /**
+     * Renvoie à un noeud les messages d'un channel après since.
+     * Appelé par le shard du channel, entre deux messages séquencés.
+     */
+    private void sync(String peerId, String channel, int since) {
+        PeerLink link = peers.get(peerId);
+        since = Math.max(0, since);
+        List<String> missed = Server.getHistory(channel).since(since);
+        for (int i = 0; i < missed.size(); i++) {
+            //l'origine n'est plus connue, le message est affiché à tous les membres
+            link.send("PMSG " + channel + " " + (since + i + 1) + " - " + missed.get(i));
+        }
+    }
+
+    /**
+     * Mélange les bits d'un hash (finaliseur de MurmurHash3) pour répartir les channels
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93e53a5fe53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,64 @@
+package ch.heigvd.dai.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Compression du flux envoyé à un client qui l'a demandée (commande COMPRESS).
+ * Un lot de lignes est envoyé en une trame "Z <taille>\n" suivie de <taille> octets deflate (sans en-tête zlib) ;
+ * une fois décompressés, ce sont les lignes du lot, chacune terminée par '\n'.
+ * Le Deflater est gardé d'une trame à l'autre et vidé avec SYNC_FLUSH à la fin de chaque lot :
+ * le client peut décoder chaque trame dès qu'il la reçoit, et les messages suivants profitent
+ * du dictionnaire des précédents.
+ * N'est utilisé que par le thread d'écriture du client.
+ */
+class FrameCompressor {
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    private byte[] output = new byte[8192];
+    private long rawBytes;
+    private long compressedBytes;
+
+    /**
+     * Compresse les lignes et les écrit en une seule trame
+     * @param lines
+     * @param out
+     * @throws IOException
+     */
+    void write(List<String> lines, OutputStream out) throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            text.append(line).append('\n');
+        }
+        byte[] input = text.toString().getBytes(StandardCharsets.UTF_8);
+        deflater.setInput(input);
+        int length = 0;
+        while (true) {
+            length += deflater.deflate(output, length, output.length - length, Deflater.SYNC_FLUSH);
+            if (length < output.length) {
+                break;
+            }
+            //le tampon était plein, il reste peut-être des octets à sortir
+            output = Arrays.copyOf(output, output.length * 2);
+        }
+        byte[] header = ("Z " + length + "\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] frame = Arrays.copyOf(header, header.length + length);
+        System.arraycopy(output, 0, frame, header.length, length);
+        out.write(frame);
+        rawBytes += input.length;
+        compressedBytes += frame.length;
+    }
+
+    long getRawBytes() {return rawBytes;}
+    long getCompressedBytes() {return compressedBytes;}
+
+    /**
+     * Libère la mémoire native du Deflater
+     */
+    void end() {
+        deflater.end();
+    }
+}
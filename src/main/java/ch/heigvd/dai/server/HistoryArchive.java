@@ -0,0 +1,342 @@
+package ch.heigvd.dai.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.ObjIntConsumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Partie froide de l'historique d'un channel : les anciens messages, compressés par blocs.
+ * data/archive/<channel>.blk contient les blocs les uns après les autres, chacun environ 64 Ko de lignes
+ * "<timestamp> <username> <message>\n" compressées indépendamment (deflate sans en-tête zlib).
+ * data/archive/<channel>.bix est l'index des blocs : pour chaque bloc le numéro de séquence et le timestamp
+ * de son premier message, sa position et sa taille dans le fichier. L'index tient en mémoire (un bloc pour
+ * des centaines de messages) : lire un message ancien ne décompresse que son bloc.
+ *
+ * Les blocs sont seulement ajoutés. L'index est réécrit après chaque ajout : ce qui dépasse le dernier bloc
+ * de l'index (arrêt pendant un ajout) est tronqué à l'ouverture.
+ * Synchronisé : l'ajout est fait par un thread de fond pendant que les lectures continuent.
+ */
+public class HistoryArchive {
+    private static final int MAGIC = 0x43484258; // "CHBX"
+    private static final int VERSION = 1;
+    public static final int BLOCK_BYTES = 64 * 1024;
+    private final Path dataFile;
+    private final Path indexFile;
+    private int blocks;
+    private int[] firstSeqs = new int[16];
+    private int[] counts = new int[16];
+    private long[] firstTimestamps = new long[16];
+    private long[] positions = new long[16];
+    private int[] lengths = new int[16];
+    private long size;
+
+    /**
+     * Ouvre l'archive d'un channel, vide si elle n'existe pas encore
+     * @param directory dossier des archives, un sous-dossier de data/ n'est pas pris pour un channel
+     * @param channel
+     * @throws IOException
+     */
+    public HistoryArchive(Path directory, String channel) throws IOException {
+        this.dataFile = directory.resolve(channel + ".blk");
+        this.indexFile = directory.resolve(channel + ".bix");
+        if (Files.isRegularFile(indexFile)) {
+            loadIndex();
+        }
+        if (Files.isRegularFile(dataFile) && Files.size(dataFile) > size) {
+            //blocs écrits sans que l'index ait été mis à jour : ils seront réécrits
+            try (FileChannel channelFile = FileChannel.open(dataFile, StandardOpenOption.WRITE)) {
+                channelFile.truncate(size);
+            }
+        }
+    }
+
+    /**
+     * Retourne le numéro de séquence du dernier message archivé (0 si l'archive est vide)
+     * @return
+     */
+    public synchronized int getLastSeq() {
+        return blocks == 0 ? 0 : firstSeqs[blocks - 1] + counts[blocks - 1] - 1;
+    }
+
+    /**
+     * Retourne la taille des blocs compressés sur le disque
+     * @return
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Compresse des messages en blocs et les ajoute à la fin de l'archive.
+     * Les blocs sont sur le disque avant que l'index soit remplacé.
+     * @param lines les lignes du fichier d'historique "<timestamp> <username> <message>", sans '\n'
+     * @param firstSeq numéro de séquence de la première ligne, juste après le dernier message archivé
+     * @return la taille compressée des lignes
+     * @throws IOException
+     */
+    public long append(List<String> lines, int firstSeq) throws IOException {
+        Files.createDirectories(dataFile.getParent());
+        long start = getSize();
+        long position = start;
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        int[] newSeqs = new int[lines.size() / 64 + 1];
+        int[] newCounts = new int[newSeqs.length];
+        long[] newTimestamps = new long[newSeqs.length];
+        int[] newLengths = new int[newSeqs.length];
+        int newBlocks = 0;
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(dataFile,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND), 1 << 16)) {
+            ByteArrayOutputStream raw = new ByteArrayOutputStream(BLOCK_BYTES + 1024);
+            int seq = firstSeq;
+            int blockSeq = seq;
+            long blockTimestamp = 0;
+            for (int i = 0; i <= lines.size(); i++) {
+                if (i == lines.size() ? raw.size() > 0 : raw.size() >= BLOCK_BYTES) {
+                    byte[] compressed = deflate(deflater, raw.toByteArray());
+                    out.write(compressed);
+                    if (newBlocks == newSeqs.length) {
+                        newSeqs = Arrays.copyOf(newSeqs, newBlocks * 2);
+                        newCounts = Arrays.copyOf(newCounts, newBlocks * 2);
+                        newTimestamps = Arrays.copyOf(newTimestamps, newBlocks * 2);
+                        newLengths = Arrays.copyOf(newLengths, newBlocks * 2);
+                    }
+                    newSeqs[newBlocks] = blockSeq;
+                    newCounts[newBlocks] = seq - blockSeq;
+                    newTimestamps[newBlocks] = blockTimestamp;
+                    newLengths[newBlocks] = compressed.length;
+                    newBlocks++;
+                    position += compressed.length;
+                    raw.reset();
+                    blockSeq = seq;
+                }
+                if (i == lines.size()) {
+                    break;
+                }
+                if (raw.size() == 0) {
+                    blockTimestamp = timestamp(lines.get(i));
+                }
+                raw.writeBytes(lines.get(i).getBytes(StandardCharsets.UTF_8));
+                raw.write('\n');
+                seq++;
+            }
+        } finally {
+            deflater.end();
+        }
+        try (FileChannel channelFile = FileChannel.open(dataFile, StandardOpenOption.WRITE)) {
+            channelFile.force(true);
+        }
+
+        synchronized (this) {
+            long blockPosition = start;
+            for (int i = 0; i < newBlocks; i++) {
+                addBlock(newSeqs[i], newCounts[i], newTimestamps[i], blockPosition, newLengths[i]);
+                blockPosition += newLengths[i];
+            }
+            size = position;
+            saveIndex();
+        }
+        return position - start;
+    }
+
+    private static byte[] deflate(Deflater deflater, byte[] input) {
+        deflater.reset();
+        deflater.setInput(input);
+        deflater.finish();
+        byte[] output = new byte[input.length / 2 + 64];
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == output.length) {
+                output = Arrays.copyOf(output, output.length * 2);
+            }
+            length += deflater.deflate(output, length, output.length - length);
+        }
+        return Arrays.copyOf(output, length);
+    }
+
+    private void addBlock(int firstSeq, int count, long firstTimestamp, long position, int length) {
+        if (blocks == firstSeqs.length) {
+            firstSeqs = Arrays.copyOf(firstSeqs, blocks * 2);
+            counts = Arrays.copyOf(counts, blocks * 2);
+            firstTimestamps = Arrays.copyOf(firstTimestamps, blocks * 2);
+            positions = Arrays.copyOf(positions, blocks * 2);
+            lengths = Arrays.copyOf(lengths, blocks * 2);
+        }
+        firstSeqs[blocks] = firstSeq;
+        counts[blocks] = count;
+        firstTimestamps[blocks] = firstTimestamp;
+        positions[blocks] = position;
+        lengths[blocks] = length;
+        blocks++;
+    }
+
+    /**
+     * Lit les messages from à to (inclus), en ne décompressant que les blocs qui les contiennent
+     * @param from
+     * @param to
+     * @param action reçoit le message "username message" et son numéro de séquence
+     */
+    public synchronized void read(int from, int to, ObjIntConsumer<String> action) {
+        int block = blockOf(from);
+        if (block < 0) {
+            return;
+        }
+        try (FileChannel channelFile = FileChannel.open(dataFile, StandardOpenOption.READ)) {
+            for (; block < blocks && firstSeqs[block] <= to; block++) {
+                String[] lines = inflate(channelFile, block);
+                for (int i = 0; i < lines.length; i++) {
+                    int seq = firstSeqs[block] + i;
+                    if (seq >= from && seq <= to) {
+                        String[] parts = lines[i].split(" ", 2);
+                        action.accept(parts.length == 2 ? parts[1] : lines[i], seq);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("[Server] Failed to read history archive " + dataFile + ": " + e);
+        }
+    }
+
+    /**
+     * Cherche le premier message archivé écrit à timestamp ou après
+     * @param timestamp en millisecondes depuis l'epoch
+     * @return son numéro de séquence, ou getLastSeq() + 1 si tous les messages archivés sont plus anciens
+     */
+    public synchronized int seqAt(long timestamp) {
+        //le dernier bloc qui commence avant timestamp est le seul qui peut contenir la réponse
+        int low = 0;
+        int high = blocks - 1;
+        int block = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (firstTimestamps[middle] < timestamp) {
+                block = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        if (block < 0) {
+            return blocks == 0 ? 1 : firstSeqs[0];
+        }
+        try (FileChannel channelFile = FileChannel.open(dataFile, StandardOpenOption.READ)) {
+            String[] lines = inflate(channelFile, block);
+            for (int i = 0; i < lines.length; i++) {
+                if (timestamp(lines[i]) >= timestamp) {
+                    return firstSeqs[block] + i;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("[Server] Failed to read history archive " + dataFile + ": " + e);
+        }
+        return firstSeqs[block] + counts[block];
+    }
+
+    /**
+     * Retourne le bloc qui contient un numéro de séquence
+     * @param seq
+     * @return l'index du bloc, ou -1 si le message n'est pas archivé
+     */
+    private int blockOf(int seq) {
+        int low = 0;
+        int high = blocks - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (seq < firstSeqs[middle]) {
+                high = middle - 1;
+            } else if (seq >= firstSeqs[middle] + counts[middle]) {
+                low = middle + 1;
+            } else {
+                return middle;
+            }
+        }
+        //un message avant le premier bloc n'existe plus, on commence au premier bloc
+        return low < blocks && seq < firstSeqs[low] ? low : -1;
+    }
+
+    private String[] inflate(FileChannel channelFile, int block) throws IOException {
+        ByteBuffer compressed = ByteBuffer.allocate(lengths[block]);
+        long position = positions[block];
+        while (compressed.hasRemaining()) {
+            if (channelFile.read(compressed, position + compressed.position()) < 0) {
+                throw new EOFException("truncated block " + block);
+            }
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed.array());
+            ByteArrayOutputStream raw = new ByteArrayOutputStream(BLOCK_BYTES + 1024);
+            byte[] output = new byte[16384];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(output);
+                if (n == 0 && inflater.needsInput()) {
+                    throw new EOFException("incomplete block " + block);
+                }
+                raw.write(output, 0, n);
+            }
+            String text = raw.toString(StandardCharsets.UTF_8);
+            return text.isEmpty() ? new String[0] : text.substring(0, text.length() - 1).split("\n", -1);
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt block " + block, e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Retourne le timestamp d'une ligne du fichier d'historique
+     * @param line "<timestamp> <username> <message>"
+     * @return le timestamp, 0 s'il est illisible
+     */
+    static long timestamp(String line) {
+        int space = line.indexOf(' ');
+        try {
+            return Long.parseLong(space < 0 ? line : line.substring(0, space));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void saveIndex() throws IOException {
+        Path tmp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(blocks);
+            for (int i = 0; i < blocks; i++) {
+                out.writeInt(firstSeqs[i]);
+                out.writeInt(counts[i]);
+                out.writeLong(firstTimestamps[i]);
+                out.writeLong(positions[i]);
+                out.writeInt(lengths[i]);
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void loadIndex() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("not a history archive index: " + indexFile);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                addBlock(in.readInt(), in.readInt(), in.readLong(), in.readLong(), in.readInt());
+            }
+        }
+        size = blocks == 0 ? 0 : positions[blocks - 1] + lengths[blocks - 1];
+    }
+}
@@ -0,0 +1,169 @@
+package ch.heigvd.dai.server;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.IntConsumer;
+
+/**
+ * Map de clés int vers des objets, sans Integer ni entrée par élément :
+ * deux tableaux (clés et valeurs) à adressage ouvert, sondage linéaire.
+ * Une case est libre quand sa valeur est null, les valeurs null ne sont donc pas permises.
+ * La suppression recule les éléments suivants au lieu de laisser des marques : la table ne se dégrade pas.
+ * Pas synchronisée : n'est utilisée que par le shard de son channel.
+ * @param <V>
+ */
+public class IntObjectMap<V> implements Iterable<V> {
+    private int[] keys;
+    private Object[] values;
+    private int size;
+
+    public IntObjectMap() {
+        keys = new int[16];
+        values = new Object[16];
+    }
+
+    public int size() {return size;}
+    public boolean isEmpty() {return size == 0;}
+
+    /**
+     * @param key
+     * @return la valeur de la clé, null si la clé est absente
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int mask = keys.length - 1;
+        for (int slot = slot(key, mask); values[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return (V) values[slot];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param key
+     * @param value pas null
+     * @return l'ancienne valeur de la clé, null si la clé était absente
+     */
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        int mask = keys.length - 1;
+        int slot = slot(key, mask);
+        for (; values[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                V previous = (V) values[slot];
+                values[slot] = value;
+                return previous;
+            }
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size * 4 > keys.length * 3) {
+            resize(keys.length * 2);
+        }
+        return null;
+    }
+
+    /**
+     * Retire la clé seulement si elle a encore cette valeur
+     * @param key
+     * @param value
+     * @return true si la clé a été retirée
+     */
+    public boolean remove(int key, V value) {
+        int mask = keys.length - 1;
+        for (int slot = slot(key, mask); values[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                if (values[slot] != value) {
+                    return false;
+                }
+                delete(slot, mask);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Libère une case et recule les éléments suivants de la même suite qui peuvent prendre sa place
+     */
+    private void delete(int free, int mask) {
+        values[free] = null;
+        size--;
+        for (int slot = (free + 1) & mask; values[slot] != null; slot = (slot + 1) & mask) {
+            int home = slot(keys[slot], mask);
+            //l'élément peut reculer si sa case d'origine n'est pas entre la case libre et lui
+            if (((slot - home) & mask) >= ((slot - free) & mask)) {
+                keys[free] = keys[slot];
+                values[free] = values[slot];
+                values[slot] = null;
+                free = slot;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new int[capacity];
+        values = new Object[capacity];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != null) {
+                put(oldKeys[i], (V) oldValues[i]);
+            }
+        }
+    }
+
+    private static int slot(int key, int mask) {
+        //les identifiants sont consécutifs : on les mélange pour ne pas remplir une seule zone de la table
+        int h = key * 0x9E3779B9;
+        return (h ^ h >>> 16) & mask;
+    }
+
+    /**
+     * Parcourt les clés, dans le même ordre que les valeurs
+     * @param action
+     */
+    public void forEachKey(IntConsumer action) {
+        for (int slot = 0; slot < values.length; slot++) {
+            if (values[slot] != null) {
+                action.accept(keys[slot]);
+            }
+        }
+    }
+
+    /**
+     * Parcourt les valeurs, dans un ordre quelconque. La map ne doit pas changer pendant le parcours.
+     */
+    @Override
+    public Iterator<V> iterator() {
+        return new Iterator<>() {
+            private int slot = next(0);
+
+            private int next(int from) {
+                while (from < values.length && values[from] == null) {
+                    from++;
+                }
+                return from;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return slot < values.length;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public V next() {
+                if (slot >= values.length) {
+                    throw new NoSuchElementException();
+                }
+                V value = (V) values[slot];
+                slot = next(slot + 1);
+                return value;
+            }
+        };
+    }
+}
@@ -0,0 +1,91 @@
+package ch.heigvd.dai.server;
+
+import java.util.Arrays;
+
+/**
+ * Temps passé par les messages d'un channel dans chaque étape du serveur :
+ * lecture et analyse de la commande, attente dans la file du shard, séquencement (écriture
+ * de l'historique) et fan-out vers les membres.
+ * Les durées sont comptées dans des histogrammes à classes de puissances de deux en microsecondes :
+ * enregistrer un message ne fait aucune allocation.
+ * N'est utilisé que par le shard du channel, sans synchronisation.
+ */
+public class LatencyStats {
+    private static final int BUCKETS = 40;
+    private static final String[] PHASES = {"parse", "queue", "sequence", "fan-out"};
+    private final long[][] histograms = new long[PHASES.length][BUCKETS];
+    private final long[] max = new long[PHASES.length];
+    private long messages;
+
+    /**
+     * Ajoute les durées d'un message dont le fan-out vient de se terminer
+     * @param trace
+     * @param fannedOutNanos fin du fan-out
+     */
+    void record(MessageTrace trace, long fannedOutNanos) {
+        add(0, trace.getPublishedNanos() - trace.getReceivedNanos());
+        add(1, trace.getDequeuedNanos() - trace.getPublishedNanos());
+        add(2, trace.getSequencedNanos() - trace.getDequeuedNanos());
+        add(3, fannedOutNanos - trace.getSequencedNanos());
+        messages++;
+    }
+
+    private void add(int phase, long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        histograms[phase][Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros))]++;
+        max[phase] = Math.max(max[phase], micros);
+    }
+
+    /**
+     * @return le nombre de messages depuis le dernier reset
+     */
+    long getMessages() {
+        return messages;
+    }
+
+    /**
+     * Résumé des étapes, par exemple "parse p50 <8 us p99 <64 us max 70 us, queue ...".
+     * Les percentiles sont la borne supérieure de leur classe.
+     * @return
+     */
+    String summary() {
+        StringBuilder summary = new StringBuilder();
+        for (int phase = 0; phase < PHASES.length; phase++) {
+            if (phase > 0) {
+                summary.append(", ");
+            }
+            summary.append(PHASES[phase])
+                    .append(" p50 <").append(format(percentile(phase, 0.50)))
+                    .append(" p99 <").append(format(percentile(phase, 0.99)))
+                    .append(" max ").append(format(max[phase]));
+        }
+        return summary.toString();
+    }
+
+    /**
+     * On repart de zéro pour la prochaine période
+     */
+    void reset() {
+        for (long[] histogram : histograms) {
+            Arrays.fill(histogram, 0);
+        }
+        Arrays.fill(max, 0);
+        messages = 0;
+    }
+
+    private long percentile(int phase, double percentile) {
+        long rank = (long) Math.ceil(percentile * messages);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += histograms[phase][bucket];
+            if (seen >= rank) {
+                return 1L << bucket;
+            }
+        }
+        return max[phase];
+    }
+
+    private static String format(long micros) {
+        return micros < 10_000 ? micros + " us" : micros / 1000 + " ms";
+    }
+}
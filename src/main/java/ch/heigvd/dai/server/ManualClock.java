@@ -0,0 +1,59 @@
+package ch.heigvd.dai.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Horloge qui n'avance que par advance() : une simulation peut faire passer une minute
+ * d'inactivité instantanément et de façon reproductible.
+ */
+public class ManualClock implements Clock {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition advanced = lock.newCondition();
+    private final long startMillis;
+    private volatile long nanos;
+
+    /**
+     * @param startMillis heure de départ, en millisecondes depuis l'epoch
+     */
+    public ManualClock(long startMillis) {
+        this.startMillis = startMillis;
+    }
+
+    @Override
+    public long millis() {
+        return startMillis + TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    @Override
+    public long nanos() {
+        return nanos;
+    }
+
+    /**
+     * Fait avancer l'horloge et réveille ceux qui attendent une échéance
+     * @param millis
+     */
+    public void advance(long millis) {
+        lock.lock();
+        try {
+            nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+            advanced.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void sleepUntil(long deadlineNanos) throws InterruptedException {
+        lock.lock();
+        try {
+            while (nanos < deadlineNanos) {
+                advanced.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
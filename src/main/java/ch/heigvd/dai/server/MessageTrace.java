@@ -0,0 +1,66 @@
+package ch.heigvd.dai.server;
+
+/**
+ * Horodatages d'un message de client, du moment où sa ligne est lue jusqu'à son envoi aux membres du channel.
+ * Créé seulement si le mode trace est utilisé (un client a envoyé TRACE ON ou --latency-report est actif).
+ *
+ * Les clients en mode trace reçoivent le message préfixé de
+ * "~<envoi client>,<réception serveur>,<début du fan-out>,<séquence> ", les heures en microsecondes
+ * depuis l'epoch ; l'heure d'envoi est 0 si l'auteur n'est pas en mode trace.
+ * Les étapes (lecture, file d'attente du shard, séquencement, fan-out) sont agrégées par channel
+ * dans LatencyStats.
+ */
+public class MessageTrace {
+    private final long sentMicros;
+    private final long receivedNanos;
+    private long publishedNanos;
+    private long dequeuedNanos;
+    private long sequencedNanos;
+    private int sequence;
+
+    /**
+     * @param sentMicros heure d'envoi donnée par le client, 0 si inconnue
+     * @param receivedNanos heure de lecture de la ligne, selon l'horloge du serveur
+     */
+    public MessageTrace(long sentMicros, long receivedNanos) {
+        this.sentMicros = sentMicros;
+        this.receivedNanos = receivedNanos;
+    }
+
+    /**
+     * Le message est confié au shard de son channel
+     */
+    void published() {
+        publishedNanos = Server.getClock().nanos();
+    }
+
+    /**
+     * Le shard commence à traiter le message
+     */
+    void dequeued() {
+        dequeuedNanos = Server.getClock().nanos();
+    }
+
+    /**
+     * Le message a son numéro de séquence, le fan-out commence
+     * @param sequence
+     */
+    void sequenced(int sequence) {
+        this.sequence = sequence;
+        sequencedNanos = Server.getClock().nanos();
+    }
+
+    /**
+     * @param message la ligne RECEIVE envoyée aux membres du channel
+     * @return la ligne préfixée des horodatages, pour les clients en mode trace
+     */
+    String stamp(String message) {
+        return "~" + sentMicros + "," + Server.epochMicros(receivedNanos) + ","
+                + Server.epochMicros(sequencedNanos) + "," + sequence + " " + message;
+    }
+
+    long getReceivedNanos() {return receivedNanos;}
+    long getPublishedNanos() {return publishedNanos;}
+    long getDequeuedNanos() {return dequeuedNanos;}
+    long getSequencedNanos() {return sequencedNanos;}
+}
@@ -0,0 +1,192 @@
+package ch.heigvd.dai.server;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connexion sortante vers un autre noeud du cluster. Chaque noeud envoie ses messages de cluster
+ * sur ses propres connexions sortantes et les reçoit sur les connexions entrantes des autres.
+ * Les lignes sont mises dans une file et écrites par un thread dédié ; si la connexion tombe,
+ * elle est rétablie avec un backoff exponentiel et la file est vidée : la poignée de main
+ * (voir Cluster.handshake) renvoie l'état nécessaire pour que l'autre noeud se resynchronise.
+ * Les messages transmis au propriétaire d'un channel (PFWD) sont gardés en mémoire jusqu'à son PACK
+ * et renvoyés à chaque reconnexion : un message accepté n'est pas perdu si le propriétaire tombe,
+ * mais il l'est si c'est ce noeud qui redémarre avant le PACK.
+ */
+public class PeerLink {
+    private static final int QUEUE_CAPACITY = 65536;
+    private static final int MAX_WRITE_BATCH = 1024;
+    private static final long RECONNECT_MIN_MILLIS = 200;
+    private static final long RECONNECT_MAX_MILLIS = 10_000;
+    private static final long DROP_REPORT_MILLIS = 10_000;
+    private final String id;
+    private final String host;
+    private final int port;
+    private Cluster cluster;
+    private final BlockingQueue<String> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    private final ConcurrentSkipListMap<Long, String> pendingForwards = new ConcurrentSkipListMap<>();
+    // lignes perdues depuis le dernier rapport dans le log, et heure de ce rapport
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong lastDropReport = new AtomicLong();
+
+    /**
+     * @param spec le noeud au format "id@host:port", port étant son --peer-port
+     */
+    public PeerLink(String spec) {
+        int at = spec.indexOf('@');
+        int colon = spec.lastIndexOf(':');
+        if (at <= 0 || colon < at) {
+            throw new IllegalArgumentException("invalid peer, expected id@host:port: " + spec);
+        }
+        this.id = spec.substring(0, at);
+        this.host = spec.substring(at + 1, colon);
+        this.port = Integer.parseInt(spec.substring(colon + 1));
+    }
+
+    public String getId() {return id;}
+
+    /**
+     * Démarre le thread qui maintient la connexion
+     * @param cluster
+     */
+    public void start(Cluster cluster) {
+        this.cluster = cluster;
+        Thread thread = new Thread(this::run, "chch-peer-" + id);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Met une ligne dans la file d'envoi, sans bloquer.
+     * Si la file est pleine la ligne est perdue : l'autre noeud la récupère en se resynchronisant.
+     * Les pertes sont comptées et rapportées au plus une fois toutes les DROP_REPORT_MILLIS.
+     * @param line
+     */
+    public void send(String line) {
+        if (queue.offer(line)) {
+            return;
+        }
+        dropped.incrementAndGet();
+        long now = Server.getClock().millis();
+        long last = lastDropReport.get();
+        if (now - last >= DROP_REPORT_MILLIS && lastDropReport.compareAndSet(last, now)) {
+            System.out.println("[Cluster] Queue to " + id + " full, dropped " + dropped.getAndSet(0) + " message(s)");
+        }
+    }
+
+    /**
+     * Transmet un message au propriétaire du channel, il est gardé jusqu'à l'acquittement
+     * @param forwardId
+     * @param line
+     */
+    public void forward(long forwardId, String line) {
+        pendingForwards.put(forwardId, line);
+        send(line);
+    }
+
+    /**
+     * Le propriétaire a séquencé le message. Les PACK ne sont pas cumulatifs :
+     * le propriétaire séquence les channels en parallèle, un PACK peut en dépasser un autre.
+     * @param forwardId
+     */
+    public void acknowledge(long forwardId) {
+        pendingForwards.remove(forwardId);
+    }
+
+    /**
+     * Renvoie les messages transmis pas encore acquittés
+     */
+    public void retransmit() {
+        for (String line : pendingForwards.values()) {
+            send(line);
+        }
+    }
+
+    private void run() {
+        long backoff = RECONNECT_MIN_MILLIS;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(host, port), (int) RECONNECT_MAX_MILLIS);
+                socket.setTcpNoDelay(true);
+                BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+
+                //ce qui était en file pour l'ancienne connexion est remplacé par la poignée de main
+                queue.clear();
+                out.write(cluster.hello() + "\n");
+                for (String line : cluster.handshake(id)) {
+                    out.write(line + "\n");
+                }
+                for (String line : pendingForwards.values()) {
+                    out.write(line + "\n");
+                }
+                out.flush();
+                System.out.println("[Cluster] Connected to peer " + id + " (" + host + ":" + port + ")");
+                backoff = RECONNECT_MIN_MILLIS;
+
+                Thread.startVirtualThread(() -> readLoop(in, socket));
+                writeLoop(out, socket);
+            } catch (IOException e) {
+                System.out.println("[Cluster] Link to peer " + id + " down: " + e.getMessage());
+            }
+
+            try {
+                Thread.sleep(ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1));
+            } catch (InterruptedException e) {
+                return;
+            }
+            backoff = Math.min(backoff * 2, RECONNECT_MAX_MILLIS);
+        }
+    }
+
+    /**
+     * Écrit les lignes de la file par lots, un seul flush par lot
+     */
+    private void writeLoop(BufferedWriter out, Socket socket) throws IOException {
+        List<String> batch = new ArrayList<>();
+        while (!socket.isClosed()) {
+            String line;
+            try {
+                line = queue.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (line == null) {
+                continue;
+            }
+            batch.add(line);
+            queue.drainTo(batch, MAX_WRITE_BATCH - 1);
+            for (String message : batch) {
+                out.write(message + "\n");
+            }
+            out.flush();
+            batch.clear();
+        }
+    }
+
+    /**
+     * L'autre noeud n'envoie rien sur cette connexion à part ses PING de keepalive
+     */
+    private void readLoop(BufferedReader in, Socket socket) {
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.equals("PING")) {
+                    send("PONG");
+                }
+            }
+        } catch (IOException ignored) {
+        }
+        try { socket.close(); } catch (IOException ignored) {}
+    }
+}
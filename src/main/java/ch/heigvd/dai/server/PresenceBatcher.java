@@ -0,0 +1,129 @@
+package ch.heigvd.dai.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Regroupe les événements de présence (JOINED/QUIT) d'un channel.
+ * Un événement dans un channel calme est envoyé tout de suite. Si d'autres événements
+ * arrivent pendant la fenêtre qui suit, ils sont accumulés et envoyés en une seule ligne
+ * "JOINED a b c ..." / "QUIT a b c ..." à la fin de la fenêtre. La fenêtre double tant que
+ * les lots sont gros et revient à sa taille de base quand le channel se calme :
+ * 5000 reconnexions coûtent quelques lignes par membre au lieu de 5000.
+ */
+public class PresenceBatcher {
+    private static final long BASE_WINDOW_MILLIS = 50;
+    private static final long MAX_WINDOW_MILLIS = 1000;
+    private static final int LARGE_BATCH = 64;
+    private static final int MAX_NAMES_PER_LINE = 500;
+    private final Map<String, ChannelPresence> channels = new ConcurrentHashMap<>();
+
+    /**
+     * Événements en attente d'un channel, protégés par le verrou de l'objet
+     */
+    private static class ChannelPresence {
+        private final Set<String> joined = new LinkedHashSet<>();
+        private final Set<String> quit = new LinkedHashSet<>();
+        private long windowMillis = BASE_WINDOW_MILLIS;
+        private long windowEnd;
+        private boolean flushScheduled;
+    }
+
+    /**
+     * Un utilisateur a rejoint le channel
+     * @param channel
+     * @param username
+     * @param sender le client qui a rejoint, il ne reçoit pas l'événement s'il est envoyé tout de suite
+     */
+    public void joined(String channel, String username, ClientHandler sender) {
+        event(channel, username, sender, true);
+    }
+
+    /**
+     * Un utilisateur a quitté le channel
+     * @param channel
+     * @param username
+     * @param sender le client qui est parti
+     */
+    public void quit(String channel, String username, ClientHandler sender) {
+        event(channel, username, sender, false);
+    }
+
+    private void event(String channel, String username, ClientHandler sender, boolean join) {
+        ChannelPresence presence = channels.computeIfAbsent(channel, c -> new ChannelPresence());
+        long now = Server.getClock().millis();
+        long delay;
+        boolean immediate;
+        synchronized (presence) {
+            immediate = !presence.flushScheduled && now >= presence.windowEnd;
+            if (immediate) {
+                //channel calme : envoi immédiat, et on ouvre une fenêtre pour les suivants
+                presence.windowEnd = now + presence.windowMillis;
+            }
+        }
+        if (immediate) {
+            Server.broadcast(channel, (join ? "JOINED " : "QUIT ") + username, sender);
+            return;
+        }
+
+        synchronized (presence) {
+            //un join et un quit du même utilisateur dans la même fenêtre s'annulent
+            Set<String> opposite = join ? presence.quit : presence.joined;
+            if (!opposite.remove(username)) {
+                (join ? presence.joined : presence.quit).add(username);
+            }
+            if (presence.flushScheduled) {
+                return;
+            }
+            presence.flushScheduled = true;
+            delay = Math.max(0, presence.windowEnd - now);
+        }
+        Server.getTimers().schedule(() -> flush(channel, presence), delay);
+    }
+
+    /**
+     * Envoie les événements accumulés pendant la fenêtre et adapte la fenêtre suivante
+     * @param channel
+     * @param presence
+     */
+    private void flush(String channel, ChannelPresence presence) {
+        List<String> lines = new ArrayList<>();
+        synchronized (presence) {
+            int batch = presence.joined.size() + presence.quit.size();
+            addLines(lines, "JOINED", presence.joined);
+            addLines(lines, "QUIT", presence.quit);
+            presence.joined.clear();
+            presence.quit.clear();
+            presence.flushScheduled = false;
+            presence.windowMillis = batch >= LARGE_BATCH
+                    ? Math.min(presence.windowMillis * 2, MAX_WINDOW_MILLIS)
+                    : BASE_WINDOW_MILLIS;
+            presence.windowEnd = Server.getClock().millis() + presence.windowMillis;
+        }
+        for (String line : lines) {
+            //les lots sont envoyés à tout le channel, y compris aux utilisateurs qu'ils contiennent
+            Server.broadcast(channel, line, null);
+        }
+    }
+
+    private static void addLines(List<String> lines, String verb, Set<String> usernames) {
+        StringBuilder line = new StringBuilder(verb);
+        int count = 0;
+        for (String username : usernames) {
+            if (count == MAX_NAMES_PER_LINE) {
+                lines.add(line.toString());
+                line = new StringBuilder(verb);
+                count = 0;
+            }
+            line.append(' ').append(username);
+            count++;
+        }
+        if (count > 0) {
+            lines.add(line.toString());
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package ch.heigvd.dai.server;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Index inversé des messages d'un channel : pour chaque mot, la liste des numéros de séquence
+ * des messages qui le contiennent. Les listes sont des tableaux d'int triés, remplis au fur et
+ * à mesure des messages (les numéros de séquence ne font qu'augmenter).
+ * L'index est sauvegardé dans data/index/<channel>.idx avec le dernier numéro de séquence indexé,
+ * les listes étant encodées en deltas (varint). Au démarrage, seuls les messages arrivés
+ * après la dernière sauvegarde sont réindexés.
+ * Pas synchronisé : c'est ChannelHistory qui protège l'index avec son propre verrou.
+ * La sauvegarde est faite hors de ce verrou, sur une copie figée de l'index (voir freeze()).
+ */
+public class SearchIndex {
+    private static final int MAGIC = 0x43484958; // "CHIX"
+    private static final int VERSION = 1;
+    private final Path file;
+    private final Map<String, Postings> terms = new HashMap<>();
+    private int indexedUpTo;
+    private boolean dirty;
+
+    /**
+     * Numéros de séquence des messages contenant un mot, dans l'ordre croissant
+     */
+    private static class Postings {
+        private int[] seqs;
+        private int size;
+
+        private Postings(int capacity) {
+            seqs = new int[capacity];
+        }
+
+        private void add(int seq) {
+            //un mot répété dans le même message n'est noté qu'une fois
+            if (size > 0 && seqs[size - 1] == seq) {
+                return;
+            }
+            if (size == seqs.length) {
+                seqs = Arrays.copyOf(seqs, size * 2);
+            }
+            seqs[size++] = seq;
+        }
+
+        private boolean contains(int seq) {
+            return Arrays.binarySearch(seqs, 0, size, seq) >= 0;
+        }
+    }
+
+    /**
+     * Charge l'index sauvegardé s'il existe et qu'il est lisible, sinon part d'un index vide
+     * @param file
+     */
+    public SearchIndex(Path file) {
+        this.file = file;
+        if (Files.isRegularFile(file)) {
+            try {
+                load();
+            } catch (IOException e) {
+                System.out.println("[Server] Ignoring unreadable search index " + file + ": " + e);
+                terms.clear();
+                indexedUpTo = 0;
+            }
+        }
+    }
+
+    /**
+     * Retourne le numéro de séquence du dernier message indexé
+     * @return
+     */
+    public int getIndexedUpTo() {
+        return indexedUpTo;
+    }
+
+    /**
+     * Vide l'index, par exemple si l'historique a été remplacé par un plus court
+     */
+    public void clear() {
+        terms.clear();
+        indexedUpTo = 0;
+        dirty = true;
+    }
+
+    /**
+     * Indexe un message
+     * @param seq numéro de séquence du message, plus grand que ceux déjà indexés
+     * @param entry "username message", le username est indexé comme les autres mots
+     */
+    public void add(int seq, String entry) {
+        if (seq <= indexedUpTo) {
+            return;
+        }
+        for (String term : tokenize(entry)) {
+            terms.computeIfAbsent(term, t -> new Postings(4)).add(seq);
+        }
+        indexedUpTo = seq;
+        dirty = true;
+    }
+
+    /**
+     * Cherche les messages qui contiennent tous les mots de la requête
+     * @param query
+     * @param limit nombre maximum de résultats
+     * @return les numéros de séquence des messages trouvés, les plus récents, dans l'ordre croissant
+     */
+    public int[] search(String query, int limit) {
+        List<String> words = tokenize(query);
+        if (words.isEmpty() || limit <= 0) {
+            return new int[0];
+        }
+        Postings[] lists = new Postings[words.size()];
+        for (int i = 0; i < lists.length; i++) {
+            lists[i] = terms.get(words.get(i));
+            if (lists[i] == null) {
+                return new int[0];
+            }
+        }
+        //on parcourt la plus petite liste en partant de la fin, les autres sont testées par recherche dichotomique
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.size, b.size));
+        Postings smallest = lists[0];
+        int[] found = new int[Math.min(limit, smallest.size)];
+        int count = 0;
+        for (int i = smallest.size - 1; i >= 0 && count < found.length; i--) {
+            int seq = smallest.seqs[i];
+            boolean all = true;
+            for (int j = 1; j < lists.length && all; j++) {
+                all = lists[j].contains(seq);
+            }
+            if (all) {
+                found[count++] = seq;
+            }
+        }
+        int[] result = new int[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = found[count - 1 - i];
+        }
+        return result;
+    }
+
+    /**
+     * Sauvegarde l'index s'il a changé depuis la dernière sauvegarde
+     * @throws IOException
+     */
+    public void save() throws IOException {
+        Frozen frozen = freeze();
+        if (frozen != null) {
+            frozen.save();
+        }
+    }
+
+    /**
+     * Fige l'état actuel de l'index pour le sauvegarder sans garder le verrou de l'historique.
+     * Seules les références aux listes et leur taille sont copiées : une liste ne change jamais
+     * avant sa taille, elle grandit après ou est remplacée par une copie plus grande.
+     * L'index est ensuite considéré comme sauvegardé, markDirty() le remet à sauvegarder si l'écriture échoue.
+     * @return la copie à sauvegarder, ou null si l'index n'a pas changé
+     */
+    public Frozen freeze() {
+        if (!dirty) {
+            return null;
+        }
+        dirty = false;
+        return new Frozen(this);
+    }
+
+    /**
+     * L'index devra être sauvegardé à nouveau
+     */
+    public void markDirty() {
+        dirty = true;
+    }
+
+    /**
+     * Copie figée de l'index, écrite sans verrou
+     */
+    public static class Frozen {
+        private final Path file;
+        private final int indexedUpTo;
+        private final String[] terms;
+        private final int[][] seqs;
+        private final int[] sizes;
+
+        private Frozen(SearchIndex index) {
+            file = index.file;
+            indexedUpTo = index.indexedUpTo;
+            int count = index.terms.size();
+            terms = new String[count];
+            seqs = new int[count][];
+            sizes = new int[count];
+            int i = 0;
+            for (Map.Entry<String, Postings> term : index.terms.entrySet()) {
+                terms[i] = term.getKey();
+                seqs[i] = term.getValue().seqs;
+                sizes[i] = term.getValue().size;
+                i++;
+            }
+        }
+
+        /**
+         * On écrit dans un fichier temporaire puis on le renomme, un crash ne laisse jamais un index à moitié écrit.
+         * @throws IOException
+         */
+        public void save() throws IOException {
+            Files.createDirectories(file.getParent());
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(indexedUpTo);
+                out.writeInt(terms.length);
+                for (int t = 0; t < terms.length; t++) {
+                    out.writeUTF(terms[t]);
+                    writeVarInt(out, sizes[t]);
+                    int previous = 0;
+                    for (int i = 0; i < sizes[t]; i++) {
+                        writeVarInt(out, seqs[t][i] - previous);
+                        previous = seqs[t][i];
+                    }
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private void load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("not a search index");
+            }
+            indexedUpTo = in.readInt();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String term = in.readUTF();
+                int size = readVarInt(in);
+                Postings postings = new Postings(Math.max(4, size));
+                int seq = 0;
+                for (int j = 0; j < size; j++) {
+                    seq += readVarInt(in);
+                    postings.seqs[j] = seq;
+                }
+                postings.size = size;
+                terms.put(term, postings);
+            }
+        }
+    }
+
+    /**
+     * Découpe un texte en mots en minuscules, les autres caractères servent de séparateurs
+     * @param text
+     * @return
+     */
+    static List<String> tokenize(String text) {
+        List<String> words = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean letter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (letter && start < 0) {
+                start = i;
+            } else if (!letter && start >= 0) {
+                words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+}
@@ -4,22 +4,132 @@ import java.io.*;
 import java.net.*;
 import java.nio.file.*;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import ch.heigvd.dai.transport.SocketTransport;
+import ch.heigvd.dai.transport.Transport;
 
 public class Server {
     private static int PORT = 4269;
-    private static final Map<String, Map<String, ClientHandler>> clients = new ConcurrentHashMap<>();
+    // membres de chaque channel : la map d'un channel n'est lue et modifiée que par le shard du channel
+    private static final Map<String, ChannelMembers> clients = new ConcurrentHashMap<>();
+    // index global username -> client, les usernames sont uniques sur tout le serveur
+    private static final Map<String, ClientHandler> users = new ConcurrentHashMap<>();
     private static List<String> listChannels;
-    private static final Map<String, List<String>> historyMessages = new ConcurrentHashMap<>();
+    private static final Map<String, ChannelHistory> historyMessages = new ConcurrentHashMap<>();
+    private static SessionRegistry sessions = new SessionRegistry(60_000);
+    private static Clock clock = Clock.SYSTEM;
+    private static TimerWheel timers;
+    private static final PresenceBatcher presence = new PresenceBatcher();
+    // identifiants des usernames et des noms de channel, les membres d'un channel sont indexés par identifiant
+    private static final Symbols userIds = new Symbols();
+    private static final Symbols channelIds = new Symbols();
+    // réponse à CHANLIST, reconstruite seulement quand un channel est ajouté
+    private static volatile String chanList = "CHANLIST";
+    private static long idleTimeoutMillis = 60_000;
+    private static long pingTimeoutMillis = 15_000;
+    private static int maxFrameBytes = 8192;
+    private static int compressMinBytes = 512;
+    // taille d'un fichier d'historique à partir de laquelle ses anciens messages sont archivés, 0 sans archivage
+    private static long archiveThresholdBytes = 8192 * 1024L;
+    // messages envoyés par chaque client synthétique de l'échauffement, 0 sans échauffement
+    private static int warmupMessages;
+    // logs de chaque commande reçue et de chaque ligne envoyée (option --verbose)
+    private static volatile boolean verbose;
+    private static final long INDEX_SAVE_INTERVAL_MILLIS = 10_000;
+    // attente après un accept() en échec, doublée à chaque nouvel échec
+    private static final long ACCEPT_BACKOFF_MIN_MILLIS = 10;
+    private static final long ACCEPT_BACKOFF_MAX_MILLIS = 1000;
+    private static Path dataDirectory = Paths.get("./data");
+    private static final long SNAPSHOT_INTERVAL_MILLIS = 30_000;
+    private static StateStore state;
+    private static Path captureFile;
+    private static TrafficCapture capture;
+    private static Cluster cluster;
+    // port d'écoute des autres noeuds, séparé de celui des clients
+    private static int peerPort;
+    // clients en mode trace (commande TRACE), et période du rapport de latence par channel, 0 sans rapport
+    private static final AtomicInteger tracedClients = new AtomicInteger();
+    private static long latencyReportMillis;
+    private static final Map<String, LatencyStats> latencyStats = new ConcurrentHashMap<>();
+    // heure de référence pour convertir l'horloge monotone en heure des horodatages de trace
+    private static long epochMicrosBase;
+    private static long nanosBase;
+    private static SocketTuning tuning = SocketTuning.defaults();
+    private static final ChannelShards shards = new ChannelShards(Runtime.getRuntime().availableProcessors());
 
     public Server(int port){
+        this(port, 60, 60, 15, 8192, null, List.of(), null, 0, SocketTuning.defaults(), null, 0, 512, 8192, 0);
+    }
+
+    /**
+     * Serveur sans socket d'écoute pour une simulation : les clients sont connectés avec connect(),
+     * l'état est dans un dossier choisi et le temps est donné par l'horloge.
+     * @param dataDirectory dossier des channels et de l'état, à la place de ./data
+     * @param clock
+     */
+    public Server(Path dataDirectory, Clock clock) {
+        Server.dataDirectory = dataDirectory;
+        Server.clock = clock;
+        init(0, 60, 60, 15, 8192, null, List.of(), null, 0, SocketTuning.defaults(), null, 0, 512, 8192, 0);
+    }
+
+    /**
+     * @param port
+     * @param resumeWindowSeconds durée pendant laquelle un client déconnecté peut reprendre sa session
+     * @param idleTimeoutSeconds durée sans activité après laquelle on envoie un PING au client
+     * @param pingTimeoutSeconds délai de réponse au PING avant de fermer la connexion
+     * @param maxFrameBytes taille maximale d'une ligne reçue d'un client, en octets
+     * @param nodeId identifiant de ce noeud dans le cluster, null pour "node-<port>"
+     * @param peers les autres noeuds du cluster, au format "id@host:port", vide pour un serveur seul
+     * @param clusterSecret secret partagé par les noeuds du cluster, vérifié à leur poignée de main
+     * @param peerPort port sur lequel les autres noeuds du cluster se connectent
+     * @param tuning acceptors, backlog et options des sockets
+     * @param captureFile trace où enregistrer les commandes reçues des clients, null pour ne rien enregistrer
+     * @param latencyReportSeconds période du rapport de latence par channel dans le log, 0 sans rapport
+     * @param compressMinBytes taille minimale d'un lot de lignes compressé, pour les clients qui ont demandé COMPRESS
+     * @param archiveThresholdKb taille en Ko d'un fichier d'historique à partir de laquelle ses anciens messages
+     *                           sont compressés dans data/archive/, 0 pour ne jamais archiver
+     * @param warmupMessages messages envoyés par chaque client synthétique de l'échauffement fait avant
+     *                       la première connexion, 0 sans échauffement
+     */
+    public Server(int port, int resumeWindowSeconds, int idleTimeoutSeconds, int pingTimeoutSeconds, int maxFrameBytes,
+                  String nodeId, List<String> peers, String clusterSecret, int peerPort, SocketTuning tuning, Path captureFile, int latencyReportSeconds,
+                  int compressMinBytes, int archiveThresholdKb, int warmupMessages){
+        init(port, resumeWindowSeconds, idleTimeoutSeconds, pingTimeoutSeconds, maxFrameBytes, nodeId, peers, clusterSecret,
+                peerPort, tuning, captureFile,
+                latencyReportSeconds, compressMinBytes, archiveThresholdKb, warmupMessages);
+    }
+
+    private void init(int port, int resumeWindowSeconds, int idleTimeoutSeconds, int pingTimeoutSeconds, int maxFrameBytes,
+                      String nodeId, List<String> peers, String clusterSecret, int peerPort, SocketTuning tuning, Path captureFile, int latencyReportSeconds,
+                      int compressMinBytes, int archiveThresholdKb, int warmupMessages) {
         PORT = port;
-        listChannels = new ArrayList<>();
+        Server.warmupMessages = warmupMessages;
+        Server.compressMinBytes = compressMinBytes;
+        archiveThresholdBytes = archiveThresholdKb * 1024L;
+        Server.captureFile = captureFile;
+        latencyReportMillis = latencyReportSeconds * 1000L;
+        epochMicrosBase = clock.millis() * 1000;
+        nanosBase = clock.nanos();
+        listChannels = new CopyOnWriteArrayList<>();
+        timers = new TimerWheel(10, 512, clock);
+        state = new StateStore(dataDirectory.resolve("state"));
+        sessions = new SessionRegistry(resumeWindowSeconds * 1000L, state, clock);
+        idleTimeoutMillis = idleTimeoutSeconds * 1000L;
+        pingTimeoutMillis = pingTimeoutSeconds * 1000L;
+        Server.maxFrameBytes = maxFrameBytes;
+        Server.tuning = tuning;
+        if (!peers.isEmpty()) {
+            cluster = new Cluster(nodeId != null ? nodeId : "node-" + port, clusterSecret, peers);
+            Server.peerPort = peerPort;
+        }
     }
 
 
@@ -27,75 +137,449 @@ public class Server {
      * On crée le serveur et on attend que les clients se connecte
      */
     public void createServer() {
-        try (ServerSocket serverSocket = new ServerSocket(PORT);
-            ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor(); ) {
-            System.out.println("[Server] listening on port " + PORT);
-
-            //on crée les channels en fonction des fichiers existant dans le dossier /data
-            Path path = Paths.get("./data");
-            try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
-                for (Path entry : stream) {
-                    if (Files.isRegularFile(entry)) {
-                        String name = entry.getFileName().toString();
-                        //On supprime l'extension pour le nom des canaux
-                        String withoutExt = name.contains(".") ? name.substring(0, name.lastIndexOf('.')) : name;
-                        listChannels.add(withoutExt);
-                        clients.put(withoutExt, new ConcurrentHashMap<>());
-                        historyMessages.put(withoutExt, new ArrayList<>());
-                    }
-                }
+        List<ServerSocket> serverSockets = new ArrayList<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            serverSockets.addAll(tuning.bind(PORT));
+            System.out.println("[Server] listening on port " + PORT + " (" + tuning + ", "
+                    + serverSockets.size() + " listening socket(s))");
+
+            int listening = serverSockets.size();
+            //les noeuds du cluster ont leur propre socket, ils ne passent jamais par le port des clients
+            ServerSocket peerSocket = cluster != null ? new ServerSocket(peerPort) : null;
+            if (peerSocket != null) {
+                serverSockets.add(peerSocket);
+                System.out.println("[Cluster] listening for peers on port " + peerPort);
             }
 
-            //TODO ecrire/lecture fichier
+            open();
 
-            while (!serverSocket.isClosed()) {
-                Socket clientSocket = serverSocket.accept();
-                ClientHandler clientHandler = new ClientHandler(clientSocket);
-                executor.submit(clientHandler);
+            //les acceptors supplémentaires ont leur thread, le premier tourne sur ce thread
+            for (int i = 1; i < tuning.getAcceptors(); i++) {
+                ServerSocket serverSocket = serverSockets.get(i % listening);
+                Thread acceptor = new Thread(() -> accept(serverSocket, executor, false), "chch-acceptor-" + i);
+                acceptor.setDaemon(true);
+                acceptor.start();
             }
+            if (peerSocket != null) {
+                Thread acceptor = new Thread(() -> accept(peerSocket, executor, true), "chch-peer-acceptor");
+                acceptor.setDaemon(true);
+                acceptor.start();
+            }
+            accept(serverSockets.get(0), executor, false);
         } catch (IOException e) {
             System.out.println("[Server] exception: " + e);
+        } finally {
+            for (ServerSocket serverSocket : serverSockets) {
+                try { serverSocket.close(); } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    /**
+     * Charge les channels et l'état sauvegardé, puis démarre le cluster et les tâches régulières.
+     * Appelé par createServer(), ou directement pour un serveur de simulation sans socket.
+     * @throws IOException
+     */
+    public void open() throws IOException {
+        //on reprend le dernier snapshot : seuls les messages et les sessions plus récents sont relus
+        long recoveryStart = System.nanoTime();
+        StateStore.Recovered recovered = state.load();
+
+        //on crée les channels en fonction des fichiers existant dans le dossier /data
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dataDirectory)) {
+            for (Path entry : stream) {
+                if (Files.isRegularFile(entry)) {
+                    String name = entry.getFileName().toString();
+                    //On supprime l'extension pour le nom des canaux
+                    String withoutExt = name.contains(".") ? name.substring(0, name.lastIndexOf('.')) : name;
+                    addChannel(withoutExt, entry, recovered.getChannels().get(withoutExt));
+                }
+            }
+        }
+        sessions.restore(recovered.getSessions(), channel -> {
+            ChannelHistory history = historyMessages.get(channel);
+            return history != null ? history.head() : -1;
+        });
+        saveSnapshot();
+        System.out.println("[Server] recovered " + listChannels.size() + " channel(s), "
+                + recovered.getSessions().size() + " session(s) in "
+                + (System.nanoTime() - recoveryStart) / 1_000_000 + " ms");
+        if (warmupMessages > 0) {
+            warmup();
+            //les sessions de l'échauffement sont fermées, le journal repart d'un état qui ne les contient pas
+            saveSnapshot();
+        }
+        if (cluster != null) {
+            cluster.start();
+        }
+
+        timers.schedule(Server::saveIndexes, INDEX_SAVE_INTERVAL_MILLIS);
+        timers.schedule(Server::saveSnapshots, SNAPSHOT_INTERVAL_MILLIS);
+        if (latencyReportMillis > 0) {
+            timers.schedule(Server::reportLatencies, latencyReportMillis);
+        }
+
+        if (captureFile != null) {
+            capture = new TrafficCapture(captureFile, clock);
+            //la fin de la trace est écrite quand le serveur est arrêté
+            Runtime.getRuntime().addShutdownHook(new Thread(capture::close));
+            System.out.println("[Server] Capturing client traffic to " + captureFile);
+        }
+    }
+
+    /**
+     * Prend en charge une connexion déjà ouverte, par exemple un tuyau en mémoire
+     * @param transport
+     */
+    public static void connect(Transport transport) {
+        Thread.startVirtualThread(new ClientHandler(transport));
+    }
+
+    /**
+     * Boucle d'un acceptor : accepte les connexions et les confie à un thread virtuel
+     * @param serverSocket
+     * @param executor
+     * @param peers true pour le socket des autres noeuds du cluster
+     */
+    private static void accept(ServerSocket serverSocket, ExecutorService executor, boolean peers) {
+        long backoff = 0;
+        long failures = 0;
+        while (!serverSocket.isClosed()) {
+            Socket clientSocket;
+            try {
+                clientSocket = serverSocket.accept();
+            } catch (IOException e) {
+                if (serverSocket.isClosed()) {
+                    break;
+                }
+                //plus de descripteurs de fichier par exemple : réessayer tout de suite échouerait en boucle.
+                //on attend de plus en plus longtemps, et seul le premier échec d'une série est loggé en entier
+                failures++;
+                if (backoff == 0) {
+                    System.out.println("[Server] accept failed: " + e);
+                }
+                backoff = Math.min(Math.max(backoff * 2, ACCEPT_BACKOFF_MIN_MILLIS), ACCEPT_BACKOFF_MAX_MILLIS);
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+                continue;
+            }
+            if (backoff != 0) {
+                System.out.println("[Server] accept recovered after " + failures + " failure(s)");
+                backoff = 0;
+                failures = 0;
+            }
+            try {
+                tuning.apply(clientSocket);
+            } catch (IOException e) {
+                System.out.println("[Server] Failed to set socket options: " + e);
+            }
+            executor.submit(new ClientHandler(new SocketTransport(clientSocket), peers));
+        }
+    }
+
+    static synchronized void addChannel(String channel, Path file, ChannelHistory.Snapshot snapshot) throws IOException {
+        channel = channelIds.intern(channel);
+        historyMessages.put(channel, new ChannelHistory(file, snapshot, archiveThresholdBytes, userIds));
+        clients.put(channel, new ChannelMembers());
+        listChannels.add(channel);
+        chanList = chanList + " " + channel;
+    }
+
+    /**
+     * Retire un channel et ferme son historique, sans toucher à son fichier.
+     * Utilisé pour le channel temporaire de l'échauffement, qui n'a plus de membres.
+     * @param channel
+     */
+    static synchronized void removeChannel(String channel) {
+        ChannelHistory history = historyMessages.remove(channel);
+        if (history == null) {
+            return;
+        }
+        history.close();
+        clients.remove(channel);
+        latencyStats.remove(channel);
+        listChannels.remove(channel);
+        chanList = "CHANLIST" + (listChannels.isEmpty() ? "" : " " + String.join(" ", listChannels));
+    }
+
+    /**
+     * Échauffe le serveur avec du trafic synthétique avant la première connexion (option --warmup).
+     * Le cluster n'est pas encore démarré : pendant l'échauffement, le serveur se comporte comme un serveur seul
+     * et rien n'est envoyé aux autres noeuds.
+     */
+    private static void warmup() {
+        Cluster started = cluster;
+        cluster = null;
+        try {
+            new Warmup(warmupMessages).run();
+        } catch (IOException e) {
+            System.out.println("[Server] Warmup failed: " + e);
+        } finally {
+            cluster = started;
+        }
+    }
+
+    /**
+     * Crée un channel annoncé par un autre noeud du cluster, avec un historique vide
+     * @param channel
+     */
+    public static synchronized void createChannel(String channel) {
+        if (clients.containsKey(channel) || !channel.matches("[A-Za-z0-9_-]+")) {
+            return;
+        }
+        try {
+            Path file = dataDirectory.resolve(channel + ".txt");
+            if (!Files.exists(file)) {
+                Files.createFile(file);
+            }
+            addChannel(channel, file, null);
+            System.out.println("[Server] Channel created: " + channel);
+        } catch (IOException e) {
+            System.out.println("[Server] Failed to create channel " + channel + ": " + e);
+        }
+    }
+
+    /**
+     * Sauvegarde régulièrement les index de recherche qui ont changé.
+     * Les messages indexés après la dernière sauvegarde sont réindexés au démarrage.
+     */
+    private static void saveIndexes() {
+        for (ChannelHistory history : historyMessages.values()) {
+            history.saveIndex();
+        }
+        timers.schedule(Server::saveIndexes, INDEX_SAVE_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Écrit régulièrement un snapshot de l'état, le journal des sessions repart de zéro
+     */
+    private static void saveSnapshots() {
+        saveSnapshot();
+        timers.schedule(Server::saveSnapshots, SNAPSHOT_INTERVAL_MILLIS);
+    }
+
+    private static void saveSnapshot() {
+        try {
+            state.snapshot(() -> {
+                Map<String, ChannelHistory.Snapshot> channels = new HashMap<>();
+                for (Map.Entry<String, ChannelHistory> history : historyMessages.entrySet()) {
+                    channels.put(history.getKey(), history.getValue().snapshot());
+                }
+                return channels;
+            }, sessions::snapshot);
+        } catch (IOException e) {
+            System.out.println("[Server] Failed to save snapshot: " + e);
         }
     }
 
     /**
-     * On envoie un message à tous les clients du channel choisi sauf lui-même
+     * Écrit le rapport de latence de chaque channel actif depuis le rapport précédent.
+     * Les statistiques d'un channel ne sont lues et remises à zéro que par son shard.
+     */
+    private static void reportLatencies() {
+        for (Map.Entry<String, LatencyStats> entry : latencyStats.entrySet()) {
+            shards.execute(entry.getKey(), () -> {
+                LatencyStats stats = entry.getValue();
+                if (stats.getMessages() > 0) {
+                    System.out.println("[Server] Latency in " + entry.getKey() + ": " + stats.getMessages()
+                            + " message(s), " + stats.summary());
+                    stats.reset();
+                }
+            });
+        }
+        timers.schedule(Server::reportLatencies, latencyReportMillis);
+    }
+
+    /**
+     * On envoie un message à tous les clients du channel choisi sauf lui-même.
+     * L'envoi est fait par le shard du channel, cette méthode ne bloque pas.
      * @param channel
      * @param message
      * @param sender
      */
     public static void broadcast(String channel, String message, ClientHandler sender) {
-        //On sauvegarde dans le server par channel et on split pour enlever RECEIVE
-        // Only save RECEIVE messages (chat messages) to history, not JOINED or other broadcasts
-        if (message.startsWith("RECEIVE ")) {
-            List<String> history = historyMessages.get(channel);
-            if (history != null) {
-                history.add(message.split(" ", 2)[1]);
+        broadcast(channel, message, sender, null);
+    }
+
+    /**
+     * Comme broadcast(channel, message, sender), en notant les étapes du message dans sa trace
+     * @param channel
+     * @param message
+     * @param sender
+     * @param trace horodatages du message, null hors du mode trace
+     */
+    public static void broadcast(String channel, String message, ClientHandler sender, MessageTrace trace) {
+        if (trace != null) {
+            trace.published();
+        }
+        shards.execute(channel, () -> {
+            if (trace != null) {
+                trace.dequeued();
+            }
+            //On sauvegarde dans le server par channel et on split pour enlever RECEIVE
+            // Only save RECEIVE messages (chat messages) to history, not JOINED or other broadcasts
+            int sequence = 0;
+            if (message.startsWith("RECEIVE ")) {
+                ChannelHistory history = historyMessages.get(channel);
+                if (history != null) {
+                    sequence = history.append(message.split(" ", 2)[1]);
+                }
+            }
+            if (trace != null) {
+                trace.sequenced(sequence);
             }
+
+            fanOut(channel, message, sender, trace);
+        });
+    }
+
+    /**
+     * Publie un message envoyé par un client du channel.
+     * En cluster, c'est le noeud propriétaire du channel qui lui donne son numéro de séquence.
+     * @param channel
+     * @param username
+     * @param message
+     * @param sender
+     * @param trace horodatages du message, null hors du mode trace
+     */
+    public static void publish(String channel, String username, String message, ClientHandler sender, MessageTrace trace) {
+        if (cluster == null) {
+            broadcast(channel, "RECEIVE " + username + " " + message, sender, trace);
+        } else {
+            cluster.publish(channel, username, message, sender, trace);
         }
+    }
+
+    /**
+     * Publie plusieurs messages d'un client en une fois (commande BATCH) : ils sont écrits dans l'historique
+     * en une seule écriture et chaque membre du channel les reçoit en un seul envoi.
+     * En cluster, chaque message passe par le noeud propriétaire comme un MESSAGE.
+     * @param channel
+     * @param username
+     * @param messages
+     * @param sender
+     */
+    public static void publishAll(String channel, String username, List<String> messages, ClientHandler sender) {
+        if (cluster != null) {
+            for (String message : messages) {
+                cluster.publish(channel, username, message, sender, null);
+            }
+            return;
+        }
+        shards.execute(channel, () -> {
+            List<String> entries = new ArrayList<>(messages.size());
+            StringBuilder lines = new StringBuilder();
+            for (String message : messages) {
+                entries.add(username + " " + message);
+                if (!lines.isEmpty()) {
+                    lines.append('\n');
+                }
+                lines.append("RECEIVE ").append(username).append(' ').append(message);
+            }
+            ChannelHistory history = historyMessages.get(channel);
+            if (history != null) {
+                history.appendAll(entries);
+            }
+            //les lignes forment un seul élément de la file de chaque destinataire, écrit d'un coup
+            fanOut(channel, lines.toString(), sender);
+        });
+    }
+
+    /**
+     * Envoie un message aux clients de ce serveur dans le channel, sans l'ajouter à l'historique.
+     * Doit être appelé depuis le shard du channel.
+     * @param channel
+     * @param message
+     * @param sender le client qui ne reçoit pas le message, ou null
+     */
+    public static void fanOut(String channel, String message, ClientHandler sender) {
+        fanOut(channel, message, sender, null);
+    }
 
-        Map<String, ClientHandler> channelClients = clients.get(channel);
-        if (channelClients != null) {
-            for (ClientHandler client : channelClients.values()) {
+    /**
+     * Comme fanOut(channel, message, sender) ; les clients en mode trace reçoivent le message horodaté
+     * @param channel
+     * @param message
+     * @param sender
+     * @param trace horodatages du message, null hors du mode trace
+     */
+    public static void fanOut(String channel, String message, ClientHandler sender, MessageTrace trace) {
+        ServerEvents.BroadcastEvent event = new ServerEvents.BroadcastEvent();
+        event.begin();
+        int recipients = 0;
+        int failures = 0;
+        String stamped = null;
+        ChannelMembers members = clients.get(channel);
+        if (members != null) {
+            for (ClientHandler client : members) {
                 if (client != sender) {
-                    client.send(message);
+                    recipients++;
+                    if (trace != null && client.isTraced()) {
+                        if (stamped == null) {
+                            stamped = trace.stamp(message);
+                        }
+                        if (!client.send(stamped)) {
+                            failures++;
+                        }
+                    } else if (!client.send(message)) {
+                        failures++;
+                    }
                 }
             }
         }
+        if (trace != null && latencyReportMillis > 0) {
+            latencyStats.computeIfAbsent(channel, c -> new LatencyStats()).record(trace, clock.nanos());
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.channel = channel;
+            event.recipients = recipients;
+            event.failures = failures;
+            event.commit();
+        }
     }
 
     /**
-     * On ajoute à la map le client en fonction de son channel
+     * On ajoute à la map le client en fonction de son channel.
+     * L'ajout est fait par le shard du channel, on attend qu'il soit terminé.
      * @param client
      */
     public static void add(ClientHandler client) {
-        Map<String, ClientHandler> channelClients = clients.get(client.getChannel());
-        if (channelClients == null) {
-            System.err.println("[Server] ERROR: Channel '" + client.getChannel() + "' does not exist in clients map!");
-            System.err.println("[Server] Available channels in map: " + clients.keySet());
-            throw new IllegalStateException("Channel '" + client.getChannel() + "' does not exist in clients map");
-        }
-        channelClients.put(client.getUsername(), client);
+        add(client, null);
+    }
+
+    /**
+     * Comme add(client), puis exécute then sur le shard du channel, avant tout message suivant l'ajout
+     * @param client
+     * @param then null si rien à faire
+     */
+    public static void add(ClientHandler client, Runnable then) {
+        String channel = client.getChannel();
+        int userId = client.getUserId();
+        shards.run(channel, () -> {
+            ChannelMembers members = clients.get(channel);
+            if (members == null) {
+                System.err.println("[Server] ERROR: Channel '" + channel + "' does not exist in clients map!");
+                System.err.println("[Server] Available channels in map: " + clients.keySet());
+                throw new IllegalStateException("Channel '" + channel + "' does not exist in clients map");
+            }
+            members.add(userId, client);
+            presenceChanged(members, "+" + userIds.name(userId), client);
+            if (client.isPresenceSubscribed()) {
+                //le client change de channel : il reçoit la liste complète de son nouveau channel
+                client.send(presenceSnapshot(channel));
+            }
+            if (cluster != null && members.size() == 1) {
+                //premier membre sur ce noeud : les autres noeuds doivent nous relayer le channel
+                cluster.membershipChanged(channel, true);
+            }
+            if (then != null) {
+                then.run();
+            }
+        });
     }
 
     /**
@@ -113,13 +597,144 @@ public class Server {
             // Client not yet fully initialized or not in any channel
             return;
         }
+        int userId = client.getUserId();
         
-        Map<String, ClientHandler> channelClients = clients.get(channel);
-        if (channelClients != null) {
-            channelClients.remove(username);
+        shards.run(channel, () -> {
+            ChannelMembers members = clients.get(channel);
+            if (members == null || !members.remove(userId, client)) {
+                return;
+            }
+            presenceChanged(members, "-" + username, null);
+            if (cluster != null && members.isEmpty()) {
+                cluster.membershipChanged(channel, false);
+            }
+        });
+    }
+
+    /**
+     * Change le username d'un client dans la liste de son channel (NICK).
+     * Les abonnés reçoivent un seul changement "~ancien nouveau" au lieu d'un départ et d'une arrivée.
+     * @param client le client, qui a déjà son nouveau username
+     * @param previousUsername
+     * @param previousId identifiant de previousUsername, encore référencé par le client pendant l'appel
+     */
+    public static void rename(ClientHandler client, String previousUsername, int previousId) {
+        String channel = client.getChannel();
+        int userId = client.getUserId();
+        shards.run(channel, () -> {
+            ChannelMembers members = clients.get(channel);
+            if (members == null || !members.rename(previousId, userId, client)) {
+                return;
+            }
+            presenceChanged(members, "~" + previousUsername + " " + userIds.name(userId), null);
+        });
+    }
+
+    /**
+     * Envoie le changement "PRESENCE <version> <changement>" aux membres abonnés, avec la nouvelle version de la liste.
+     * Doit être appelé depuis le shard du channel.
+     * @param members les membres du channel, déjà modifiés
+     * @param change "+user", "-user" ou "~ancien nouveau"
+     * @param skipped le client qui ne reçoit pas le changement, ou null
+     */
+    private static void presenceChanged(ChannelMembers members, String change, ClientHandler skipped) {
+        String line = null;
+        for (ClientHandler client : members) {
+            if (client != skipped && client.isPresenceSubscribed()) {
+                if (line == null) {
+                    line = "PRESENCE " + members.getVersion() + " " + change;
+                }
+                client.send(line);
+            }
         }
     }
 
+    /**
+     * Retourne la liste complète des membres du channel avec sa version : "PRESENCE <version> = user1 user2 ...".
+     * Doit être appelé depuis le shard du channel : aucun changement ne peut arriver entre la liste et
+     * les changements envoyés ensuite.
+     * @param channel
+     * @return
+     */
+    public static String presenceSnapshot(String channel) {
+        ChannelMembers members = clients.get(channel);
+        if (members == null) {
+            return "PRESENCE 0 =";
+        }
+        String names = members.names(userIds);
+        return "PRESENCE " + members.getVersion() + " =" + (names.isEmpty() ? "" : " " + names);
+    }
+
+    /**
+     * Réserve un username pour le client dans l'index global.
+     * L'opération est atomique : deux clients ne peuvent pas obtenir le même username.
+     * @param username
+     * @param client
+     * @return true si le username est libre ou déjà à ce client
+     */
+    public static boolean claimUsername(String username, ClientHandler client) {
+        ClientHandler owner = users.putIfAbsent(username, client);
+        return owner == null || owner == client;
+    }
+
+    /**
+     * Libère un username de l'index global, seulement s'il appartient encore au client
+     * @param username
+     * @param client
+     */
+    public static void releaseUsername(String username, ClientHandler client) {
+        if (username != null) {
+            users.remove(username, client);
+        }
+    }
+
+    /**
+     * Passe un username d'un client à un autre, seulement s'il appartient encore au premier
+     * (reprise d'une session par une nouvelle connexion)
+     * @param username
+     * @param previous
+     * @param client
+     */
+    public static void replaceUsername(String username, ClientHandler previous, ClientHandler client) {
+        users.replace(username, previous, client);
+    }
+
+    /**
+     * Retourne le client qui utilise ce username, quel que soit son channel
+     * @param username
+     * @return le client, ou null si personne n'utilise ce username
+     */
+    public static ClientHandler getUser(String username) {
+        return users.get(username);
+    }
+
+    /**
+     * Retourne les shards qui exécutent le travail des channels
+     * @return
+     */
+    public static ChannelShards getShards() {
+        return shards;
+    }
+
+    /**
+     * Active les logs de chaque commande reçue et de chaque ligne envoyée, coupés par défaut :
+     * ils sont écrits par les shards pour chaque destinataire d'un message
+     * @param verbose
+     */
+    public static void setVerbose(boolean verbose) {
+        Server.verbose = verbose;
+    }
+
+    public static boolean isVerbose() {return verbose;}
+
+    /**
+     * Retourne le cluster dont ce serveur fait partie
+     * @return le cluster, ou null si le serveur est seul
+     */
+    public static Cluster getCluster() {
+        return cluster;
+    }
+
     /**
      * Retourne la liste de tous les channels
      * @return
@@ -127,24 +742,145 @@ public class Server {
     public static List<String> getListChannels() {return listChannels;}
 
     /**
-     * Retourne un set de tous les usernames du channel
-     * @param channel
+     * Retourne la réponse à CHANLIST, "CHANLIST channel1 channel2 ..."
      * @return
      */
-    public static Set<String> getUsernames(String channel) {
-        Map<String, ClientHandler> channelClients = clients.get(channel);
-        if (channelClients != null) {
-            return channelClients.keySet();
+    public static String getChanList() {return chanList;}
+
+    /**
+     * Retourne les usernames du channel séparés par des espaces, lus par le shard du channel.
+     * La String n'est reconstruite que si les membres ont changé.
+     * Ne doit pas être appelé depuis un shard.
+     * @param channel
+     * @return "" si le channel n'a pas de membre sur ce serveur
+     */
+    public static String getMemberNames(String channel) {
+        if (!clients.containsKey(channel)) {
+            return "";
         }
-        return java.util.Collections.emptySet();
+        return shards.call(channel, () -> clients.get(channel).names(userIds));
     }
 
+    /**
+     * Indique si le channel a des membres sur ce serveur, lu par le shard du channel.
+     * Ne doit pas être appelé depuis un shard.
+     * @param channel
+     * @return
+     */
+    public static boolean hasMembers(String channel) {
+        return clients.containsKey(channel) && shards.call(channel, () -> !clients.get(channel).isEmpty());
+    }
+
+    /**
+     * Retourne la table des identifiants de usernames
+     * @return
+     */
+    public static Symbols getUserIds() {return userIds;}
+
+    /**
+     * Retourne la table des identifiants de noms de channel
+     * @return
+     */
+    public static Symbols getChannelIds() {return channelIds;}
+
     /**
      * Retourne la liste de tous les messages enregistré dans le server
      * @param channel
      * @return
      */
     public static List<String> getHistoryMessage(String channel) {
+        return historyMessages.get(channel).since(0);
+    }
+
+    /**
+     * Retourne les sessions des clients, utilisées pour reprendre une connexion perdue
+     * @return
+     */
+    public static SessionRegistry getSessions() {
+        return sessions;
+    }
+
+    /**
+     * Retourne la roue de timers partagée par toutes les connexions
+     * @return
+     */
+    public static TimerWheel getTimers() {
+        return timers;
+    }
+
+    /**
+     * Retourne l'enregistrement du trafic, null si --capture n'est pas utilisé
+     * @return
+     */
+    public static TrafficCapture getCapture() {
+        return capture;
+    }
+
+    /**
+     * Retourne l'horloge du serveur, celle du système sauf en simulation
+     * @return
+     */
+    public static Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * Un client active ou désactive le mode trace
+     * @param enabled
+     */
+    public static void setTracing(boolean enabled) {
+        if (enabled) {
+            tracedClients.incrementAndGet();
+        } else {
+            tracedClients.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return true si les messages doivent être horodatés : un client est en mode trace ou le rapport de latence est actif
+     */
+    public static boolean isTracing() {
+        return tracedClients.get() > 0 || latencyReportMillis > 0;
+    }
+
+    /**
+     * Convertit un temps de l'horloge monotone en heure des horodatages de trace
+     * @param nanos
+     * @return des microsecondes depuis l'epoch
+     */
+    public static long epochMicros(long nanos) {
+        return epochMicrosBase + (nanos - nanosBase) / 1000;
+    }
+
+    /**
+     * Retourne le regroupement des événements JOINED/QUIT
+     * @return
+     */
+    public static PresenceBatcher getPresence() {
+        return presence;
+    }
+
+    public static long getIdleTimeoutMillis() {return idleTimeoutMillis;}
+    public static long getPingTimeoutMillis() {return pingTimeoutMillis;}
+
+    /**
+     * Taille maximale d'une ligne reçue d'un client, en octets
+     * @return
+     */
+    public static int getMaxFrameBytes() {return maxFrameBytes;}
+
+    /**
+     * Taille minimale d'un lot de lignes envoyé compressé, en octets
+     * @return
+     */
+    public static int getCompressMinBytes() {return compressMinBytes;}
+
+    /**
+     * Retourne l'historique du channel avec ses numéros de séquence
+     * @param channel
+     * @return
+     */
+    public static ChannelHistory getHistory(String channel) {
         return historyMessages.get(channel);
     }
 }
@@ -0,0 +1,123 @@
+package ch.heigvd.dai.server;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.text.ParseException;
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+
+/**
+ * Événements JDK Flight Recorder du serveur : connexions, commandes, broadcasts et écritures de l'historique.
+ * Ils sont désactivés par défaut : un événement désactivé n'est jamais rempli ni écrit, et le JIT
+ * supprime presque tout son coût. --jfr démarre un enregistrement qui les active, avec les événements
+ * du JDK du profil "profile" (threads virtuels épinglés, allocations, GC...).
+ * On peut aussi les activer dans un fichier .jfc, ils s'appellent chch.Connection, chch.Command,
+ * chch.Broadcast et chch.HistoryAppend.
+ */
+public final class ServerEvents {
+    private ServerEvents() {
+    }
+
+    @Name("chch.Connection")
+    @Label("Connection")
+    @Category({"chch", "Server"})
+    @Description("Connection of a client, from accept to close")
+    @Enabled(false)
+    @StackTrace(false)
+    static class ConnectionEvent extends Event {
+        @Label("Remote Address")
+        String remoteAddress;
+
+        @Label("Username")
+        String username;
+
+        @Label("Commands")
+        long commands;
+    }
+
+    @Name("chch.Command")
+    @Label("Command")
+    @Category({"chch", "Server"})
+    @Description("Command received from a client and dispatched by its handler")
+    @Enabled(false)
+    @StackTrace(false)
+    static class CommandEvent extends Event {
+        @Label("Verb")
+        String verb;
+
+        @Label("Channel")
+        String channel;
+
+        @Label("Username")
+        String username;
+    }
+
+    @Name("chch.Broadcast")
+    @Label("Broadcast")
+    @Category({"chch", "Server"})
+    @Description("Message queued for the members of a channel")
+    @Enabled(false)
+    @StackTrace(false)
+    static class BroadcastEvent extends Event {
+        @Label("Channel")
+        String channel;
+
+        @Label("Recipients")
+        int recipients;
+
+        @Label("Failures")
+        @Description("Recipients whose outbox was full, their connection is closed")
+        int failures;
+    }
+
+    @Name("chch.HistoryAppend")
+    @Label("History Append")
+    @Category({"chch", "Server"})
+    @Description("Message written to the history of a channel")
+    @Enabled(false)
+    @StackTrace(false)
+    static class HistoryAppendEvent extends Event {
+        @Label("File")
+        String file;
+
+        @Label("Sequence")
+        int sequence;
+
+        @Label("Size")
+        @DataAmount
+        int bytes;
+    }
+
+    /**
+     * Démarre un enregistrement avec les événements du serveur, écrit dans le fichier à l'arrêt du serveur
+     * @param file
+     * @return l'enregistrement démarré
+     * @throws IOException
+     */
+    public static Recording startRecording(Path file) throws IOException {
+        Recording recording;
+        try {
+            recording = new Recording(Configuration.getConfiguration("profile"));
+        } catch (ParseException e) {
+            throw new IOException("JFR configuration \"profile\" unreadable", e);
+        }
+        recording.setName("chch");
+        recording.enable(ConnectionEvent.class);
+        recording.enable(CommandEvent.class);
+        recording.enable(BroadcastEvent.class);
+        recording.enable(HistoryAppendEvent.class);
+        recording.setDestination(file);
+        recording.setDumpOnExit(true);
+        recording.start();
+        System.out.println("[Server] JFR recording to " + file + ", written when the server stops");
+        return recording;
+    }
+}
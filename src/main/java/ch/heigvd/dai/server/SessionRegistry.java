@@ -0,0 +1,272 @@
+package ch.heigvd.dai.server;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.ToIntFunction;
+
+/**
+ * Sessions des clients qui ont rejoint un channel, identifiées par un token de reprise.
+ * Quand la connexion d'un client tombe sans QUIT, sa session est gardée pendant la fenêtre
+ * de reprise : son username reste réservé et le numéro de séquence du channel au moment
+ * de la déconnexion est noté, pour ne lui renvoyer que les messages manqués avec RESUME.
+ * Chaque changement est écrit dans le journal de l'état du serveur (voir StateStore),
+ * les sessions survivent donc à un redémarrage.
+ */
+public class SessionRegistry {
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private final long retentionMillis;
+    private final StateStore store;
+    private final Clock clock;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    // username -> token de la session déconnectée qui le réserve
+    private final Map<String, String> reservedUsernames = new ConcurrentHashMap<>();
+    // la fenêtre est la même pour toutes les sessions : l'ordre de déconnexion est l'ordre d'expiration
+    private final Queue<Session> detached = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Session d'un client. Les champs sont protégés par le verrou de la session.
+     */
+    public static class Session {
+        private final String token;
+        private String channel;
+        private String username;
+        private int resumeFrom;
+        private long expiresAt;
+        // connexion qui utilise la session, null quand elle est déconnectée
+        private Object owner;
+
+        private Session(String token, String channel, String username) {
+            this.token = token;
+            this.channel = channel;
+            this.username = username;
+        }
+
+        public String getToken() {return token;}
+        public synchronized String getChannel() {return channel;}
+        public synchronized String getUsername() {return username;}
+        public synchronized int getResumeFrom() {return resumeFrom;}
+        private synchronized boolean isDetached() {return expiresAt != 0;}
+
+        private synchronized StateStore.SessionState state() {
+            return new StateStore.SessionState(token, channel, username, resumeFrom, isDetached());
+        }
+    }
+
+    /**
+     * @param retentionMillis durée pendant laquelle une session déconnectée peut être reprise
+     */
+    public SessionRegistry(long retentionMillis) {
+        this(retentionMillis, null, Clock.SYSTEM);
+    }
+
+    /**
+     * @param retentionMillis durée pendant laquelle une session déconnectée peut être reprise
+     * @param store journal des changements, null pour ne rien sauvegarder
+     * @param clock horloge de la fenêtre de reprise
+     */
+    public SessionRegistry(long retentionMillis, StateStore store, Clock clock) {
+        this.retentionMillis = retentionMillis;
+        this.store = store;
+        this.clock = clock;
+    }
+
+    /**
+     * Reprend les sessions sauvegardées au redémarrage du serveur. Elles sont toutes déconnectées
+     * et peuvent être reprises pendant une fenêtre complète. Les clients qui étaient connectés
+     * reprennent après le dernier message du channel : ils l'avaient déjà reçu.
+     * @param saved
+     * @param heads numéro de séquence actuel d'un channel, -1 si le channel n'existe plus
+     */
+    public void restore(List<StateStore.SessionState> saved, ToIntFunction<String> heads) {
+        long expiresAt = clock.millis() + retentionMillis;
+        for (StateStore.SessionState state : saved) {
+            int head = heads.applyAsInt(state.getChannel());
+            if (head < 0) {
+                continue;
+            }
+            Session session = new Session(state.getToken(), state.getChannel(), state.getUsername());
+            session.resumeFrom = state.isDetached() ? Math.min(state.getResumeFrom(), head) : head;
+            session.expiresAt = expiresAt;
+            sessions.put(session.token, session);
+            reservedUsernames.put(session.username, session.token);
+            detached.add(session);
+        }
+    }
+
+    /**
+     * Retourne l'état de toutes les sessions, pour le snapshot du serveur
+     * @return
+     */
+    public List<StateStore.SessionState> snapshot() {
+        purgeExpired();
+        List<StateStore.SessionState> states = new ArrayList<>(sessions.size());
+        for (Session session : sessions.values()) {
+            states.add(session.state());
+        }
+        return states;
+    }
+
+    /**
+     * Écrit l'état de la session dans le journal, appelé avec le verrou de la session
+     * pour que le journal garde l'ordre des changements
+     */
+    private void journal(Session session) {
+        if (store != null) {
+            store.logSession(session.state());
+        }
+    }
+
+    /**
+     * Crée une session pour un client qui vient de rejoindre un channel
+     * @param channel
+     * @param username
+     * @param owner connexion du client
+     * @return la session, dont le token est envoyé au client
+     */
+    public Session open(String channel, String username, Object owner) {
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        Session session = new Session(Base64.getUrlEncoder().withoutPadding().encodeToString(bytes), channel, username);
+        synchronized (session) {
+            session.owner = owner;
+            sessions.put(session.token, session);
+            journal(session);
+        }
+        return session;
+    }
+
+    /**
+     * Met à jour le username d'une session active (NICK)
+     * @param session
+     * @param username
+     */
+    public void rename(Session session, String username) {
+        synchronized (session) {
+            session.username = username;
+            journal(session);
+        }
+    }
+
+    /**
+     * Ferme définitivement une session (QUIT ou changement de channel).
+     * Rien n'est fait si la session a été reprise par une autre connexion.
+     * @param session
+     * @param owner connexion du client
+     */
+    public void close(Session session, Object owner) {
+        if (session == null) {
+            return;
+        }
+        synchronized (session) {
+            if (session.owner != owner) {
+                return;
+            }
+            sessions.remove(session.token);
+            reservedUsernames.remove(session.username, session.token);
+            if (store != null) {
+                store.logClose(session.token);
+            }
+        }
+    }
+
+    /**
+     * La connexion du client est tombée : on garde sa session pendant la fenêtre de reprise.
+     * Rien n'est fait si la session a déjà été reprise par une autre connexion.
+     * @param session
+     * @param owner connexion du client
+     * @param head numéro de séquence du dernier message du channel déjà envoyé au client
+     */
+    public void detach(Session session, Object owner, int head) {
+        purgeExpired();
+        if (session == null || !sessions.containsKey(session.token)) {
+            return;
+        }
+        synchronized (session) {
+            if (session.owner != owner) {
+                return;
+            }
+            session.owner = null;
+            session.resumeFrom = head;
+            session.expiresAt = clock.millis() + retentionMillis;
+            reservedUsernames.put(session.username, session.token);
+            journal(session);
+        }
+        detached.add(session);
+    }
+
+    /**
+     * Reprend une session déconnectée qui n'a pas expiré. Une session encore attachée est aussi reprise :
+     * après une coupure réseau, l'ancienne connexion peut rester à moitié ouverte, et le token suffit
+     * à prouver que c'est le même client. L'ancienne connexion doit alors être fermée par l'appelant.
+     * @param token
+     * @param owner nouvelle connexion du client
+     * @return la session, ou null si le token est inconnu ou expiré
+     */
+    public Session resume(String token, Object owner) {
+        purgeExpired();
+        Session session = sessions.get(token);
+        if (session == null) {
+            return null;
+        }
+        synchronized (session) {
+            if (session.isDetached() && session.expiresAt < clock.millis()) {
+                return null;
+            }
+            session.owner = owner;
+            session.expiresAt = 0;
+            reservedUsernames.remove(session.username, session.token);
+            journal(session);
+        }
+        return session;
+    }
+
+    /**
+     * Indique si un username est réservé par une session en attente de reprise.
+     * Les usernames sont uniques sur tout le serveur : la réservation vaut pour tous les channels.
+     * Une réservation dont la fenêtre de reprise est passée ne compte plus, même si elle n'a pas encore été purgée.
+     * @param username
+     * @return
+     */
+    public boolean isReserved(String username) {
+        purgeExpired();
+        String token = reservedUsernames.get(username);
+        Session session = token != null ? sessions.get(token) : null;
+        if (session == null) {
+            return false;
+        }
+        synchronized (session) {
+            return session.isDetached() && session.expiresAt >= clock.millis();
+        }
+    }
+
+    /**
+     * Supprime les sessions déconnectées dont la fenêtre de reprise est passée.
+     * Les sessions sont dans l'ordre d'expiration, on s'arrête à la première encore valable.
+     */
+    private void purgeExpired() {
+        long now = clock.millis();
+        Session session;
+        while ((session = detached.peek()) != null) {
+            synchronized (session) {
+                if (session.isDetached() && session.expiresAt >= now) {
+                    return;
+                }
+                if (session.isDetached()) {
+                    // expirée : plus de reprise possible
+                    sessions.remove(session.token);
+                    reservedUsernames.remove(session.username, session.token);
+                    if (store != null) {
+                        store.logClose(session.token);
+                    }
+                }
+            }
+            detached.remove(session);
+        }
+    }
+}
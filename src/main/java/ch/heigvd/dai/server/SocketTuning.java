@@ -0,0 +1,112 @@
+package ch.heigvd.dai.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Réglages réseau du serveur : nombre de threads d'acceptation, backlog et options des sockets.
+ * Avec SO_REUSEPORT (Linux), chaque acceptor a sa propre socket d'écoute sur le même port et le
+ * noyau répartit les nouvelles connexions entre elles : une vague de reconnexions n'est plus limitée
+ * par un seul accept(). Sans SO_REUSEPORT, les acceptors se partagent une seule socket d'écoute.
+ */
+public class SocketTuning {
+    private final int acceptors;
+    private final int backlog;
+    private final boolean tcpNoDelay;
+    private final boolean keepAlive;
+    private final int sendBufferBytes;
+    private final int receiveBufferBytes;
+
+    /**
+     * @param acceptors nombre de threads qui acceptent les connexions
+     * @param backlog nombre de connexions en attente d'accept() gardées par le noyau
+     * @param tcpNoDelay désactive l'algorithme de Nagle
+     * @param keepAlive active SO_KEEPALIVE
+     * @param sendBufferBytes taille de SO_SNDBUF, 0 pour la valeur du système
+     * @param receiveBufferBytes taille de SO_RCVBUF, 0 pour la valeur du système
+     */
+    public SocketTuning(int acceptors, int backlog, boolean tcpNoDelay, boolean keepAlive,
+                        int sendBufferBytes, int receiveBufferBytes) {
+        this.acceptors = Math.max(1, acceptors);
+        this.backlog = backlog;
+        this.tcpNoDelay = tcpNoDelay;
+        this.keepAlive = keepAlive;
+        this.sendBufferBytes = sendBufferBytes;
+        this.receiveBufferBytes = receiveBufferBytes;
+    }
+
+    /**
+     * Réglages par défaut : un acceptor, backlog de 50 comme ServerSocket, options du système
+     * @return
+     */
+    public static SocketTuning defaults() {
+        return new SocketTuning(1, 50, false, false, 0, 0);
+    }
+
+    public int getAcceptors() {return acceptors;}
+
+    /**
+     * Ouvre les sockets d'écoute, une par acceptor si SO_REUSEPORT est disponible, sinon une seule
+     * @param port
+     * @return
+     * @throws IOException
+     */
+    public List<ServerSocket> bind(int port) throws IOException {
+        List<ServerSocket> sockets = new ArrayList<>();
+        boolean reusePort = false;
+        if (acceptors > 1) {
+            try (ServerSocket probe = new ServerSocket()) {
+                reusePort = probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            }
+        }
+        int count = reusePort ? acceptors : 1;
+        try {
+            for (int i = 0; i < count; i++) {
+                ServerSocket socket = new ServerSocket();
+                sockets.add(socket);
+                if (reusePort) {
+                    socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                socket.setReuseAddress(true);
+                if (receiveBufferBytes > 0) {
+                    //doit être réglé avant bind() pour que la fenêtre TCP puisse dépasser 64 Ko
+                    socket.setReceiveBufferSize(receiveBufferBytes);
+                }
+                socket.bind(new InetSocketAddress(port), backlog);
+            }
+        } catch (IOException e) {
+            for (ServerSocket socket : sockets) {
+                socket.close();
+            }
+            throw e;
+        }
+        return sockets;
+    }
+
+    /**
+     * Applique les options à une connexion acceptée
+     * @param socket
+     * @throws IOException
+     */
+    public void apply(Socket socket) throws IOException {
+        socket.setTcpNoDelay(tcpNoDelay);
+        socket.setKeepAlive(keepAlive);
+        if (sendBufferBytes > 0) {
+            socket.setSendBufferSize(sendBufferBytes);
+        }
+        if (receiveBufferBytes > 0) {
+            socket.setReceiveBufferSize(receiveBufferBytes);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "acceptors=" + acceptors + " backlog=" + backlog + " tcpNoDelay=" + tcpNoDelay
+                + " keepAlive=" + keepAlive + " sndbuf=" + sendBufferBytes + " rcvbuf=" + receiveBufferBytes;
+    }
+}
@@ -0,0 +1,255 @@
+package ch.heigvd.dai.server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * État du serveur sauvegardé dans data/state/ pour redémarrer vite, sans tout relire.
+ * snapshot.bin est une photo compacte de l'état : pour chaque channel son numéro de séquence, le dernier message
+ * archivé et la position de chaque message dans son fichier d'historique, et les sessions de reprise.
+ * wal.log est le journal des changements de sessions depuis le dernier snapshot, une ligne par changement.
+ * Les messages n'ont pas besoin de journal : le fichier d'historique d'un channel en est déjà un,
+ * au redémarrage on ne relit que la partie écrite après le snapshot (voir ChannelHistory).
+ *
+ * Une ligne du journal contient l'état complet de la session ("S <token> <resumeFrom> <0|1> <channel> <username>")
+ * ou sa fermeture ("C <token>"), rejouer une ligne déjà prise en compte par le snapshot ne change donc rien.
+ */
+public class StateStore {
+    private static final int MAGIC = 0x43485354; // "CHST"
+    // la version 1 n'avait pas d'archive : le fichier d'historique commençait au message 1
+    private static final int VERSION = 2;
+    private final Path directory;
+    private final Path snapshotFile;
+    private final Path walFile;
+    // journal mis de côté pendant l'écriture d'un snapshot, supprimé une fois le snapshot écrit
+    private final Path oldWalFile;
+    private final Object snapshotLock = new Object();
+    private BufferedWriter wal;
+
+    /**
+     * Session telle qu'elle est sauvegardée
+     */
+    public static class SessionState {
+        private final String token;
+        private final String channel;
+        private final String username;
+        private final int resumeFrom;
+        private final boolean detached;
+
+        public SessionState(String token, String channel, String username, int resumeFrom, boolean detached) {
+            this.token = token;
+            this.channel = channel;
+            this.username = username;
+            this.resumeFrom = resumeFrom;
+            this.detached = detached;
+        }
+
+        public String getToken() {return token;}
+        public String getChannel() {return channel;}
+        public String getUsername() {return username;}
+        public int getResumeFrom() {return resumeFrom;}
+        public boolean isDetached() {return detached;}
+    }
+
+    /**
+     * État relu au démarrage : le snapshot avec le journal rejoué par-dessus
+     */
+    public static class Recovered {
+        private final Map<String, ChannelHistory.Snapshot> channels = new HashMap<>();
+        private final Map<String, SessionState> sessions = new LinkedHashMap<>();
+
+        public Map<String, ChannelHistory.Snapshot> getChannels() {return channels;}
+        public List<SessionState> getSessions() {return new ArrayList<>(sessions.values());}
+    }
+
+    /**
+     * @param directory dossier de l'état, un sous-dossier de data/ n'est pas pris pour un channel
+     */
+    public StateStore(Path directory) {
+        this.directory = directory;
+        this.snapshotFile = directory.resolve("snapshot.bin");
+        this.walFile = directory.resolve("wal.log");
+        this.oldWalFile = directory.resolve("wal.old");
+    }
+
+    /**
+     * Relit le dernier snapshot et rejoue le journal, puis ouvre le journal pour les prochains changements.
+     * Un snapshot illisible est ignoré : les historiques sont alors relus en entier.
+     * @return
+     * @throws IOException
+     */
+    public synchronized Recovered load() throws IOException {
+        Recovered recovered = new Recovered();
+        Files.createDirectories(directory);
+        if (Files.exists(snapshotFile)) {
+            try {
+                readSnapshot(recovered);
+            } catch (IOException e) {
+                System.out.println("[Server] Ignoring unreadable snapshot " + snapshotFile + ": " + e);
+                recovered.channels.clear();
+                recovered.sessions.clear();
+            }
+        }
+        //wal.old existe si le serveur s'est arrêté pendant l'écriture d'un snapshot
+        replay(oldWalFile, recovered);
+        replay(walFile, recovered);
+        wal = Files.newBufferedWriter(walFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        return recovered;
+    }
+
+    /**
+     * Ajoute l'état d'une session au journal
+     * @param session
+     */
+    public void logSession(SessionState session) {
+        log("S " + session.token + " " + session.resumeFrom + " " + (session.detached ? 1 : 0)
+                + " " + session.channel + " " + session.username);
+    }
+
+    /**
+     * Ajoute la fermeture d'une session au journal
+     * @param token
+     */
+    public void logClose(String token) {
+        log("C " + token);
+    }
+
+    private synchronized void log(String record) {
+        if (wal == null) {
+            return;
+        }
+        try {
+            wal.write(record);
+            wal.newLine();
+            wal.flush();
+        } catch (IOException e) {
+            System.out.println("[Server] Failed to write " + walFile + ": " + e);
+        }
+    }
+
+    /**
+     * Écrit un nouveau snapshot et vide le journal.
+     * Le journal est mis de côté avant de lire l'état : un changement écrit dans l'ancien journal a eu lieu
+     * avant la lecture et est dans le snapshot, un changement plus récent va dans le nouveau journal.
+     * @param channels lit les positions des channels
+     * @param sessions lit les sessions
+     * @throws IOException
+     */
+    public void snapshot(Supplier<Map<String, ChannelHistory.Snapshot>> channels,
+                         Supplier<List<SessionState>> sessions) throws IOException {
+        synchronized (snapshotLock) {
+            rotate();
+            Map<String, ChannelHistory.Snapshot> channelState = channels.get();
+            List<SessionState> sessionState = sessions.get();
+
+            Path tmp = directory.resolve("snapshot.bin.tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(channelState.size());
+                for (Map.Entry<String, ChannelHistory.Snapshot> channel : channelState.entrySet()) {
+                    ChannelHistory.Snapshot snapshot = channel.getValue();
+                    out.writeUTF(channel.getKey());
+                    out.writeInt(snapshot.getHead());
+                    out.writeInt(snapshot.getBase());
+                    out.writeLong(snapshot.getLength());
+                    long previous = 0;
+                    for (long offset : snapshot.getOffsets()) {
+                        //une ligne fait moins de 2 Go, l'écart entre deux positions tient dans un int
+                        SearchIndex.writeVarInt(out, (int) (offset - previous));
+                        previous = offset;
+                    }
+                }
+                out.writeInt(sessionState.size());
+                for (SessionState session : sessionState) {
+                    out.writeUTF(session.token);
+                    out.writeUTF(session.channel);
+                    out.writeUTF(session.username);
+                    out.writeInt(session.resumeFrom);
+                    out.writeBoolean(session.detached);
+                }
+            }
+            Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(oldWalFile);
+        }
+    }
+
+    /**
+     * Met le journal courant de côté et en ouvre un vide.
+     * Si un journal est déjà de côté (le snapshot précédent a échoué), le courant y est ajouté.
+     */
+    private synchronized void rotate() throws IOException {
+        if (wal != null) {
+            wal.close();
+        }
+        if (Files.exists(oldWalFile)) {
+            Files.write(oldWalFile, Files.readAllBytes(walFile), StandardOpenOption.APPEND);
+            Files.delete(walFile);
+        } else if (Files.exists(walFile)) {
+            Files.move(walFile, oldWalFile, StandardCopyOption.ATOMIC_MOVE);
+        }
+        wal = Files.newBufferedWriter(walFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    private void readSnapshot(Recovered recovered) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotFile)))) {
+            int version = in.readInt() == MAGIC ? in.readInt() : -1;
+            if (version != 1 && version != VERSION) {
+                throw new IOException("not a snapshot");
+            }
+            int channelCount = in.readInt();
+            for (int i = 0; i < channelCount; i++) {
+                String channel = in.readUTF();
+                int head = in.readInt();
+                int base = version == 1 ? 0 : in.readInt();
+                long length = in.readLong();
+                long[] offsets = new long[head - base];
+                long offset = 0;
+                for (int j = 0; j < offsets.length; j++) {
+                    offset += SearchIndex.readVarInt(in);
+                    offsets[j] = offset;
+                }
+                recovered.channels.put(channel, new ChannelHistory.Snapshot(base, head, length, offsets));
+            }
+            int sessionCount = in.readInt();
+            for (int i = 0; i < sessionCount; i++) {
+                SessionState session = new SessionState(in.readUTF(), in.readUTF(), in.readUTF(), in.readInt(), in.readBoolean());
+                recovered.sessions.put(session.token, session);
+            }
+        }
+    }
+
+    /**
+     * Rejoue un journal. Une ligne incomplète (arrêt pendant l'écriture) est ignorée.
+     */
+    private static void replay(Path file, Recovered recovered) throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        String content = Files.readString(file, StandardCharsets.UTF_8);
+        String[] lines = content.split("\n", -1);
+        //la dernière ligne est vide si le journal finit par '\n', sinon elle est incomplète
+        for (int i = 0; i < lines.length - 1; i++) {
+            String[] record = lines[i].split(" ");
+            if (record.length == 2 && record[0].equals("C")) {
+                recovered.sessions.remove(record[1]);
+            } else if (record.length == 6 && record[0].equals("S")) {
+                try {
+                    recovered.sessions.put(record[1], new SessionState(record[1], record[4], record[5],
+                            Integer.parseInt(record[2]), record[3].equals("1")));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package ch.heigvd.dai.server;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Table de symboles : donne à chaque nom (username, channel) un identifiant int compact.
+ * Les structures qui gardent beaucoup de noms (membres des channels, messages récents de l'historique)
+ * gardent l'identifiant au lieu d'une copie du nom, et le nom est retrouvé en O(1) dans un tableau.
+ * intern() rend l'unique instance du nom : les ClientHandler d'un même channel partagent la même String.
+ *
+ * Une table s'utilise de l'une de deux façons :
+ * - avec id() et intern(), les noms ne sont jamais libérés (les channels, dont le nombre est borné) ;
+ * - avec acquire() et release(), un nom qui n'est plus référencé par personne est libéré et son
+ *   identifiant réutilisé (les usernames, qui changent sans cesse avec NICK). La table ne garde
+ *   alors que les noms des clients connectés et des messages récents de l'historique.
+ *
+ * Thread-safe : la lecture d'un identifiant connu ne prend pas de verrou.
+ */
+public class Symbols {
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[64];
+    // nombre d'acquire() sans release() de chaque identifiant
+    private int[] references = new int[64];
+    // identifiants libérés, réutilisés avant d'en créer de nouveaux
+    private int[] free = new int[16];
+    private int freeCount;
+    private int count;
+
+    /**
+     * Retourne l'identifiant d'un nom, en lui en donnant un s'il n'en a pas encore.
+     * L'identifiant n'est jamais libéré.
+     * @param name
+     * @return un identifiant entre 0 et le nombre de noms connus
+     */
+    public int id(String name) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            return lookup(name);
+        }
+    }
+
+    /**
+     * Prend une référence sur un nom, en lui donnant un identifiant s'il n'en a pas encore.
+     * L'identifiant reste à ce nom jusqu'à ce que chaque acquire() ait son release().
+     * @param name
+     * @return l'identifiant du nom
+     */
+    public synchronized int acquire(String name) {
+        int id = lookup(name);
+        references[id]++;
+        return id;
+    }
+
+    /**
+     * Prend une référence de plus sur un identifiant déjà pris
+     * @param id -1 pour ne rien faire
+     */
+    public synchronized void retain(int id) {
+        if (id >= 0) {
+            references[id]++;
+        }
+    }
+
+    /**
+     * Rend une référence prise avec acquire() ou retain() ; l'identifiant est libéré à la dernière
+     * @param id -1 pour ne rien faire
+     */
+    public synchronized void release(int id) {
+        if (id < 0 || --references[id] > 0) {
+            return;
+        }
+        ids.remove(names[id]);
+        names[id] = null;
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, freeCount * 2);
+        }
+        free[freeCount++] = id;
+    }
+
+    /**
+     * Identifiant d'un nom, créé sans référence s'il n'existe pas. Appelé avec le verrou.
+     */
+    private int lookup(String name) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        int created;
+        String[] table = names;
+        if (freeCount > 0) {
+            created = free[--freeCount];
+        } else {
+            if (count == table.length) {
+                table = Arrays.copyOf(table, count * 2);
+                references = Arrays.copyOf(references, count * 2);
+            }
+            created = count++;
+        }
+        table[created] = name;
+        references[created] = 0;
+        //le nom est publié dans le tableau avant l'identifiant : name(id) le trouve toujours
+        names = table;
+        ids.put(name, created);
+        return created;
+    }
+
+    /**
+     * Retourne l'identifiant d'un nom sans l'ajouter à la table
+     * @param name
+     * @return l'identifiant, ou -1 si le nom n'est pas dans la table
+     */
+    public int find(String name) {
+        Integer id = ids.get(name);
+        return id != null ? id : -1;
+    }
+
+    /**
+     * Retourne le nom d'un identifiant
+     * @param id un identifiant donné par id() ou acquire(), encore référencé
+     * @return
+     */
+    public String name(int id) {
+        return names[id];
+    }
+
+    /**
+     * Nombre de noms dans la table
+     * @return
+     */
+    public synchronized int size() {
+        return count - freeCount;
+    }
+
+    /**
+     * Retourne l'unique instance d'un nom, qui n'est jamais libérée
+     * @param name
+     * @return le nom tel qu'il est dans la table, null si name est null
+     */
+    public String intern(String name) {
+        return name == null ? null : name(id(name));
+    }
+}
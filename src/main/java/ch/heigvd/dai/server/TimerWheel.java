@@ -0,0 +1,173 @@
+package ch.heigvd.dai.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Timer à roue hachée (hashed timing wheel) : un seul thread gère tous les timeouts du serveur.
+ * La roue est découpée en slots d'une durée d'un tick ; un timeout est rangé dans le slot de
+ * son échéance avec le nombre de tours restants. Ajouter ou annuler un timeout est en O(1),
+ * ce qui permet de suivre des centaines de milliers de connexions sans une tâche planifiée chacune.
+ * Les tâches expirées sont exécutées sur un thread virtuel, jamais sur le thread de la roue.
+ */
+public class TimerWheel {
+    private final long tickNanos;
+    private final Clock clock;
+    private final List<List<Timeout>> wheel;
+    private final int mask;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final long startNanos;
+    private volatile long tick;
+    // tâches expirées en cours d'exécution, pour awaitIdle()
+    private final AtomicInteger runningTasks = new AtomicInteger();
+    private volatile boolean running = true;
+
+    /**
+     * Timeout planifié, peut être annulé tant qu'il n'a pas expiré
+     */
+    public static class Timeout {
+        private final Runnable task;
+        private final long deadlineNanos;
+        private long rounds;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadlineNanos) {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    /**
+     * @param tickMillis précision de la roue
+     * @param slots nombre de slots, arrondi à la puissance de 2 supérieure
+     */
+    public TimerWheel(long tickMillis, int slots) {
+        this(tickMillis, slots, Clock.SYSTEM);
+    }
+
+    /**
+     * @param tickMillis précision de la roue
+     * @param slots nombre de slots, arrondi à la puissance de 2 supérieure
+     * @param clock horloge qui fait avancer la roue
+     */
+    public TimerWheel(long tickMillis, int slots, Clock clock) {
+        this.clock = clock;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int size = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+        this.wheel = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            wheel.add(new ArrayList<>());
+        }
+        this.mask = size - 1;
+        this.startNanos = clock.nanos();
+
+        Thread ticker = new Thread(this::run, "chch-timer-wheel");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    /**
+     * Planifie une tâche
+     * @param task
+     * @param delayMillis
+     * @return le timeout, pour pouvoir l'annuler
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        Timeout timeout = new Timeout(task, clock.nanos() + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+        added.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Arrête la roue, les timeouts en attente ne sont pas exécutés
+     */
+    public void stop() {
+        running = false;
+    }
+
+    /**
+     * Attend que la roue ait rattrapé l'horloge et que les tâches expirées soient terminées.
+     * Utile avec une ManualClock : après advance(), tout ce qui devait arriver est arrivé.
+     * @param timeoutMillis temps réel maximum d'attente
+     * @return false si le délai est dépassé
+     * @throws InterruptedException
+     */
+    public boolean awaitIdle(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (startNanos + tick * tickNanos <= clock.nanos() || runningTasks.get() > 0) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    /**
+     * Boucle du thread de la roue : avance d'un slot à chaque tick
+     */
+    private void run() {
+        while (running) {
+            try {
+                //le slot d'un tick est traité dès que son heure est atteinte, jamais avant
+                clock.sleepUntil(startNanos + tick * tickNanos);
+            } catch (InterruptedException e) {
+                return;
+            }
+            transferAdded();
+            expire(wheel.get((int) (tick & mask)));
+            tick++;
+        }
+    }
+
+    /**
+     * Range les nouveaux timeouts dans leur slot, seul le thread de la roue touche aux slots
+     */
+    private void transferAdded() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            long ticks = Math.max(tick, (timeout.deadlineNanos - startNanos + tickNanos - 1) / tickNanos);
+            timeout.rounds = (ticks - tick) / wheel.size();
+            wheel.get((int) (ticks & mask)).add(timeout);
+        }
+    }
+
+    /**
+     * Exécute les timeouts du slot arrivés à échéance et décompte un tour pour les autres
+     * @param slot
+     */
+    private void expire(List<Timeout> slot) {
+        int kept = 0;
+        for (int i = 0; i < slot.size(); i++) {
+            Timeout timeout = slot.get(i);
+            if (timeout.cancelled) {
+                continue;
+            }
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+                slot.set(kept++, timeout);
+                continue;
+            }
+            runningTasks.incrementAndGet();
+            Thread.startVirtualThread(() -> {
+                try {
+                    timeout.task.run();
+                } finally {
+                    runningTasks.decrementAndGet();
+                }
+            });
+        }
+        slot.subList(kept, slot.size()).clear();
+    }
+}
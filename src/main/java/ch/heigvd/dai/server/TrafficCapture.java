@@ -0,0 +1,235 @@
+package ch.heigvd.dai.server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Enregistre le trafic entrant des clients dans une trace binaire compacte, pour la rejouer
+ * contre une nouvelle version du serveur (commande replay).
+ * La trace contient un en-tête ("CHTR", version, heure de début) puis un enregistrement par événement :
+ * type (ouverture, ligne reçue, fermeture), id de la connexion et temps écoulé depuis l'événement
+ * précédent en microsecondes, en varints, suivis pour une ligne de sa longueur et de ses octets UTF-8.
+ * Les événements sont mis dans une file et écrits par un thread dédié : enregistrer ne bloque jamais
+ * un client. Si la file est pleine l'événement est perdu et compté.
+ */
+public class TrafficCapture {
+    private static final int MAGIC = 0x43485452; // "CHTR"
+    private static final int VERSION = 1;
+    private static final int QUEUE_CAPACITY = 65536;
+    public static final byte OPEN = 1;
+    public static final byte LINE = 2;
+    public static final byte CLOSE = 3;
+    private final Path file;
+    private final Clock clock;
+    private final DataOutputStream out;
+    private final BlockingQueue<Record> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicLong nextConnection = new AtomicLong(1);
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private long lastNanos;
+
+    /**
+     * Événement de la trace
+     */
+    public static class Record {
+        private final byte type;
+        private final long connection;
+        private final long nanos;
+        private final String line;
+
+        public Record(byte type, long connection, long nanos, String line) {
+            this.type = type;
+            this.connection = connection;
+            this.nanos = nanos;
+            this.line = line;
+        }
+
+        public byte getType() {return type;}
+        public long getConnection() {return connection;}
+        /** @return le temps depuis le début de la trace, en nanosecondes */
+        public long getNanos() {return nanos;}
+        public String getLine() {return line;}
+    }
+
+    /**
+     * Ouvre la trace et démarre le thread d'écriture
+     * @param file
+     * @param clock
+     * @throws IOException
+     */
+    public TrafficCapture(Path file, Clock clock) throws IOException {
+        this.file = file;
+        this.clock = clock;
+        this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(clock.millis());
+        lastNanos = clock.nanos();
+        writer = new Thread(this::writeLoop, "chch-capture");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Une connexion est ouverte
+     * @return l'id de la connexion dans la trace
+     */
+    public long opened() {
+        long connection = nextConnection.getAndIncrement();
+        offer(new Record(OPEN, connection, clock.nanos(), null));
+        return connection;
+    }
+
+    /**
+     * Une ligne est reçue sur la connexion
+     * @param connection
+     * @param line
+     */
+    public void line(long connection, String line) {
+        offer(new Record(LINE, connection, clock.nanos(), line));
+    }
+
+    /**
+     * La connexion est fermée
+     * @param connection
+     */
+    public void closed(long connection) {
+        offer(new Record(CLOSE, connection, clock.nanos(), null));
+    }
+
+    private void offer(Record record) {
+        if (!queue.offer(record)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Écrit les événements en attente et ferme la trace, appelé à l'arrêt du serveur
+     */
+    public void close() {
+        writer.interrupt();
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException ignored) {
+        }
+        System.out.println("[Server] Capture " + file + " closed"
+                + (dropped.get() > 0 ? ", " + dropped.get() + " event(s) dropped" : ""));
+    }
+
+    /**
+     * Écrit les événements par lots, et vide le tampon quand la file est vide
+     */
+    private void writeLoop() {
+        List<Record> batch = new ArrayList<>();
+        try {
+            while (true) {
+                Record record;
+                try {
+                    record = queue.poll(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (record == null) {
+                    out.flush();
+                    continue;
+                }
+                batch.add(record);
+                queue.drainTo(batch);
+                for (Record event : batch) {
+                    write(event);
+                }
+                batch.clear();
+                if (queue.isEmpty()) {
+                    out.flush();
+                }
+            }
+            //arrêt : on écrit ce qui reste
+            queue.drainTo(batch);
+            for (Record event : batch) {
+                write(event);
+            }
+            out.close();
+        } catch (IOException e) {
+            System.out.println("[Server] Failed to write capture " + file + ": " + e);
+        }
+    }
+
+    private void write(Record record) throws IOException {
+        out.writeByte(record.type);
+        writeVarLong(out, record.connection);
+        //les événements sont mis dans la file dans le désordre à quelques microsecondes près
+        writeVarLong(out, Math.max(0, TimeUnit.NANOSECONDS.toMicros(record.nanos - lastNanos)));
+        lastNanos = Math.max(lastNanos, record.nanos);
+        if (record.type == LINE) {
+            byte[] bytes = record.line.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(out, bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Lit une trace complète
+     * @param file
+     * @return les événements, dans l'ordre d'enregistrement ; une fin de trace tronquée est ignorée
+     * @throws IOException
+     */
+    public static List<Record> read(Path file) throws IOException {
+        List<Record> records = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("not a capture: " + file);
+            }
+            in.readLong();
+            long nanos = 0;
+            while (true) {
+                int type = in.read();
+                if (type < 0) {
+                    break;
+                }
+                try {
+                    long connection = readVarLong(in);
+                    nanos += TimeUnit.MICROSECONDS.toNanos(readVarLong(in));
+                    String line = null;
+                    if (type == LINE) {
+                        byte[] bytes = new byte[(int) readVarLong(in)];
+                        in.readFully(bytes);
+                        line = new String(bytes, StandardCharsets.UTF_8);
+                    }
+                    records.add(new Record((byte) type, connection, nanos, line));
+                } catch (EOFException e) {
+                    //le serveur a été arrêté pendant une écriture
+                    break;
+                }
+            }
+        }
+        return records;
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+}
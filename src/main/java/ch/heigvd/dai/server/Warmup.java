@@ -0,0 +1,185 @@
+package ch.heigvd.dai.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import ch.heigvd.dai.transport.PipeTransport;
+import ch.heigvd.dai.transport.Transport;
+
+/**
+ * Échauffement du serveur avant la première connexion (option --warmup).
+ * Des clients synthétiques, connectés par des tuyaux en mémoire, passent par les commandes
+ * (JOIN, PRESENCE, CHANLIST, USRLIST, MESSAGE, BATCH, HISTORY, SEARCH, NICK, PING, QUIT)
+ * et par la diffusion dans un channel temporaire : les classes sont chargées et le JIT a compilé
+ * les chemins chauds quand le premier vrai client arrive. Le même passage sert d'entraînement
+ * pour l'archive AppCDS de l'image Docker.
+ *
+ * Le channel temporaire, son historique et son index sont dans un dossier temporaire, hors de data/,
+ * et le channel est retiré à la fin : l'échauffement ne laisse rien dans l'état du serveur.
+ * Son nom est tiré au hasard, et l'échauffement n'a pas lieu si un channel porte déjà ce nom.
+ */
+class Warmup {
+    private static final int CLIENTS = 8;
+    private static final int BATCH_SIZE = 10;
+    private static final long TIMEOUT_MILLIS = 60_000;
+    private final int messages;
+    private final String channel;
+
+    /**
+     * @param messages messages envoyés par chaque client synthétique, un sur dix dans un BATCH
+     */
+    Warmup(int messages) {
+        this.messages = messages;
+        this.channel = "chch-warmup-" + Long.toString(ThreadLocalRandom.current().nextLong() >>> 1, 36);
+    }
+
+    /**
+     * Fait passer le trafic synthétique puis retire le channel temporaire.
+     * Seuls les logs de connexion des clients synthétiques apparaissent, ceux de chaque commande
+     * et de chaque ligne envoyée ne sont écrits qu'avec --verbose.
+     * @throws IOException si le dossier temporaire ne peut pas être créé
+     */
+    void run() throws IOException {
+        if (Server.getHistory(channel) != null) {
+            System.out.println("[Server] Warmup skipped: channel " + channel + " already exists");
+            return;
+        }
+        long start = System.nanoTime();
+        Path directory = Files.createTempDirectory("chch-warmup");
+        boolean complete = false;
+        try {
+            Path file = directory.resolve(channel + ".txt");
+            Files.createFile(file);
+            Server.addChannel(channel, file, null);
+            complete = traffic();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            Server.removeChannel(channel);
+            delete(directory);
+        }
+        System.out.println("[Server] Warmup: " + CLIENTS * messages + " message(s) from " + CLIENTS + " client(s) in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms" + (complete ? "" : " (incomplete)"));
+    }
+
+    private boolean traffic() throws InterruptedException {
+        List<Transport> transports = new ArrayList<>(CLIENTS);
+        CountDownLatch sent = new CountDownLatch(CLIENTS);
+        CountDownLatch done = new CountDownLatch(CLIENTS);
+        for (int i = 0; i < CLIENTS; i++) {
+            PipeTransport[] ends = PipeTransport.pair("warmup-" + i);
+            Server.connect(ends[1]);
+            transports.add(ends[0]);
+            int client = i;
+            Thread.startVirtualThread(() -> read(ends[0], done));
+            Thread.startVirtualThread(() -> {
+                script(ends[0], client);
+                sent.countDown();
+            });
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        boolean complete = sent.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+
+        //tous les messages ont leur numéro de séquence : PRESENCE passe par le shard du channel
+        //après leur diffusion, et la réponse au PING tagué arrive une fois QUIT traité
+        ChannelHistory history = Server.getHistory(channel);
+        while (complete && history.head() < CLIENTS * messages) {
+            if (System.nanoTime() > deadline) {
+                complete = false;
+            }
+            Thread.sleep(1);
+        }
+        for (Transport transport : transports) {
+            write(transport, "PRESENCE ON\nQUIT\n@done PING\n");
+        }
+        complete &= done.await(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())), TimeUnit.MILLISECONDS);
+        for (Transport transport : transports) {
+            try {
+                transport.close();
+            } catch (IOException ignored) {}
+        }
+        return complete;
+    }
+
+    /**
+     * Les commandes d'un client synthétique, dans l'ordre d'une session normale
+     */
+    private void script(Transport transport, int client) {
+        String name = "warmup-" + client;
+        StringBuilder lines = new StringBuilder();
+        lines.append("JOIN ").append(channel).append(' ').append(name).append('\n')
+                .append("PRESENCE ON\nCHANLIST\nUSRLIST\n");
+        if (!write(transport, lines)) {
+            return;
+        }
+        for (int j = 0; j < messages; j++) {
+            lines.setLength(0);
+            //les dix derniers messages de chaque centaine passent par BATCH
+            if (j % 100 == 100 - BATCH_SIZE && j + BATCH_SIZE <= messages) {
+                lines.append("BATCH ").append(BATCH_SIZE).append('\n');
+                for (int k = 0; k < BATCH_SIZE; k++) {
+                    lines.append("MESSAGE warmup ").append(client).append(' ').append(j + k).append('\n');
+                }
+                j += BATCH_SIZE - 1;
+            } else {
+                lines.append("MESSAGE warmup ").append(client).append(' ').append(j).append('\n');
+            }
+            if (j % 100 == 99) {
+                lines.append("PING\n");
+            }
+            if (!write(transport, lines)) {
+                return;
+            }
+        }
+        lines.setLength(0);
+        lines.append("HISTORY 0 100\nHISTORY AT ").append(System.currentTimeMillis()).append(" 10\n")
+                .append("SEARCH warmup LIMIT 10\n")
+                .append("NICK ").append(name).append("-b\n")
+                .append("NICK ").append(name).append('\n');
+        write(transport, lines);
+    }
+
+    /**
+     * Lit tout ce que le serveur envoie à un client synthétique, en notant la réponse au dernier PING
+     */
+    private static void read(Transport transport, CountDownLatch done) {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(transport.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("@done ")) {
+                    done.countDown();
+                }
+            }
+        } catch (IOException ignored) {}
+    }
+
+    private static boolean write(Transport transport, CharSequence lines) {
+        try {
+            transport.getOutputStream().write(lines.toString().getBytes(StandardCharsets.UTF_8));
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void delete(Path directory) {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        } catch (IOException e) {
+            System.out.println("[Server] Failed to delete warmup directory " + directory + ": " + e);
+        }
+    }
+}
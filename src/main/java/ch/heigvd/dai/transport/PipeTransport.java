@@ -0,0 +1,214 @@
+package ch.heigvd.dai.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-memory transport: two ends connected by a pair of bounded byte buffers.
+ * A writer blocks while the buffer towards the other end is full, like a TCP
+ * connection whose window is closed, so backpressure behaves as it does over
+ * the network without any socket. Locks are {@link ReentrantLock}s so that
+ * blocked virtual threads release their carrier.
+ */
+public class PipeTransport implements Transport {
+	private static final int DEFAULT_BUFFER_BYTES = 64 * 1024;
+	private final Pipe in;
+	private final Pipe out;
+	private final String remoteAddress;
+	private final InputStream inputStream;
+	private final OutputStream outputStream;
+	private volatile boolean closed;
+
+	private PipeTransport(Pipe in, Pipe out, String remoteAddress) {
+		this.in = in;
+		this.out = out;
+		this.remoteAddress = remoteAddress;
+		this.inputStream = new PipeInputStream(in);
+		this.outputStream = new PipeOutputStream(out);
+	}
+
+	/**
+	 * Creates two connected ends.
+	 *
+	 * @param name a name for the connection, shown as the remote address of the server end
+	 * @return the client end at index 0 and the server end at index 1
+	 */
+	public static PipeTransport[] pair(String name) {
+		return pair(name, DEFAULT_BUFFER_BYTES);
+	}
+
+	/**
+	 * Creates two connected ends.
+	 *
+	 * @param name a name for the connection, shown as the remote address of the server end
+	 * @param bufferBytes the number of bytes buffered in each direction
+	 * @return the client end at index 0 and the server end at index 1
+	 */
+	public static PipeTransport[] pair(String name, int bufferBytes) {
+		Pipe toServer = new Pipe(bufferBytes);
+		Pipe toClient = new Pipe(bufferBytes);
+		return new PipeTransport[] {
+			new PipeTransport(toClient, toServer, "server"),
+			new PipeTransport(toServer, toClient, "pipe:" + name)
+		};
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return inputStream;
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return outputStream;
+	}
+
+	@Override
+	public String getRemoteAddress() {
+		return remoteAddress;
+	}
+
+	@Override
+	public boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		in.close();
+		out.close();
+	}
+
+	/**
+	 * One direction of the connection: a ring buffer with a single reader and a single writer.
+	 */
+	private static class Pipe {
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition readable = lock.newCondition();
+		private final Condition writable = lock.newCondition();
+		private final byte[] buffer;
+		private int start;
+		private int size;
+		private boolean closed;
+
+		Pipe(int capacity) {
+			buffer = new byte[capacity];
+		}
+
+		int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			lock.lock();
+			try {
+				while (size == 0) {
+					if (closed) {
+						return -1;
+					}
+					readable.await();
+				}
+				int count = Math.min(len, size);
+				int first = Math.min(count, buffer.length - start);
+				System.arraycopy(buffer, start, b, off, first);
+				System.arraycopy(buffer, 0, b, off + first, count - first);
+				start = (start + count) % buffer.length;
+				size -= count;
+				writable.signal();
+				return count;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted", e);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void write(byte[] b, int off, int len) throws IOException {
+			lock.lock();
+			try {
+				while (len > 0) {
+					while (size == buffer.length && !closed) {
+						writable.await();
+					}
+					if (closed) {
+						throw new IOException("pipe closed");
+					}
+					int end = (start + size) % buffer.length;
+					int count = Math.min(len, Math.min(buffer.length - size, buffer.length - end));
+					System.arraycopy(b, off, buffer, end, count);
+					size += count;
+					off += count;
+					len -= count;
+					readable.signal();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted", e);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void close() {
+			lock.lock();
+			try {
+				closed = true;
+				readable.signalAll();
+				writable.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private static class PipeInputStream extends InputStream {
+		private final Pipe pipe;
+		private final byte[] single = new byte[1];
+
+		PipeInputStream(Pipe pipe) {
+			this.pipe = pipe;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return pipe.read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return pipe.read(b, off, len);
+		}
+
+		@Override
+		public void close() {
+			pipe.close();
+		}
+	}
+
+	private static class PipeOutputStream extends OutputStream {
+		private final Pipe pipe;
+
+		PipeOutputStream(Pipe pipe) {
+			this.pipe = pipe;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			pipe.write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			pipe.write(b, off, len);
+		}
+
+		@Override
+		public void close() {
+			pipe.close();
+		}
+	}
+}
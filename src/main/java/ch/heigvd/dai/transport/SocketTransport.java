@@ -0,0 +1,56 @@
+package ch.heigvd.dai.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * Transport over a TCP socket.
+ */
+public class SocketTransport implements Transport {
+	private final Socket socket;
+
+	/**
+	 * @param socket a connected socket
+	 */
+	public SocketTransport(Socket socket) {
+		this.socket = socket;
+	}
+
+	/**
+	 * Returns a connector opening a new TCP connection on every call.
+	 *
+	 * @param host the server hostname or IP address
+	 * @param port the server port number
+	 * @return the connector
+	 */
+	public static Connector connector(String host, int port) {
+		return () -> new SocketTransport(new Socket(host, port));
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return socket.getInputStream();
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return socket.getOutputStream();
+	}
+
+	@Override
+	public String getRemoteAddress() {
+		return socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+	}
+
+	@Override
+	public boolean isClosed() {
+		return socket.isClosed();
+	}
+
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+}
@@ -0,0 +1,49 @@
+package ch.heigvd.dai.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A bidirectional byte stream between a client and the server.
+ * The protocol code only sees this interface, so the same handler runs over
+ * a TCP socket ({@link SocketTransport}) or an in-memory pipe ({@link PipeTransport}).
+ */
+public interface Transport extends Closeable {
+
+	/**
+	 * Opens a new transport to the server, used by the client to connect and reconnect.
+	 */
+	@FunctionalInterface
+	interface Connector {
+		Transport connect() throws IOException;
+	}
+
+	/**
+	 * @return the stream of bytes received from the other end
+	 */
+	InputStream getInputStream() throws IOException;
+
+	/**
+	 * @return the stream of bytes sent to the other end
+	 */
+	OutputStream getOutputStream() throws IOException;
+
+	/**
+	 * @return a printable address of the other end, for logs
+	 */
+	String getRemoteAddress();
+
+	/**
+	 * @return true once {@link #close()} has been called on this end
+	 */
+	boolean isClosed();
+
+	/**
+	 * Closes both directions: the other end reads end of stream and its writes fail.
+	 * Unblocks any thread reading from or writing to this end.
+	 */
+	@Override
+	void close() throws IOException;
+}
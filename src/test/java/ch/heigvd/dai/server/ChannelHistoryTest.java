@@ -0,0 +1,116 @@
+package ch.heigvd.dai.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+class ChannelHistoryTest {
+    private static final int MESSAGES = 6000;
+    private static final int ARCHIVED = MESSAGES - 4096;
+
+    @TempDir
+    Path data;
+
+    /**
+     * Historique dont les plus anciens messages sont passés dans l'archive : il est ouvert
+     * avec un seuil d'archivage, un seul archivage est lancé, jusqu'aux 4096 messages gardés en mémoire.
+     * Le message i a été écrit à i * 10 ms.
+     */
+    private ChannelHistory archived() throws IOException, InterruptedException {
+        Path file = data.resolve("chan.txt");
+        StringBuilder lines = new StringBuilder();
+        for (int i = 1; i <= MESSAGES; i++) {
+            lines.append(i * 10L).append(" user").append(i % 7).append(" message ").append(i).append('\n');
+        }
+        Files.writeString(file, lines);
+
+        ChannelHistory reopened = new ChannelHistory(file, null, 1024, new Symbols());
+        //l'archivage tourne en arrière-plan
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (reopened.snapshot().getBase() != ARCHIVED && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(ARCHIVED, reopened.snapshot().getBase());
+        return reopened;
+    }
+
+    @Test
+    void sinceReadsAcrossArchiveAndFile() throws IOException, InterruptedException {
+        ChannelHistory history = archived();
+        List<String> expected = new ArrayList<>();
+        for (int i = ARCHIVED - 2; i <= ARCHIVED + 3; i++) {
+            expected.add("user" + (i % 7) + " message " + i);
+        }
+        assertEquals(expected, history.since(ARCHIVED - 3, 6));
+        assertEquals(MESSAGES, history.since(0).size());
+        assertEquals("user1 message 1", history.since(0, 1).get(0));
+        history.close();
+    }
+
+    @Test
+    void searchFindsArchivedMessages() throws IOException, InterruptedException {
+        ChannelHistory history = archived();
+        assertEquals(List.of("user3 message 10"), history.search("10", 10));
+        assertEquals(List.of("user0 message 5999"), history.search("5999", 10));
+        List<String> found = history.search("user3", MESSAGES);
+        assertEquals(857, found.size());
+        assertEquals("user3 message 3", found.get(0));
+        assertEquals("user3 message 5995", found.get(found.size() - 1));
+        history.close();
+    }
+
+    @Test
+    void seqAtFindsArchivedAndFileMessages() throws IOException, InterruptedException {
+        ChannelHistory history = archived();
+        assertEquals(1, history.seqAt(0));
+        assertEquals(100, history.seqAt(995));
+        assertEquals(ARCHIVED, history.seqAt(ARCHIVED * 10L));
+        assertEquals(ARCHIVED + 1, history.seqAt(ARCHIVED * 10L + 1));
+        assertEquals(5000, history.seqAt(50_000));
+        assertEquals(MESSAGES + 1, history.seqAt(Long.MAX_VALUE));
+        history.close();
+    }
+
+    @Test
+    void archivedHistoryIsReloaded() throws IOException, InterruptedException {
+        ChannelHistory history = archived();
+        history.close();
+
+        ChannelHistory reopened = new ChannelHistory(data.resolve("chan.txt"), null, 0, new Symbols());
+        assertEquals(MESSAGES, reopened.head());
+        assertEquals(ARCHIVED, reopened.snapshot().getBase());
+        assertEquals(List.of("user1 message 1", "user2 message 2"), reopened.since(0, 2));
+        reopened.close();
+    }
+
+    @Test
+    @Timeout(value = 10, unit = TimeUnit.SECONDS, threadMode = Timeout.ThreadMode.SEPARATE_THREAD)
+    void historyWhoseArchiveIsMissingStartsAtItsFile() throws IOException {
+        //le fichier commence après le message 100, mais l'archive qui devrait contenir les 100 premiers n'existe pas
+        Path file = data.resolve("chan.txt");
+        StringBuilder lines = new StringBuilder("#100\n");
+        for (int i = 101; i <= 110; i++) {
+            lines.append(i * 10L).append(" user").append(i % 7).append(" message ").append(i).append('\n');
+        }
+        Files.writeString(file, lines);
+
+        ChannelHistory history = new ChannelHistory(file, null, 0, new Symbols());
+        assertEquals(110, history.head());
+        assertEquals(101, history.seqAt(0));
+        assertEquals(105, history.seqAt(1045));
+        assertEquals(111, history.seqAt(2000));
+        assertEquals(List.of("user5 message 103", "user6 message 104"), history.since(102, 2));
+        assertEquals(10, history.since(0).size());
+        assertEquals(List.of("user3 message 108"), history.search("108", 10));
+        history.close();
+    }
+}
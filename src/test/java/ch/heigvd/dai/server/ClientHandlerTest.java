@@ -0,0 +1,60 @@
+package ch.heigvd.dai.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ch.heigvd.dai.transport.PipeTransport;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+class ClientHandlerTest {
+    //plus que la file d'envoi d'un client (OUTBOX_CAPACITY lignes)
+    private static final int MESSAGES = 20_000;
+
+    @TempDir
+    Path data;
+
+    @Test
+    @Timeout(value = 30, unit = TimeUnit.SECONDS)
+    void historyLargerThanTheOutboxIsSentWhole() throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (int i = 1; i <= MESSAGES; i++) {
+            lines.append(i * 10L).append(" user").append(i % 7).append(" message ").append(i).append('\n');
+        }
+        Files.writeString(data.resolve("big.txt"), lines);
+        new Server(data, new ManualClock(0)).open();
+
+        PipeTransport[] ends = PipeTransport.pair("history");
+        Server.connect(ends[1]);
+        BufferedReader in = new BufferedReader(new InputStreamReader(ends[0].getInputStream(), StandardCharsets.UTF_8));
+        BufferedWriter out = new BufferedWriter(new OutputStreamWriter(ends[0].getOutputStream(), StandardCharsets.UTF_8));
+
+        out.write("JOIN big alice\n");
+        out.flush();
+        String ok = in.readLine();
+        assertTrue(ok.startsWith("OK "), ok);
+        assertTrue(ok.endsWith(" " + MESSAGES), ok);
+
+        out.write("HISTORY\n");
+        out.flush();
+        for (int i = 1; i <= MESSAGES; i++) {
+            assertEquals("RECEIVE user" + (i % 7) + " message " + i, in.readLine());
+        }
+
+        //la connexion est toujours ouverte
+        out.write("PING\n");
+        out.flush();
+        assertEquals("PONG", in.readLine());
+        ends[0].close();
+    }
+}
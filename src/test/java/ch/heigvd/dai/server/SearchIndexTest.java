@@ -0,0 +1,98 @@
+package ch.heigvd.dai.server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SearchIndexTest {
+    @TempDir
+    Path data;
+
+    @Test
+    void savedIndexIsReloaded() throws IOException {
+        Path file = data.resolve("index").resolve("chan.idx");
+        SearchIndex index = new SearchIndex(file);
+        index.add(1, "alice hello world");
+        index.add(2, "bob Hello there");
+        index.add(3, "alice bye");
+        SearchIndex.Frozen frozen = index.freeze();
+        //ajouté après le gel : ne doit pas être dans le fichier
+        index.add(4, "carol hello");
+        frozen.save();
+
+        SearchIndex reloaded = new SearchIndex(file);
+        assertEquals(3, reloaded.getIndexedUpTo());
+        assertArrayEquals(new int[] {1, 2}, reloaded.search("hello", 10));
+        assertArrayEquals(new int[] {1, 3}, reloaded.search("ALICE", 10));
+        assertArrayEquals(new int[] {1}, reloaded.search("alice world", 10));
+        assertArrayEquals(new int[] {2}, reloaded.search("hello", 1));
+    }
+
+    @Test
+    void unchangedIndexIsNotFrozen() throws IOException {
+        SearchIndex index = new SearchIndex(data.resolve("chan.idx"));
+        index.add(1, "alice hello");
+        index.save();
+        assertNull(index.freeze());
+        index.markDirty();
+        assertNotNull(index.freeze());
+    }
+
+    @Test
+    void missingIndexIsRebuiltFromHistory() throws IOException {
+        Path file = data.resolve("chan.txt");
+        Files.createFile(file);
+        ChannelHistory history = new ChannelHistory(file);
+        history.append("alice hello world");
+        history.append("bob nothing here");
+        history.append("alice hello again");
+        history.saveIndex();
+        history.close();
+        Files.delete(data.resolve("index").resolve("chan.idx"));
+
+        ChannelHistory reopened = new ChannelHistory(file);
+        assertEquals(List.of("alice hello world", "alice hello again"), reopened.search("hello", 10));
+        reopened.close();
+    }
+
+    @Test
+    void messagesAfterTheLastSaveAreReindexed() throws IOException {
+        Path file = data.resolve("chan.txt");
+        Files.createFile(file);
+        ChannelHistory history = new ChannelHistory(file);
+        history.append("alice first hello");
+        history.saveIndex();
+        history.append("bob second hello");
+        history.close();
+
+        ChannelHistory reopened = new ChannelHistory(file);
+        assertEquals(List.of("alice first hello", "bob second hello"), reopened.search("hello", 10));
+        reopened.close();
+    }
+
+    @Test
+    void indexAheadOfHistoryIsCleared() throws IOException {
+        Path file = data.resolve("chan.txt");
+        Files.createFile(file);
+        ChannelHistory history = new ChannelHistory(file);
+        history.append("alice hello");
+        history.append("bob hello");
+        history.saveIndex();
+        history.close();
+        //l'historique est remplacé par un plus court que l'index
+        Files.writeString(file, "1700000000000 carol goodbye\n");
+
+        ChannelHistory reopened = new ChannelHistory(file);
+        assertEquals(List.of(), reopened.search("hello", 10));
+        assertEquals(List.of("carol goodbye"), reopened.search("goodbye", 10));
+        reopened.close();
+    }
+}
@@ -0,0 +1,47 @@
+package ch.heigvd.dai.server;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class SessionRegistryTest {
+    private final ManualClock clock = new ManualClock(0);
+    private final SessionRegistry sessions = new SessionRegistry(1000, null, clock);
+
+    @Test
+    void usernameIsFreeOnceTheWindowHasPassed() {
+        Object connection = new Object();
+        SessionRegistry.Session session = sessions.open("channel1", "alice", connection);
+        assertFalse(sessions.isReserved("alice"));
+
+        sessions.detach(session, connection, 0);
+        clock.advance(1000);
+        assertTrue(sessions.isReserved("alice"));
+
+        clock.advance(1);
+        assertFalse(sessions.isReserved("alice"));
+        assertNull(sessions.resume(session.getToken(), new Object()));
+    }
+
+    @Test
+    void expiredReservationBehindALaterOneIsFree() {
+        Object first = new Object();
+        Object second = new Object();
+        SessionRegistry.Session bob = sessions.open("channel1", "bob", first);
+        SessionRegistry.Session alice = sessions.open("channel1", "alice", second);
+        sessions.detach(bob, first, 0);
+        Object resumed = new Object();
+        assertSame(bob, sessions.resume(bob.getToken(), resumed));
+        sessions.detach(alice, second, 0);
+        clock.advance(500);
+        //bob est toujours en tête de la file, avec une fenêtre qui finit après celle d'alice
+        sessions.detach(bob, resumed, 0);
+
+        clock.advance(501);
+        assertFalse(sessions.isReserved("alice"));
+        assertTrue(sessions.isReserved("bob"));
+    }
+}
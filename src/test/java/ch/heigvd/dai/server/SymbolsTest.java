@@ -0,0 +1,68 @@
+package ch.heigvd.dai.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SymbolsTest {
+    @TempDir
+    Path data;
+
+    @Test
+    void releasedNameIsFreedAndItsIdReused() {
+        Symbols symbols = new Symbols();
+        int alice = symbols.acquire("alice");
+        assertEquals(alice, symbols.acquire("alice"));
+        symbols.release(alice);
+        assertEquals("alice", symbols.name(alice));
+
+        symbols.release(alice);
+        assertEquals(-1, symbols.find("alice"));
+        assertNull(symbols.name(alice));
+        assertEquals(alice, symbols.acquire("bob"));
+        assertEquals(1, symbols.size());
+    }
+
+    @Test
+    void retainedIdOutlivesItsRelease() {
+        Symbols symbols = new Symbols();
+        int alice = symbols.acquire("alice");
+        symbols.retain(alice);
+        symbols.release(alice);
+        assertEquals("alice", symbols.name(alice));
+        symbols.release(alice);
+        assertEquals(0, symbols.size());
+    }
+
+    @Test
+    void internedNamesAreShared() {
+        Symbols symbols = new Symbols();
+        String name = symbols.intern(new String("global"));
+        assertSame(name, symbols.intern(new String("global")));
+        assertEquals(symbols.id("global"), symbols.find("global"));
+    }
+
+    @Test
+    void historyReleasesTheAuthorsOfTrimmedMessages() throws IOException {
+        Path file = data.resolve("chan.txt");
+        Files.createFile(file);
+        Symbols usernames = new Symbols();
+        ChannelHistory history = new ChannelHistory(file, null, 0, usernames);
+        //un auteur différent par message : seuls ceux des messages gardés en mémoire restent dans la table
+        for (int i = 0; i < 20_000; i++) {
+            history.append("user" + i + " hello");
+        }
+        assertEquals(List.of("user19999 hello"), history.since(19_999));
+        assertTrue(usernames.size() <= 2 * 4096);
+        history.close();
+        assertEquals(0, usernames.size());
+    }
+}